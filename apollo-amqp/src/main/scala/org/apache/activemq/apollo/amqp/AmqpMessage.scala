@@ -26,8 +26,9 @@ import org.fusesource.hawtbuf.Buffer
 import org.fusesource.hawtbuf.AsciiBuffer
 import org.fusesource.hawtbuf.UTF8Buffer
 import org.apache.qpid.proton.amqp.{UnsignedByte, UnsignedShort, UnsignedLong, UnsignedInteger}
-import org.apache.qpid.proton.amqp.messaging.{Properties, Header}
+import org.apache.qpid.proton.amqp.messaging.{Footer, Properties, Header}
 import org.apache.qpid.proton.message.impl.MessageImpl
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 object AmqpMessageCodecFactory extends MessageCodecFactory.Provider {
   def create = Array[MessageCodec](AmqpMessageCodec)
@@ -67,6 +68,93 @@ object AmqpMessage {
   val contentEncodingKey = prefixVendor +"ContentEncoding";
   val replyToGroupIDKey = prefixVendor +"ReplyToGroupID";
 
+  // The descriptor codes of the message sections.
+  val HEADER_SECTION = 0x70
+  val DELIVERY_ANNOTATIONS_SECTION = 0x71
+  val MESSAGE_ANNOTATIONS_SECTION = 0x72
+  val PROPERTIES_SECTION = 0x73
+  val APPLICATION_PROPERTIES_SECTION = 0x74
+  val FOOTER_SECTION = 0x78
+  val SECTIONS = 9
+
+  /**
+   * Locates the sections of an encoded message without decoding them.
+   *
+   * @return the offset and length of each section indexed by it's descriptor
+   *         code - 0x70, or null if the encoding could not be scanned.
+   */
+  def scan_sections(buffer:Buffer):Array[Int] = {
+    val data = buffer.data
+    val end = buffer.offset + buffer.length
+
+    def skip(start:Int):Int = {
+      if( start >= end ) {
+        return -1
+      }
+      val constructor = data(start) & 0xFF
+      val pos = start + 1
+      val rc = if( constructor == 0x00 ) {
+        // a described type: skip the descriptor and then the value.
+        val value = skip(pos)
+        if( value < 0 ) -1 else skip(value)
+      } else {
+        (constructor >> 4) match {
+          case 0x4 => pos
+          case 0x5 => pos + 1
+          case 0x6 => pos + 2
+          case 0x7 => pos + 4
+          case 0x8 => pos + 8
+          case 0x9 => pos + 16
+          case 0xA | 0xC | 0xE =>
+            if( pos >= end ) -1 else pos + 1 + (data(pos) & 0xFF)
+          case 0xB | 0xD | 0xF =>
+            if( pos + 4 > end ) -1 else {
+              pos + 4 + (((data(pos) & 0xFF) << 24) | ((data(pos+1) & 0xFF) << 16) | ((data(pos+2) & 0xFF) << 8) | (data(pos+3) & 0xFF))
+            }
+          case _ => -1
+        }
+      }
+      if( rc > end || rc < pos ) -1 else rc
+    }
+
+    val rc = new Array[Int](SECTIONS*2)
+    java.util.Arrays.fill(rc, -1)
+    var pos = buffer.offset
+    while( pos < end ) {
+      // Every section is a described type with a ulong descriptor.
+      if( data(pos) != 0x00 || pos + 2 > end ) {
+        return null
+      }
+      val code = (data(pos+1) & 0xFF) match {
+        case 0x53 => // smallulong
+          if( pos + 3 > end ) -1 else data(pos+2) & 0xFF
+        case 0x80 => // ulong
+          if( pos + 10 > end ) -1 else {
+            var high = 0
+            for( i <- 2 until 9 ) {
+              high |= data(pos+i)
+            }
+            if( high != 0 ) -1 else data(pos+9) & 0xFF
+          }
+        case _ => -1
+      }
+      if( code < 0x70 || code >= 0x70 + SECTIONS ) {
+        return null
+      }
+      val next = skip(pos)
+      if( next < 0 ) {
+        return null
+      }
+      val section = code - 0x70
+      if( rc(section*2) == -1 ) {
+        rc(section*2) = pos
+        rc(section*2+1) = next - pos
+      }
+      pos = next
+    }
+    rc
+  }
+
 }
 import AmqpMessage._
 
@@ -108,7 +196,99 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
   }
 
 
-  override def message_group = decoded.getGroupId
+  // Lazily decoded sections of the encoded message, so that looking up a
+  // property does not decode the message body.
+  @volatile
+  private var section_offsets:Array[Int] = null
+  @volatile
+  private var sections:AtomicReferenceArray[org.apache.qpid.proton.message.Message] = null
+
+  /**
+   * @return a message which holds the decoded section if the encoding has that section.
+   */
+  def section(code:Int):org.apache.qpid.proton.message.Message = {
+    if( decoded_message!=null ) {
+      return decoded_message
+    }
+    if( section_offsets==null ) {
+      section_offsets = scan_sections(encoded_buffer)
+      if( section_offsets==null ) {
+        // Could not scan it, fall back to decoding all of it.
+        section_offsets = new Array[Int](0)
+      }
+    }
+    if( section_offsets.length == 0 ) {
+      return decoded
+    }
+    if( sections==null ) {
+      sections = new AtomicReferenceArray[org.apache.qpid.proton.message.Message](SECTIONS)
+    }
+    val index = code - 0x70
+    var rc = sections.get(index)
+    if( rc == null ) {
+      val amqp = new MessageImpl()
+      val offset = section_offsets(index*2)
+      if( offset >= 0 ) {
+        var len = section_offsets(index*2+1)
+        var pos = offset
+        while( len > 0 ) {
+          var decoded = amqp.decode(encoded_buffer.data, pos, len);
+          assert(decoded > 0, "Make progress decoding the message")
+          pos += decoded;
+          len -= decoded;
+        }
+      }
+      sections.compareAndSet(index, null, amqp)
+      rc = sections.get(index)
+    }
+    rc
+  }
+
+  /**
+   * @return a copy of this message with an entry added to it's footer.  Only
+   *         the footer section gets decoded and re-encoded when possible.
+   */
+  def with_footer_entry(key:AnyRef, value:AnyRef):AmqpMessage = {
+    def add_entry(message:org.apache.qpid.proton.message.Message) = {
+      if( message.getFooter == null ) {
+        val map = new java.util.HashMap[AnyRef,AnyRef]
+        map.put(key, value)
+        message.setFooter(new Footer(map))
+      } else {
+        message.getFooter.getValue.asInstanceOf[java.util.Map[AnyRef,AnyRef]].put(key, value)
+      }
+    }
+    val footer = section(FOOTER_SECTION)
+    if( footer eq decoded_message ) {
+      add_entry(decoded_message)
+      new AmqpMessage(null, decoded_message)
+    } else {
+      val footer_only = new MessageImpl()
+      if( footer.getFooter != null ) {
+        // Copy it so that the footer of this message does not change.
+        footer_only.setFooter(new Footer(new java.util.HashMap[AnyRef,AnyRef](footer.getFooter.getValue.asInstanceOf[java.util.Map[AnyRef,AnyRef]])))
+      }
+      add_entry(footer_only)
+      val encoded_footer = new AmqpMessage(null, footer_only).encoded
+
+      // Replace the old footer section with the new one.
+      val offset = section_offsets((FOOTER_SECTION-0x70)*2)
+      val (head, tail) = if( offset < 0 ) {
+        (encoded_buffer, new Buffer(0))
+      } else {
+        val start = offset - encoded_buffer.offset
+        val end = start + section_offsets((FOOTER_SECTION-0x70)*2+1)
+        (encoded_buffer.slice(0, start), encoded_buffer.slice(end, encoded_buffer.length))
+      }
+      val rc = new Buffer(head.length + tail.length + encoded_footer.length)
+      System.arraycopy(head.data, head.offset, rc.data, 0, head.length)
+      System.arraycopy(tail.data, tail.offset, rc.data, head.length, tail.length)
+      System.arraycopy(encoded_footer.data, encoded_footer.offset, rc.data, head.length + tail.length, encoded_footer.length)
+      new AmqpMessage(rc, null)
+    }
+  }
+
+  override def message_group = section(PROPERTIES_SECTION).getGroupId
 
   def getBodyAs[T](toType : Class[T]): T = {
     if (toType == classOf[Buffer]) {
@@ -125,6 +305,7 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
   }.asInstanceOf[T]
 
   def getLocalConnectionId: AnyRef = {
+    val decoded = section(DELIVERY_ANNOTATIONS_SECTION)
     if ( decoded.getDeliveryAnnotations!=null ) {
       decoded.getDeliveryAnnotations.getValue.get(SENDER_CONTAINER_KEY) match {
         case x:String => x
@@ -136,6 +317,7 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
   }
 
   def getApplicationProperty(name:String) = {
+    val decoded = section(APPLICATION_PROPERTIES_SECTION)
     if( decoded.getApplicationProperties !=null ) {
       decoded.getApplicationProperties.getValue.get(name).asInstanceOf[AnyRef]
     } else {
@@ -144,6 +326,7 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
   }
 
   def getMessageAnnotationProperty(name:String) = {
+    val decoded = section(MESSAGE_ANNOTATIONS_SECTION)
     if( decoded.getMessageAnnotations !=null ) {
       var ma = decoded.getMessageAnnotations
       var rc = ma.getValue.get(name)
@@ -157,6 +340,7 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
   }
 
   def getDeliveryAnnotationProperty(name:String) = {
+    val decoded = section(DELIVERY_ANNOTATIONS_SECTION)
     if( decoded.getDeliveryAnnotations !=null ) {
       decoded.getDeliveryAnnotations.getValue.get(name).asInstanceOf[AnyRef]
     } else {
@@ -164,6 +348,7 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
     }
   }
   def getFooterProperty(name:AnyRef) = {
+    val decoded = section(FOOTER_SECTION)
     if( decoded.getFooter !=null ) {
       decoded.getFooter.getValue.get(name).asInstanceOf[AnyRef]
     } else {
@@ -172,6 +357,7 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
   }
 
   def getHeader[T](default:T)(func: (Header)=>T) = {
+    val decoded = section(HEADER_SECTION)
     if( decoded.getHeader == null ) {
       default
     } else {
@@ -179,6 +365,7 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
     }
   }
   def getProperties[T](default:T)(func: (Properties)=>T) = {
+    val decoded = section(PROPERTIES_SECTION)
     if( decoded.getProperties == null ) {
       default
     } else {
@@ -198,7 +385,7 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
       case "JMSDeliveryMode" =>
         getHeader[AnyRef](null)(header=> if(header.getDurable) "PERSISTENT" else "NON_PERSISTENT" )
       case "JMSPriority" =>
-        new java.lang.Integer(decoded.getPriority)
+        new java.lang.Integer(section(HEADER_SECTION).getPriority)
       case "JMSType" =>
         getMessageAnnotationProperty("x-opt-jms-type")
       case "JMSMessageID" =>
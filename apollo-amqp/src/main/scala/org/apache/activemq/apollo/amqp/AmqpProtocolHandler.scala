@@ -518,7 +518,7 @@ class AmqpProtocolHandler extends ProtocolHandler {
         if (value != null) {
           val selector = value.getDescribed().toString()
           try {
-            (selector, SelectorParser.parse(selector))
+            (selector, SelectorParser.compile(selector))
           } catch {
             case e: FilterException =>
               sender.setSource(null)
@@ -809,32 +809,22 @@ class AmqpProtocolHandler extends ProtocolHandler {
 
       // Update the message to attach some producer context to the footer..
       // of the message.
-      val dm = m.decoded
-      val footer_map:java.util.Map[AnyRef,AnyRef] = if( dm.getFooter == null ) {
-        val map = new java.util.HashMap[AnyRef,AnyRef]
-        dm.setFooter(new Footer(map))
-        map
-      } else {
-        dm.getFooter.getValue.asInstanceOf[java.util.Map[AnyRef,AnyRef]]
-      }
-      footer_map.put(ORIGIN, session_id.get)
-      val message = new AmqpMessage(null, dm)
+      val message = m.with_footer_entry(ORIGIN, session_id.get)
 
       val d = new Delivery
       d.message = message
       d.size = message.encoded.length
-      var decoded = message.decoded
-      if (decoded.getProperties != null) {
-        if (decoded.getProperties.getAbsoluteExpiryTime != null) {
-          d.expiration = decoded.getProperties.getAbsoluteExpiryTime.getTime
+      message.getProperties(()) { properties =>
+        if (properties.getAbsoluteExpiryTime != null) {
+          d.expiration = properties.getAbsoluteExpiryTime.getTime
         }
       }
-      if (decoded.getHeader != null) {
-        if (decoded.getHeader.getDurable != null) {
-          d.persistent = decoded.getHeader.getDurable.booleanValue()
+      message.getHeader(()) { header =>
+        if (header.getDurable != null) {
+          d.persistent = header.getDurable.booleanValue()
         }
-        if (decoded.getHeader.getDeliveryCount != null) {
-          d.redeliveries = decoded.getHeader.getDeliveryCount.shortValue()
+        if (header.getDeliveryCount != null) {
+          d.redeliveries = header.getDeliveryCount.shortValue()
         }
       }
 
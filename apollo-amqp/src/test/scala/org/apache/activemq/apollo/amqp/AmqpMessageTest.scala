@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.amqp
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.Buffer
+import org.apache.qpid.proton.amqp.messaging._
+import org.apache.qpid.proton.message.impl.MessageImpl
+import AmqpMessage._
+
+class AmqpMessageTest extends FunSuiteSupport with ShouldMatchers {
+
+  val FOOTER_KEY = prefixFooterKey+"origin"
+
+  def message(header:Boolean, properties:Boolean, application_properties:Boolean, footer:Boolean) = {
+    val rc = new MessageImpl()
+    if( header ) {
+      val value = new Header
+      value.setDurable(true)
+      rc.setHeader(value)
+    }
+    if( properties ) {
+      val value = new Properties
+      value.setMessageId("id-1")
+      value.setGroupId("group-1")
+      rc.setProperties(value)
+    }
+    if( application_properties ) {
+      val map = new java.util.HashMap[AnyRef, AnyRef]
+      map.put("color", "red")
+      rc.setApplicationProperties(new ApplicationProperties(map))
+    }
+    rc.setBody(new AmqpValue("hello"))
+    if( footer ) {
+      val map = new java.util.HashMap[AnyRef, AnyRef]
+      map.put(FOOTER_KEY, "broker-1")
+      rc.setFooter(new Footer(map))
+    }
+    rc
+  }
+
+  def encode(message:org.apache.qpid.proton.message.Message) = new AmqpMessage(null, message).encoded
+
+  def splice(buffer:Buffer, from:Buffer, to:Buffer) = {
+    val pos = buffer.indexOf(from)
+    pos should not be (-1)
+    val rc = new Buffer(buffer.length - from.length + to.length)
+    System.arraycopy(buffer.data, buffer.offset, rc.data, 0, pos)
+    System.arraycopy(to.data, to.offset, rc.data, pos, to.length)
+    System.arraycopy(buffer.data, buffer.offset + pos + from.length, rc.data, pos + to.length, buffer.length - pos - from.length)
+    rc
+  }
+
+  def check(message:AmqpMessage, header:Boolean, properties:Boolean, application_properties:Boolean, footer:Boolean) = {
+    message.getProperty("JMSDeliveryMode") should be (if(header) "PERSISTENT" else null)
+    message.getProperty("JMSMessageID") should be (if(properties) "id-1" else null)
+    message.getProperty("JMSXGroupID") should be (if(properties) "group-1" else null)
+    message.message_group should be (if(properties) "group-1" else null)
+    message.getProperty("color") should be (if(application_properties) "red" else null)
+    message.getProperty(FOOTER_KEY) should be (if(footer) "broker-1" else null)
+  }
+
+  val combinations = for( h <- List(true, false); p <- List(true, false); a <- List(true, false); f <- List(true, false) ) yield (h, p, a, f)
+
+  test("scan_sections locates the sections") {
+    val buffer = encode(message(true, true, true, true))
+    val offsets = scan_sections(buffer)
+    offsets should not be (null)
+    for( code <- List(HEADER_SECTION, PROPERTIES_SECTION, APPLICATION_PROPERTIES_SECTION, 0x77, FOOTER_SECTION) ) {
+      offsets((code-0x70)*2) should not be (-1)
+    }
+    for( code <- List(DELIVERY_ANNOTATIONS_SECTION, MESSAGE_ANNOTATIONS_SECTION) ) {
+      offsets((code-0x70)*2) should be (-1)
+    }
+    // The sections cover the whole encoding.
+    (0 until SECTIONS).map(i=> offsets(i*2+1)).filter(_ > 0).sum should be (buffer.length)
+  }
+
+  test("scan_sections rejects truncated encodings") {
+    val buffer = encode(message(true, true, true, true))
+    scan_sections(buffer.slice(0, buffer.length-1)) should be (null)
+    scan_sections(buffer.slice(0, 2)) should be (null)
+  }
+
+  test("sections are decoded on their own") {
+    for( (h, p, a, f) <- combinations ) {
+      val rc = new AmqpMessage(encode(message(h, p, a, f)), null)
+      check(rc, h, p, a, f)
+      rc.section(HEADER_SECTION) should not be theSameInstanceAs(rc.section(PROPERTIES_SECTION))
+      rc.section(HEADER_SECTION) should be theSameInstanceAs(rc.section(HEADER_SECTION))
+    }
+  }
+
+  test("ulong section descriptors can be scanned") {
+    val buffer = splice(encode(message(true, true, true, true)),
+      new Buffer(Array[Byte](0x00, 0x53, 0x73)),
+      new Buffer(Array[Byte](0x00, 0x80.toByte, 0, 0, 0, 0, 0, 0, 0, 0x73)))
+    scan_sections(buffer) should not be (null)
+    check(new AmqpMessage(buffer, null), true, true, true, true)
+  }
+
+  test("encodings that can't be scanned fall back to a full decode") {
+    for( (h, p, a, f) <- combinations.filter(_._2) ) {
+      // Use the symbolic descriptor for the properties section.
+      val buffer = splice(encode(message(h, p, a, f)),
+        new Buffer(Array[Byte](0x00, 0x53, 0x73)),
+        new Buffer(Array[Byte](0x00, 0xA3.toByte, 20) ++ "amqp:properties:list".getBytes("UTF-8")))
+      scan_sections(buffer) should be (null)
+      val rc = new AmqpMessage(buffer, null)
+      check(rc, h, p, a, f)
+      rc.section(HEADER_SECTION) should be theSameInstanceAs(rc.section(PROPERTIES_SECTION))
+    }
+  }
+
+  test("with_footer_entry keeps the other sections") {
+    for( (h, p, a, f) <- combinations ) {
+      val original = new AmqpMessage(encode(message(h, p, a, f)), null)
+      val rc = original.with_footer_entry("added", "value")
+      rc.getFooterProperty("added") should be ("value")
+      check(rc, h, p, a, f)
+      original.getFooterProperty("added") should be (null)
+
+      // It must still be a valid encoding.
+      val decoded = new AmqpMessage(rc.encoded, null).decoded
+      decoded.getBody.asInstanceOf[AmqpValue].getValue should be ("hello")
+      decoded.getFooter.getValue.get("added") should be ("value")
+      if( f ) {
+        decoded.getFooter.getValue.get(FOOTER_KEY) should be ("broker-1")
+      }
+    }
+  }
+
+  test("with_footer_entry on a decoded message") {
+    val rc = new AmqpMessage(null, message(true, true, true, false)).with_footer_entry("added", "value")
+    rc.getFooterProperty("added") should be ("value")
+    check(new AmqpMessage(rc.encoded, null), true, true, true, false)
+  }
+
+}
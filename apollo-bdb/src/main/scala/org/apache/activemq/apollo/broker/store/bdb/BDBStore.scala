@@ -53,6 +53,8 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   override def toString = "bdb store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(500)
+
+  override def flush_latency_target = config.flush_latency_target.getOrElse(-1L)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
@@ -66,6 +68,7 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   }
 
   protected def _start(on_completed: Task) = {
+    reset_flush_delay
     write_executor = Executors.newFixedThreadPool(1, new ThreadFactory(){
       def newThread(r: Runnable) = {
         val rc = new Thread(r, "bdb store io write")
@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import java.io.File
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtbuf.Buffer
+import org.apache.activemq.apollo.broker._
+import org.apache.activemq.apollo.broker.protocol.RawMessage
+import org.apache.activemq.apollo.dto.{VirtualHostDTO, BrokerDTO}
+import org.apache.activemq.apollo.util.LoggingTracker
+import org.apache.activemq.apollo.util.FileSupport._
+
+/**
+ * <p>
+ * Boots an embedded broker with a single store-less virtual host
+ * and wires a producer route to a set of consumers so that the
+ * offer to dispatch path can be driven from the JMH benchmarks.
+ * </p>
+ */
+class BrokerFixture(val data_directory:File) {
+
+  var broker:Broker = _
+
+  def host = broker.default_virtual_host
+
+  def start:Unit = {
+    broker = new Broker
+    broker.setTmp(data_directory)
+    broker.setConfig({
+      val rc = new BrokerDTO
+      val host = new VirtualHostDTO
+      host.id = "benchmark"
+      host.host_names.add("localhost")
+      rc.virtual_hosts.add(host)
+      rc
+    })
+    val tracker = new LoggingTracker("broker startup")
+    tracker.start(broker)
+    tracker.await
+  }
+
+  def stop:Unit = {
+    val tracker = new LoggingTracker("broker stop")
+    tracker.stop(broker)
+    tracker.await
+    data_directory.recursive_delete
+  }
+
+  /**
+   * Connects a producer to the destination and binds the requested
+   * number of consumers to it.  Use a "queue:" or "topic:" prefixed
+   * destination name.
+   */
+  def route(destination:String, consumer_count:Int, message_size:Int) = {
+    val rc = new RouteFixture(Array(SimpleAddress(destination)), consumer_count, message_size)
+    rc.open
+    rc
+  }
+
+  class RouteFixture(val addresses:Array[SimpleAddress], consumer_count:Int, message_size:Int) {
+
+    val producer_queue = createQueue("benchmark producer")
+    val consumers = (1 to consumer_count).toList.map(i=> new CountingConsumer(createQueue("benchmark consumer "+i)))
+    val payload = new Buffer(message_size)
+
+    val route = new DeliveryProducerRoute(host.router) {
+      override def dispatch_queue = producer_queue
+    }
+
+    def open:Unit = {
+      val bound = new CountDownLatch(consumers.size)
+      consumers.foreach { consumer =>
+        host.dispatch_queue {
+          host.router.bind(addresses, consumer, null) { error =>
+            assert(error.isEmpty, error)
+            bound.countDown
+          }
+        }
+      }
+      await(bound, "consumer bind")
+
+      val connected = new CountDownLatch(1)
+      host.dispatch_queue {
+        val error = host.router.connect(addresses, route, null)
+        assert(error.isEmpty, error)
+        // offers made before the connect is applied just overflow in the route.
+        producer_queue {
+          connected.countDown
+        }
+      }
+      await(connected, "producer connect")
+    }
+
+    def close:Unit = {
+      val closed = new CountDownLatch(1)
+      host.dispatch_queue {
+        host.router.disconnect(addresses, route)
+        consumers.foreach(consumer=> host.router.unbind(addresses, consumer, false, null))
+        closed.countDown
+      }
+      await(closed, "route close")
+    }
+
+    def create_delivery = {
+      val delivery = new Delivery
+      delivery.message = RawMessage(payload)
+      delivery.size = payload.length
+      delivery.sender = addresses.toList
+      delivery
+    }
+
+    /**
+     * Sends count deliveries through the route and blocks until every
+     * consumer has received all of them.
+     */
+    def send(count:Int):Unit = {
+      val received = new CountDownLatch(count * consumers.size)
+      consumers.foreach(_.received = received)
+      producer_queue {
+        var remaining = count
+        val pump = ^{
+          while( remaining > 0 && !route.full ) {
+            route.offer(create_delivery)
+            remaining -= 1
+          }
+        }
+        route.refiller = pump
+        pump.run
+      }
+      await(received, "deliveries")
+    }
+
+    private def await(latch:CountDownLatch, what:String) = {
+      if( !latch.await(30, TimeUnit.SECONDS) ) {
+        throw new IllegalStateException("Timed out waiting for the "+what)
+      }
+    }
+  }
+
+  /**
+   * A consumer which counts down a latch for every delivery it receives
+   * and acks it immediately.
+   */
+  class CountingConsumer(val dispatch_queue:DispatchQueue) extends BaseRetained with DeliveryConsumer {
+
+    @volatile
+    var received:CountDownLatch = _
+
+    override def toString = "benchmark consumer"
+
+    def matches(message:Delivery) = true
+    def is_persistent = false
+
+    def connect(p:DeliveryProducer) = new DeliverySession {
+      def producer = p
+      def consumer = CountingConsumer.this
+
+      var refiller:Task = null
+      var enqueue_item_counter = 0L
+      var enqueue_size_counter = 0L
+      var enqueue_ts = 0L
+
+      def remaining_capacity = Int.MaxValue
+      def full = false
+      def close = {}
+
+      def offer(delivery:Delivery) = {
+        enqueue_item_counter += 1
+        enqueue_size_counter += delivery.size
+        if( delivery.ack!=null ) {
+          delivery.ack(Consumed, null)
+        }
+        received.countDown
+        true
+      }
+    }
+  }
+}
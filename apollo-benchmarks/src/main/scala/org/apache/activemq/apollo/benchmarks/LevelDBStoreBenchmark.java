@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures storing batches of messages and queue entries in
+ * the LevelDB store.  Every unit of work is completed asap, so
+ * the score is in batches (not messages) per unit of time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LevelDBStoreBenchmark {
+
+    @Param({"1", "100"})
+    public int batch;
+
+    @Param({"256", "4096"})
+    public int size;
+
+    private LevelDBStoreFixture store;
+
+    @Setup
+    public void setup() throws Exception {
+        File dir = Files.createTempDirectory("apollo-benchmark").toFile();
+        store = new LevelDBStoreFixture(dir, 500, size);
+        store.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.stop();
+    }
+
+    @Benchmark
+    public void storeBatch() {
+        store.store_batch(batch);
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import java.io.File
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import java.util.concurrent.atomic.AtomicReference
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.Buffer._
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.broker.store.leveldb.LevelDBStore
+import org.apache.activemq.apollo.broker.store.leveldb.dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.util.{sync_cb, LoggingTracker}
+import org.apache.activemq.apollo.util.FileSupport._
+
+/**
+ * <p>
+ * Drives batches of message stores and queue entry enqueues through
+ * a LevelDB store.  Every batch dequeues the entries of the previous
+ * batch so that the journal can be reclaimed while the benchmark runs.
+ * </p>
+ */
+class LevelDBStoreFixture(val directory:File, flush_delay:Long, message_size:Int) {
+
+  var store:LevelDBStore = _
+  var queue_key = 1L
+  var next_seq = 1L
+  var previous_batch = List[QueueEntryRecord]()
+  val payload = new Buffer(message_size)
+
+  def start:Unit = {
+    directory.recursive_delete
+    store = new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = directory
+      rc.flush_delay = flush_delay
+      rc
+    })
+    val tracker = new LoggingTracker("store startup")
+    tracker.start(store)
+    tracker.await
+
+    val added:Boolean = sync_cb(cb=> store.add_queue(QueueRecord(queue_key, ascii("benchmark"), ascii("benchmark")))(cb))
+    assert(added)
+  }
+
+  def stop:Unit = {
+    val tracker = new LoggingTracker("store stop")
+    tracker.stop(store)
+    tracker.await
+  }
+
+  /**
+   * Stores batch_size messages in a single unit of work and
+   * blocks until the unit of work is persisted.
+   */
+  def store_batch(batch_size:Int):Unit = {
+    val uow = store.create_uow("benchmark")
+    previous_batch.foreach(uow.dequeue(_))
+
+    var batch = List[QueueEntryRecord]()
+    for( i <- 0 until batch_size ) {
+      val message = new MessageRecord
+      message.codec = ascii("benchmark")
+      message.buffer = payload
+      message.locator = new AtomicReference[Object]()
+      val message_key = uow.store(message)
+
+      val entry = new QueueEntryRecord
+      entry.queue_key = queue_key
+      entry.entry_seq = next_seq
+      entry.message_key = message_key
+      entry.message_locator = message.locator
+      entry.size = message_size
+      next_seq += 1
+      uow.enqueue(entry)
+      batch ::= entry
+    }
+    previous_batch = batch
+
+    val completed = new CountDownLatch(1)
+    uow.on_complete(completed.countDown)
+    uow.complete_asap
+    uow.release("benchmark")
+    if( !completed.await(30, TimeUnit.SECONDS) ) {
+      throw new IllegalStateException("Timed out waiting for the store")
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.apache.activemq.apollo.util.path.Path;
+import org.apache.activemq.apollo.util.path.PathMap;
+import org.apache.activemq.apollo.util.path.PathParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up the values that match a destination path
+ * in a PathMap populated with a mix of exact and wildcard paths, with
+ * and without the exact path lookup cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathMapBenchmark {
+
+    @Param({"100", "10000"})
+    public int subscriptions;
+
+    @Param({"0", "1000"})
+    public int cache_size;
+
+    private PathMap<String> map;
+    private Path exact;
+    private Path miss;
+
+    @Setup
+    public void setup() {
+        PathParser parser = new PathParser();
+        map = new PathMap<String>(cache_size);
+        for (int i = 0; i < subscriptions; i++) {
+            switch (i % 4) {
+                case 0:
+                    map.put(parser.decode_path("stocks.nasdaq.sym" + i), "exact-" + i);
+                    break;
+                case 1:
+                    map.put(parser.decode_path("stocks.*.sym" + i), "child-" + i);
+                    break;
+                case 2:
+                    map.put(parser.decode_path("stocks.nasdaq.**"), "descendant-" + i);
+                    break;
+                default:
+                    map.put(parser.decode_path("news.region" + i + ".**"), "other-" + i);
+                    break;
+            }
+        }
+        exact = parser.decode_path("stocks.nasdaq.sym" + (subscriptions / 2));
+        miss = parser.decode_path("weather.europe.paris");
+    }
+
+    @Benchmark
+    public Object matchingPath() {
+        return map.get(exact);
+    }
+
+    @Benchmark
+    public Object nonMatchingPath() {
+        return map.get(miss);
+    }
+
+}
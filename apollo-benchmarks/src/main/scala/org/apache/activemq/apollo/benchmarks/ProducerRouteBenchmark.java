@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the producer route offer path on its own.  Run it with
+ * <code>-prof gc</code> and check <code>gc.alloc.rate.norm</code>: a non-acked
+ * delivery should only allocate the delivery the benchmark creates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProducerRouteBenchmark {
+
+    static final int BATCH = 1000;
+
+    @Param({"1", "4"})
+    public int consumers;
+
+    @Param({"false", "true"})
+    public boolean acked;
+
+    private ProducerRouteFixture route;
+
+    @Setup
+    public void setup() {
+        route = new ProducerRouteFixture(consumers, acked);
+        route.open();
+    }
+
+    @TearDown
+    public void tearDown() {
+        route.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void offer() {
+        route.send(BATCH);
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtbuf.Buffer
+import org.apache.activemq.apollo.broker._
+import org.apache.activemq.apollo.broker.store.StoreUOW
+import org.apache.activemq.apollo.broker.protocol.RawMessage
+
+/**
+ * <p>
+ * Drives a producer route which is bound directly to consumers that
+ * accept and ack every delivery inline, so that only the cost of the
+ * route's offer path is measured.  No broker is started.
+ * </p>
+ */
+class ProducerRouteFixture(consumer_count:Int, acked:Boolean) {
+
+  val producer_queue = createQueue("benchmark producer")
+  val message = RawMessage(new Buffer(256))
+  val consumers = (1 to consumer_count).toList.map(i=> new InlineConsumer(producer_queue))
+
+  var acks = 0L
+  val ack = (result:DeliveryResult, uow:StoreUOW) => {
+    acks += 1
+  }
+
+  val route = new DeliveryProducerRoute(null) {
+    override def dispatch_queue = producer_queue
+    override protected def owns_offered_deliveries = true
+  }
+
+  def open:Unit = {
+    producer_queue {
+      route.bind(consumers, ()=>{})
+      route.connected()
+    }
+    // The bind and connect get applied asynchronously on the producer queue.
+    while( !sync(route.is_connected && route.targets.size == consumer_count) ) {
+      Thread.sleep(1)
+    }
+  }
+
+  def close:Unit = {
+    sync(route.unbind(consumers))
+  }
+
+  /**
+   * Offers count deliveries to the route from its dispatch queue.
+   */
+  def send(count:Int):Unit = {
+    sync {
+      var i = 0
+      while( i < count ) {
+        val delivery = new Delivery
+        delivery.message = message
+        delivery.size = message.payload.length
+        if( acked ) {
+          delivery.ack = ack
+        }
+        route.offer(delivery)
+        i += 1
+      }
+    }
+  }
+
+  private def sync[T](func: =>T):T = {
+    val done = new CountDownLatch(1)
+    var rc:Option[T] = None
+    producer_queue {
+      rc = Some(func)
+      done.countDown
+    }
+    if( !done.await(30, TimeUnit.SECONDS) ) {
+      throw new IllegalStateException("Timed out waiting on the producer queue")
+    }
+    rc.get
+  }
+
+  /**
+   * A consumer which accepts and acks every delivery on the offering thread.
+   */
+  class InlineConsumer(val dispatch_queue:DispatchQueue) extends BaseRetained with DeliveryConsumer {
+
+    override def toString = "benchmark consumer"
+
+    def matches(message:Delivery) = true
+    def is_persistent = false
+
+    def connect(p:DeliveryProducer) = new DeliverySession {
+      def producer = p
+      def consumer = InlineConsumer.this
+
+      var refiller:Task = null
+      var enqueue_item_counter = 0L
+      var enqueue_size_counter = 0L
+      var enqueue_ts = 0L
+
+      def remaining_capacity = Int.MaxValue
+      def full = false
+      def close = {}
+
+      def offer(delivery:Delivery) = {
+        enqueue_item_counter += 1
+        enqueue_size_counter += delivery.size
+        if( delivery.ack!=null ) {
+          delivery.ack(Consumed, null)
+        }
+        true
+      }
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.FilterException;
+import org.apache.activemq.apollo.filter.Filterable;
+import org.apache.activemq.apollo.selector.SelectorParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures evaluating parsed and compiled selectors against a message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectorBenchmark {
+
+    @Param({
+        "color = 'red'",
+        "color = 'blue' AND weight > 10",
+        "region IN ('us', 'eu', 'apac') OR price BETWEEN 1.5 AND 100",
+        "name LIKE 'order-%' AND NOT (priority < 4)"
+    })
+    public String selector;
+
+    @Param({"false", "true"})
+    public boolean compiled;
+
+    private BooleanExpression expression;
+    private Filterable message;
+
+    static class BenchmarkMessage implements Filterable {
+        final HashMap<String, Object> properties = new HashMap<String, Object>();
+
+        public <T> T getBodyAs(Class<T> type) throws FilterException {
+            return null;
+        }
+
+        public Object getProperty(String name) {
+            return properties.get(name);
+        }
+
+        public Object getLocalConnectionId() {
+            return null;
+        }
+    }
+
+    @Setup
+    public void setup() throws FilterException {
+        BenchmarkMessage m = new BenchmarkMessage();
+        m.properties.put("color", "blue");
+        m.properties.put("weight", 12);
+        m.properties.put("region", "apac");
+        m.properties.put("price", 42.0d);
+        m.properties.put("name", "order-1234");
+        m.properties.put("priority", 4);
+        message = m;
+        expression = compiled ? SelectorParser.compile(selector) : SelectorParser.parse(selector);
+    }
+
+    @Benchmark
+    public boolean matches() throws FilterException {
+        return expression.matches(message);
+    }
+
+}
@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a STOMP frame into a store record and
+ * decoding it back again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompCodecBenchmark {
+
+    @Param({"4", "32"})
+    public int headers;
+
+    @Param({"256", "16384"})
+    public int size;
+
+    private StompCodecFixture fixture;
+
+    @Setup
+    public void setup() {
+        fixture = new StompCodecFixture(headers, size);
+    }
+
+    @Benchmark
+    public Object encode() {
+        return fixture.encode();
+    }
+
+    @Benchmark
+    public Object decode() {
+        return fixture.decode();
+    }
+
+    @Benchmark
+    public Object decodeAndGetProperty() {
+        return fixture.decode_and_get_property();
+    }
+
+}
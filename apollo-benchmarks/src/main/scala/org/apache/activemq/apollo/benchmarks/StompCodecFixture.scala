@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import org.fusesource.hawtbuf.{AsciiBuffer, Buffer}
+import org.fusesource.hawtbuf.Buffer._
+import org.apache.activemq.apollo.stomp._
+import org.apache.activemq.apollo.stomp.Stomp._
+import org.apache.activemq.apollo.broker.store.MessageRecord
+
+/**
+ * <p>
+ * Builds a STOMP MESSAGE frame with the requested number of
+ * headers and body size so that the codec can be exercised
+ * from the JMH benchmarks.
+ * </p>
+ */
+class StompCodecFixture(header_count:Int, body_size:Int) {
+
+  val headers:List[(AsciiBuffer, AsciiBuffer)] = (DESTINATION, ascii("/queue/benchmark")) ::
+    (MESSAGE_ID, ascii("ID:benchmark-1")) ::
+    (1 to header_count).toList.map(i=> (ascii("header-"+i), ascii("value-"+i)))
+
+  val body = new Buffer(body_size)
+  java.util.Arrays.fill(body.data, 'x'.toByte)
+
+  val frame = StompFrame(MESSAGE, headers, BufferContent(body))
+  val message = StompFrameMessage(frame)
+  val record:MessageRecord = StompCodec.encode(message)
+
+  /**
+   * The name of a header which is located at the end of the
+   * header list.
+   */
+  val last_header = "header-"+header_count
+
+  def encode:MessageRecord = StompCodec.encode(message)
+
+  /**
+   * decode_frame consumes the buffer it's given, so every
+   * invocation decodes from a fresh view of the encoded record.
+   */
+  def decode:StompFrame = StompCodec.decode_frame(new Buffer(record.buffer), null, false)
+
+  def decode_and_get_property:AnyRef = StompCodec.decode(copy(record)).getProperty(last_header)
+
+  private def copy(record:MessageRecord) = {
+    val rc = new MessageRecord
+    rc.codec = record.codec
+    rc.buffer = new Buffer(record.buffer)
+    rc
+  }
+}
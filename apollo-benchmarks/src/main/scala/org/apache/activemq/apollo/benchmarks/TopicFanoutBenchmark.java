@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the producer route offer to consumer dispatch path
+ * of a topic which fans each message out to every consumer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicFanoutBenchmark {
+
+    static final int BATCH = 1000;
+
+    @Param({"1", "10", "100"})
+    public int consumers;
+
+    @Param({"256", "4096"})
+    public int size;
+
+    private BrokerFixture broker;
+    private BrokerFixture.RouteFixture route;
+
+    @Setup
+    public void setup() throws Exception {
+        File dir = Files.createTempDirectory("apollo-benchmark").toFile();
+        broker = new BrokerFixture(dir);
+        broker.start();
+        route = broker.route("topic:benchmark", consumers, size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        route.close();
+        broker.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void fanout() {
+        route.send(BATCH);
+    }
+
+}
@@ -236,7 +236,7 @@ case class DurableSubscriptionQueueBinding(binding_data:Buffer, address:Subscrip
     if ( address.selector==null ) {
       ConstantExpression.TRUE
     } else {
-      SelectorParser.parse(address.selector)
+      SelectorParser.compile(address.selector)
     }
   }
 
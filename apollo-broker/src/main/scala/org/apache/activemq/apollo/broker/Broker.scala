@@ -325,6 +325,25 @@ class Broker() extends BaseService with SecuredResource with PluginStateSupport
 
   val connection_id_counter = new LongCounter
 
+  // Track how long messages wait in the queues of the broker before they are first
+  // dispatched.  Each queue records into its own histogram, they only get merged
+  // when the broker wide latency is read.
+  val queue_dispatch_latency_counters = java.util.Collections.newSetFromMap(new java.util.concurrent.ConcurrentHashMap[HistogramCounter, java.lang.Boolean]())
+  // The dispatch latencies of the queues which were destroyed.
+  val dead_dispatch_latency_counter = new HistogramCounter
+
+  def dispatch_latency:HistogramMetric = {
+    queue_dispatch_latency_counters.foldLeft(dead_dispatch_latency_counter(false)) { (rc, counter) =>
+      rc + counter(false)
+    }
+  }
+
+  // The stage latencies of the messages sampled by all the queues of the broker.
+  val stage_latency_counters = new StageLatencyCounters
+
+  // The authentication metrics of the broker's and the virtual hosts' authenticators.
+  val authentication_metrics = new AuthenticationMetrics
+
   var key_storage:KeyStorage = _
 
   var web_server:WebServer = _
@@ -498,7 +517,7 @@ class Broker() extends BaseService with SecuredResource with PluginStateSupport
     }
 
     if (config.authentication != null && config.authentication.enabled.getOrElse(true)) {
-      authenticator = new JaasAuthenticator(config.authentication, security_log)
+      authenticator = new JaasAuthenticator(config.authentication, security_log, authentication_metrics)
       authorizer=Authorizer(this)
     } else {
       authenticator = null
@@ -0,0 +1,291 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util._
+import scala.collection.mutable.{ListBuffer, HashMap}
+
+/**
+ * <p>
+ * Periodically invoked on the router's dispatch queue to re-balance
+ * which threads service the producers, destinations and consumers
+ * of a virtual host.
+ * </p>
+ */
+trait ConnectionRegroupStrategy {
+  def regroup(router:LocalRouter):Unit
+}
+
+object ConnectionRegroupStrategy extends Log {
+
+  /**
+   * Creates the strategy configured by the regroup_connections attribute
+   * of a virtual host.  Returns None if connections should not get
+   * regrouped.
+   */
+  def create(kind:String):Option[ConnectionRegroupStrategy] = kind match {
+    case null => None
+    case "false" => None
+    case "true" => Some(new FirstConsumerRegroupStrategy)
+    case "first_consumer" => Some(new FirstConsumerRegroupStrategy)
+    case "rate" => Some(new RateRegroupStrategy)
+    case kind =>
+      try {
+        Some(Broker.class_loader.loadClass(kind).newInstance().asInstanceOf[ConnectionRegroupStrategy])
+      } catch {
+        case e:Throwable =>
+          warn(e, "Could not create the connection regroup strategy: %s", kind)
+          None
+      }
+  }
+}
+
+/**
+ * <p>
+ * Collocates every topic producer onto the first consumer's thread
+ * and every queue onto the first subscription's thread.
+ * </p>
+ */
+class FirstConsumerRegroupStrategy extends ConnectionRegroupStrategy {
+
+  def regroup(router:LocalRouter) = {
+
+    // For the topics, just collocate the producers onto the first consumer's thread.
+    router.local_topic_domain.destinations.foreach { node =>
+
+      node.consumers.keys.headOption.foreach{ consumer =>
+        node.producers.keys.foreach { r=>
+          r.collocate(consumer.dispatch_queue)
+        }
+      }
+    }
+
+    router.local_queue_domain.destinations.foreach { queue=>
+      queue.dispatch_queue {
+
+        // Collocate the queue's with the first consumer
+        queue.all_subscriptions.headOption.map( _._1 ).foreach { consumer=>
+          queue.collocate( consumer.dispatch_queue )
+        }
+
+        // Collocate all the producers with the queue..
+        queue.inbound_sessions.foreach { session =>
+          session.producer.collocate( queue.dispatch_queue )
+        }
+      }
+    }
+  }
+}
+
+/**
+ * <p>
+ * Samples the message rates of all the delivery sessions between two
+ * regroup passes, groups the producers, destinations and consumers
+ * which exchange messages into flow partitions and then spreads
+ * those partitions over the dispatch threads so that every thread
+ * gets a similar share of the message load.
+ * </p>
+ *
+ * <p>
+ * Like the first consumer strategy, only producers and queues get
+ * collocated, the consumers stay on their threads.  A partition is moved
+ * to the thread of one of it's consumers, and it stays on the thread it is
+ * currently on as long as that does not overload the thread, so a steady
+ * load does not cause connections to get moved around on every pass.
+ * </p>
+ */
+class RateRegroupStrategy extends ConnectionRegroupStrategy with Log {
+
+  /**
+   * Messages sent by a producer to the target dispatch queue.  If the target
+   * is a queue, target_producer is the queue so that it can get collocated.
+   */
+  case class Flow(source:DeliveryProducer, target:DispatchQueue, target_producer:DeliveryProducer)
+  case class Sample(flow:Flow, session:DeliverySession, counter:Long)
+
+  /**
+   * How much over the average thread load a thread can get
+   * before partitions get moved off it.
+   */
+  var overload_factor = 1.25
+
+  var previous_counters = HashMap[DeliverySession, Long]()
+  var sampling = false
+
+  def regroup(router:LocalRouter):Unit = {
+    if( sampling ) {
+      return
+    }
+    sampling = true
+
+    val samples = ListBuffer[Sample]()
+
+    // Topic producers deliver directly to the topic consumers, so
+    // the proxy sessions hold the producer to consumer message counts.
+    router.local_topic_domain.destinations.foreach { topic =>
+      topic.proxy_sessions.foreach { session =>
+        session match {
+          case session:Topic#ProxyConsumerSession =>
+            samples += Sample(Flow(session.producer, session.consumer.dispatch_queue, null), session, session.enqueue_item_counter)
+          case _ =>
+        }
+      }
+    }
+
+    // Queue state has to be sampled on the queue's thread.
+    val queues = router.local_queue_domain.destinations.toList
+    var remaining = queues.size
+    def sampled = {
+      remaining -= 1
+      if( remaining <= 0 ) {
+        sampling = false
+        balance(rates(router, samples.toList), Dispatch.getThreadQueues(DispatchPriority.DEFAULT))
+      }
+    }
+
+    if( queues.isEmpty ) {
+      remaining = 1
+      sampled
+    }
+
+    queues.foreach { queue =>
+      queue.dispatch_queue {
+        val rc = ListBuffer[Sample]()
+        queue.inbound_sessions.foreach { session =>
+          rc += Sample(Flow(session.producer, queue.dispatch_queue, queue), session, session.enqueue_item_counter)
+        }
+        queue.all_subscriptions.foreach { case (consumer, sub) =>
+          val session = sub.session
+          if( session!=null ) {
+            rc += Sample(Flow(queue, consumer.dispatch_queue, null), session, session.enqueue_item_counter)
+          }
+        }
+        router.dispatch_queue {
+          samples ++= rc
+          sampled
+        }
+      }
+    }
+  }
+
+  /**
+   * Works out how many messages each flow moved since the last pass.
+   */
+  def rates(router:LocalRouter, samples:List[Sample]):List[(Flow, Long)] = {
+    val counters = HashMap[DeliverySession, Long]()
+    val rc = samples.flatMap { sample =>
+      counters.put(sample.session, sample.counter)
+      val rate = previous_counters.get(sample.session).map(sample.counter - _).getOrElse(0L)
+      if( rate > 0 && movable(router, sample.flow.source.dispatch_queue) && movable(router, sample.flow.target) ) {
+        Some((sample.flow, rate))
+      } else {
+        None
+      }
+    }
+    previous_counters = counters
+    rc
+  }
+
+  def balance(rates:List[(Flow, Long)], threads:Array[DispatchQueue]):Unit = {
+    if( rates.isEmpty || threads.length < 2 ) {
+      return
+    }
+
+    // The producers which can be collocated, by their dispatch queue.
+    val producers = HashMap[DispatchQueue, ListBuffer[DeliveryProducer]]()
+    def add_producer(producer:DeliveryProducer) = {
+      val list = producers.getOrElseUpdate(producer.dispatch_queue, ListBuffer())
+      if( !list.exists(_ eq producer) ) {
+        list += producer
+      }
+    }
+
+    // Union the two ends of every active flow to find the partitions.
+    val parents = HashMap[DispatchQueue, DispatchQueue]()
+    def find(node:DispatchQueue):DispatchQueue = {
+      val parent = parents.getOrElseUpdate(node, node)
+      if( parent eq node ) {
+        node
+      } else {
+        val rc = find(parent)
+        parents.put(node, rc)
+        rc
+      }
+    }
+    rates.foreach { case (flow, rate) =>
+      add_producer(flow.source)
+      if( flow.target_producer!=null ) {
+        add_producer(flow.target_producer)
+      }
+      val source = find(flow.source.dispatch_queue)
+      val target = find(flow.target)
+      if( source ne target ) {
+        parents.put(source, target)
+      }
+    }
+
+    val members = HashMap[DispatchQueue, ListBuffer[DispatchQueue]]()
+    parents.keys.foreach { node =>
+      members.getOrElseUpdate(find(node), ListBuffer()) += node
+    }
+    val loads = HashMap[DispatchQueue, Long]()
+    rates.foreach { case (flow, rate) =>
+      val root = find(flow.target)
+      loads.put(root, loads.getOrElse(root, 0L) + rate)
+    }
+
+    def thread_of(node:DispatchQueue) = threads.indexWhere(_ eq node.getTargetQueue)
+
+    // Greedily hand out the heaviest partitions first.
+    val thread_loads = new Array[Long](threads.length)
+    val limit = ((loads.values.sum.toDouble / threads.length) * overload_factor).toLong
+    loads.toList.sortBy(-_._2).foreach { case (root, load) =>
+      val nodes = members(root)
+
+      // The partition can only move to the thread of a member which is not
+      // getting collocated, unless all of them are.
+      val fixed = nodes.filterNot(producers.contains(_))
+      val anchors = (if( fixed.isEmpty ) nodes else fixed).filter(thread_of(_) >= 0)
+      if( !anchors.isEmpty ) {
+        val candidates = anchors.map(thread_of(_)).distinct
+        val current = nodes.groupBy(thread_of(_)).filter(_._1 >= 0).toList.sortBy(-_._2.size).headOption.map(_._1)
+
+        val thread = current match {
+          case Some(i) if candidates.contains(i) && thread_loads(i) + load <= limit => i
+          case _ => candidates.minBy(thread_loads(_))
+        }
+        thread_loads(thread) += load
+
+        val anchor = anchors.find(thread_of(_) == thread).get
+        nodes.foreach { node =>
+          producers.get(node).foreach { list =>
+            list.foreach(_.collocate(anchor))
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The virtual host's own queue and the consumers which don't
+   * have a queue of their own stay where they are.
+   */
+  def movable(router:LocalRouter, queue:DispatchQueue) = {
+    queue!=null && (queue ne router.dispatch_queue)
+  }
+}
@@ -21,7 +21,10 @@ import org.apache.activemq.apollo.broker.protocol.{ProtocolFactory, Protocol}
 import org.fusesource.hawtdispatch.transport._
 import org.apache.activemq.apollo.util._
 import org.apache.activemq.apollo.util.OptionSupport._
-import java.net.SocketAddress
+import java.net.{InetSocketAddress, SocketAddress}
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import collection.mutable.HashMap
 import org.apache.activemq.apollo.util.{Log, ClassFinder}
 import org.apache.activemq.apollo.dto._
 import security.SecuredResource
@@ -145,6 +148,9 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
     result.state_since = service_state.since
     result.connection_counter = accepted.get
     result.connected = connected.get
+    result.queued = accept_queue.size
+    result.queued_counter = queued_counter
+    result.rejected_counter = rejected_counter
     result.protocol = Option(config.protocol).getOrElse("any")
     result.local_address = Option(socket_address).map(_.toString).getOrElse("any")
 
@@ -174,6 +180,28 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
     }
 
     def onAccept(transport: Transport): Unit = {
+      transport match {
+        case transport:TcpTransport =>
+          if( !admit_source(transport) ) {
+            debug("Rejecting connection from %s, it is connecting too often.", transport.getRemoteAddress)
+            reject(transport)
+          } else if( accept_limiter==null || (accept_queue.isEmpty && !at_connection_limit && accept_limiter.try_acquire()) ) {
+            start_connection(transport)
+          } else if( accept_queue.size < accept_queue_size ) {
+            queued_counter += 1
+            accept_queue.add(transport)
+            schedule_accept_queue_drain
+          } else {
+            debug("Rejecting connection from %s, the accept queue is full.", transport.getRemoteAddress)
+            reject(transport)
+          }
+        case _ =>
+          // We can't close other kinds of transports before they are started.
+          start_connection(transport)
+      }
+    }
+
+    def start_connection(transport: Transport): Unit = {
       if( protocol!=null ) {
         transport.setProtocolCodec(protocol.createProtocolCodec(AcceptingConnector.this))
       }
@@ -212,6 +240,65 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
     connected.get >= config.connection_limit.getOrElse(Integer.MAX_VALUE)
   }
 
+  //
+  // Admission control, so that clients all reconnecting at once after an outage
+  // don't have the broker thrashing in TLS handshakes and authentications.  The
+  // connections accepted faster than the accept_rate wait in the accept queue
+  // before they get started.
+  //
+  var accept_limiter:TokenBucket = _
+  var accept_queue_size = 0
+  val accept_queue = new java.util.LinkedList[TcpTransport]()
+  var accept_queue_drain_scheduled = false
+  var source_accept_rate = 0
+  val source_limiters = HashMap[String, TokenBucket]()
+  var last_source_limiters_purge = 0L
+  var queued_counter = 0L
+  var rejected_counter = 0L
+  var admission_ver = 0
+
+  def admit_source(transport:TcpTransport):Boolean = {
+    if( source_accept_rate <= 0 ) {
+      return true
+    }
+    val now = System.nanoTime()
+    // Forget about the hosts which have not connected for a while.
+    if( now - last_source_limiters_purge > TimeUnit.SECONDS.toNanos(1) ) {
+      last_source_limiters_purge = now
+      source_limiters.retain((_, limiter) => !limiter.is_full(now))
+    }
+    val host = transport.getRemoteAddress match {
+      case address:InetSocketAddress if address.getAddress!=null => address.getAddress.getHostAddress
+      case address => String.valueOf(address)
+    }
+    source_limiters.getOrElseUpdate(host, new TokenBucket(source_accept_rate, source_accept_rate, now)).try_acquire(now)
+  }
+
+  def reject(transport:TcpTransport) = {
+    rejected_counter += 1
+    try {
+      transport.getSocketChannel.close()
+    } catch {
+      case e:IOException =>
+    }
+  }
+
+  def schedule_accept_queue_drain:Unit = {
+    if( !accept_queue_drain_scheduled && !accept_queue.isEmpty && !at_connection_limit ) {
+      accept_queue_drain_scheduled = true
+      val ver = admission_ver
+      dispatch_queue.after(accept_limiter.delay() max 1000000L, TimeUnit.NANOSECONDS) {
+        if( ver == admission_ver ) {
+          accept_queue_drain_scheduled = false
+          while( !accept_queue.isEmpty && !at_connection_limit && accept_limiter.try_acquire() ) {
+            BrokerAcceptListener.start_connection(accept_queue.removeFirst())
+          }
+          schedule_accept_queue_drain
+        }
+      }
+    }
+  }
+
   /**
    */
   def update(config: ConnectorTypeDTO, on_completed:Task) = dispatch_queue {
@@ -240,6 +327,16 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
 
     accepted.set(0)
     connected.set(0)
+    queued_counter = 0
+    rejected_counter = 0
+    admission_ver += 1
+    accept_queue_drain_scheduled = false
+    accept_limiter = config.accept_rate.filter(_ > 0).map { rate =>
+      new TokenBucket(rate, config.accept_burst.getOrElse(rate).max(1))
+    }.getOrElse(null)
+    accept_queue_size = config.accept_queue_size.getOrElse(1000)
+    source_accept_rate = config.source_accept_rate.getOrElse(0)
+    source_limiters.clear()
     protocol = ProtocolFactory.get(config.protocol.getOrElse("any")).get
     transport_server = TransportFactory.bind( config.bind )
     transport_server.setDispatchQueue(dispatch_queue)
@@ -304,6 +401,10 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
   }
 
   override def _stop(on_completed:Task): Unit = {
+    admission_ver += 1
+    while( !accept_queue.isEmpty ) {
+      reject(accept_queue.removeFirst())
+    }
     transport_server.stop(^{
       broker.console_log.info("Stopped connector at: "+config.bind)
       transport_server = null
@@ -330,6 +431,9 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
       if( at_limit ) {
         transport_server.resume
       }
+      if( accept_limiter!=null ) {
+        schedule_accept_queue_drain
+      }
     }
   }
 
@@ -125,6 +125,52 @@ trait Message extends Filterable with Retained {
   def encoded:Buffer = codec.encode(this).buffer
 
   def message_group: String = null
+
+  @volatile
+  private var encodings:Map[AnyRef, AnyRef] = null
+
+  /**
+   * Returns the encoding of this message identified by the key, creating it
+   * on first use.  Since a topic hands the same message to all of its
+   * consumers, the consumers of a protocol which use the same key share one
+   * conversion of the message instead of each doing it again.  The key should
+   * hold everything the encoding depends on, like the target protocol, its
+   * version and options, and compare by value so that the consumers of
+   * different connections can share it.  At most Message.MAX_ENCODINGS
+   * encodings are kept, the others get created every time.
+   */
+  def encoding[T <: AnyRef](key:AnyRef)(create: =>T):T = {
+    val cached = encodings
+    if( cached!=null ) {
+      val rc = cached.get(key)
+      if( rc.isDefined ) {
+        return rc.get.asInstanceOf[T]
+      }
+      if( cached.size >= Message.MAX_ENCODINGS ) {
+        return create
+      }
+    }
+    this.synchronized {
+      val current = if( encodings==null ) Map[AnyRef, AnyRef]() else encodings
+      current.get(key) match {
+        case Some(rc) => rc.asInstanceOf[T]
+        case None =>
+          val rc = create
+          if( current.size < Message.MAX_ENCODINGS ) {
+            encodings = current + (key -> rc)
+          }
+          rc
+      }
+    }
+  }
+}
+
+object Message {
+  /**
+   * The most encodings a message keeps, they hold on to a copy of the
+   * body which is not accounted for in the delivery size.
+   */
+  val MAX_ENCODINGS = 4
 }
 
 /**
@@ -242,6 +288,11 @@ class Delivery {
    */
   var retain:RetainAction = RetainIgnore
 
+  /**
+   * The stage timestamps of the delivery if it was picked as a latency sample.
+   */
+  var trace:LatencyTrace = null
+
 
   def copy() = (new Delivery).set(this)
 
@@ -257,6 +308,7 @@ class Delivery {
     storeLocator = other.storeLocator
     redeliveries = other.redeliveries
     retain = other.retain
+    trace = other.trace
     this
   }
 
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.HistogramCounter
+import org.apache.activemq.apollo.dto.DestMetricsDTO
+import DestinationMetricsSupport._
+
+/**
+ * Histograms of how long sampled messages spend in each stage between
+ * a producer sending them and a consumer's transport getting them.
+ * The latencies also get recorded in the parent's histograms.
+ */
+class StageLatencyCounters(val parent:StageLatencyCounters=null) {
+
+  // from the protocol decoding the message to the router accepting it.
+  val route = new HistogramCounter
+  // from the router to the destination enqueuing it.
+  val enqueue = new HistogramCounter
+  // from the destination enqueuing it to the store flushing it.
+  val store = new HistogramCounter
+  // from the destination enqueuing it to a subscription accepting it.
+  val subscription = new HistogramCounter
+  // from the subscription to the consumer's transport.
+  val transport = new HistogramCounter
+
+  def record(stage:(StageLatencyCounters)=>HistogramCounter, latency:Long):Unit = {
+    stage(this) += latency
+    if( parent!=null ) {
+      parent.record(stage, latency)
+    }
+  }
+
+  def fill(rc:DestMetricsDTO) = {
+    rc.route_latency = to_time_metric_dto(route(false))
+    rc.enqueue_latency = to_time_metric_dto(enqueue(false))
+    rc.store_latency = to_time_metric_dto(store(false))
+    rc.subscription_latency = to_time_metric_dto(subscription(false))
+    rc.transport_latency = to_time_metric_dto(transport(false))
+  }
+}
+
+/**
+ * The System.nanoTime timestamps of a sampled message as it goes through
+ * the broker.  decoded is 0 if the protocol did not time stamp the
+ * message.  Each destination which enqueues the message gets its own copy
+ * of the trace, so the later stages get recorded in its counters.
+ */
+case class LatencyTrace(decoded:Long, routed:Long=0, enqueued:Long=0, dispatched:Long=0, counters:StageLatencyCounters=null) {
+
+  def route = copy(routed = System.nanoTime)
+
+  def enqueue(counters:StageLatencyCounters) = {
+    val now = System.nanoTime
+    if( routed!=0 ) {
+      if( decoded!=0 ) {
+        counters.record(_.route, routed - decoded)
+      }
+      counters.record(_.enqueue, now - routed)
+    }
+    copy(enqueued = now, counters = counters)
+  }
+
+  def flushed = {
+    if( counters!=null ) {
+      counters.record(_.store, System.nanoTime - enqueued)
+    }
+  }
+
+  def dispatch = {
+    if( counters!=null ) {
+      val now = System.nanoTime
+      counters.record(_.subscription, now - enqueued)
+      copy(dispatched = now)
+    } else {
+      this
+    }
+  }
+
+  def written = {
+    if( counters!=null && dispatched!=0 ) {
+      counters.record(_.transport, System.nanoTime - dispatched)
+    }
+  }
+}
@@ -32,6 +32,50 @@ import java.util.concurrent.atomic.AtomicInteger
 
 object DestinationMetricsSupport {
 
+  def to_time_metric_dto(m:HistogramMetric) = {
+    val rc = new TimeMetricDTO
+    rc.count = m.count
+    rc.total = m.total
+    rc.min = m.min
+    rc.max = m.max
+    rc.p50 = m.p50
+    rc.p90 = m.p90
+    rc.p99 = m.p99
+    rc.p999 = m.p999
+    rc
+  }
+
+  /**
+   * Percentiles can't be combined exactly, so an aggregate reports
+   * the highest percentiles of the aggregated destinations.
+   */
+  def add_time_metric(to:TimeMetricDTO, from:TimeMetricDTO):TimeMetricDTO = {
+    if( from == null || from.count == 0 ) {
+      to
+    } else if( to == null || to.count == 0 ) {
+      val rc = new TimeMetricDTO
+      rc.count = from.count
+      rc.total = from.total
+      rc.min = from.min
+      rc.max = from.max
+      rc.p50 = from.p50
+      rc.p90 = from.p90
+      rc.p99 = from.p99
+      rc.p999 = from.p999
+      rc
+    } else {
+      to.count += from.count
+      to.total += from.total
+      to.min = to.min min from.min
+      to.max = to.max max from.max
+      to.p50 = to.p50 max from.p50
+      to.p90 = to.p90 max from.p90
+      to.p99 = to.p99 max from.p99
+      to.p999 = to.p999 max from.p999
+      to
+    }
+  }
+
   def clear_non_counters(metrics:DestMetricsDTO) = {
     metrics.queue_items = 0
     metrics.queue_size = 0
@@ -81,6 +125,13 @@ object DestinationMetricsSupport {
     to.swapped_in_items += from.swapped_in_items
     to.swapped_in_size += from.swapped_in_size
     to.swapped_in_size_max += from.swapped_in_size_max
+
+    to.dispatch_latency = add_time_metric(to.dispatch_latency, from.dispatch_latency)
+    to.route_latency = add_time_metric(to.route_latency, from.route_latency)
+    to.enqueue_latency = add_time_metric(to.enqueue_latency, from.enqueue_latency)
+    to.store_latency = add_time_metric(to.store_latency, from.store_latency)
+    to.subscription_latency = add_time_metric(to.subscription_latency, from.subscription_latency)
+    to.transport_latency = add_time_metric(to.transport_latency, from.transport_latency)
   }
 
 }
@@ -158,6 +209,9 @@ object LocalRouter extends Log {
 
   val destination_parser = new DestinationParser
 
+  // How many path lookups the destination, consumer and producer maps cache.
+  val PATH_CACHE_SIZE = 10000
+
   def is_wildcard_destination(id:String) = {
     if( id == null ) {
       true
@@ -211,6 +265,7 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
   import LocalRouter._
 
   val router_listeners = RouterListenerFactory.create(this)
+  val retained_messages = new RetainedMessages(this)
 
   def dispatch_queue:DispatchQueue = virtual_host.dispatch_queue
 
@@ -246,12 +301,12 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     // holds all the destinations in the domain by id
     var destination_by_id = LinkedHashMap[String, D]()
     // holds all the destinations in the domain by path
-    var destination_by_path = new PathMap[D]()
+    var destination_by_path = new PathMap[D](PATH_CACHE_SIZE)
     // Can store consumers on wild cards paths
 
     val consumers = HashMap[DeliveryConsumer, ConsumerContext[D]]()
-    val consumers_by_path = new PathMap[(ConsumerContext[D], BindAddress)]()
-    val producers_by_path = new PathMap[ProducerContext]()
+    val consumers_by_path = new PathMap[(ConsumerContext[D], BindAddress)](PATH_CACHE_SIZE)
+    val producers_by_path = new PathMap[ProducerContext](PATH_CACHE_SIZE)
 
     def destinations:Iterable[D] = JavaConversions.collectionAsScalaIterable(destination_by_path.get(ALL))
 
@@ -917,8 +972,9 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
       }
     }
 
-    import OptionSupport._
-    if(virtual_host.config.regroup_connections.getOrElse(false)) {
+    retained_messages.cache_size_max = MemoryPropertyEditor.parse(Option(virtual_host.config.retained_cache_size).getOrElse("10m"))
+    regroup_strategy = ConnectionRegroupStrategy.create(virtual_host.config.regroup_connections)
+    if(regroup_strategy.isDefined) {
       schedule_connection_regroup
     }
 
@@ -962,6 +1018,7 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
 
   protected def _stop(on_completed: Task) = {
     queues_by_store_id.valuesIterator.foreach { queue=>
+      virtual_host.broker.queue_dispatch_latency_counters.remove(queue.dispatch_latency_counter)
       queue.stop(NOOP)
     }
     on_queues_destroyed_actions ::= ^{
@@ -971,6 +1028,8 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
   }
 
 
+  var regroup_strategy:Option[ConnectionRegroupStrategy] = None
+
   // Try to periodically re-balance connections so that consumers/producers
   // are grouped onto the same thread.
   def schedule_connection_regroup:Unit = dispatch_queue.after(1, TimeUnit.SECONDS) {
@@ -981,42 +1040,7 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
   }
 
   def connection_regroup = {
-    // this should really be much more fancy.  It should look at the messaging
-    // rates between producers and consumers, look for natural data flow partitions
-    // and then try to equally divide the load over the available processing
-    // threads/cores.
-
-
-
-    // For the topics, just collocate the producers onto the first consumer's thread.
-    local_topic_domain.destinations.foreach { node =>
-
-      node.consumers.keys.headOption.foreach{ consumer =>
-        node.producers.keys.foreach { r=>
-          r.collocate(consumer.dispatch_queue)
-        }
-      }
-    }
-
-
-    local_queue_domain.destinations.foreach { queue=>
-      queue.dispatch_queue {
-
-        // Collocate the queue's with the first consumer
-        // TODO: change this so it collocates with the fastest consumer.
-
-        queue.all_subscriptions.headOption.map( _._1 ).foreach { consumer=>
-          queue.collocate( consumer.dispatch_queue )
-        }
-
-        // Collocate all the producers with the queue..
-
-        queue.inbound_sessions.foreach { session =>
-          session.producer.collocate( queue.dispatch_queue )
-        }
-      }
-
-    }
+    regroup_strategy.foreach(_.regroup(this))
   }
 
   /////////////////////////////////////////////////////////////////////////////
@@ -1273,6 +1297,7 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     queue.start(NOOP)
 //    queues_by_binding.put(binding, queue)
     queues_by_store_id.put(qid, queue)
+    virtual_host.broker.queue_dispatch_latency_counters.add(queue.dispatch_latency_counter)
 
     // this causes the queue to get registered in the right location in
     // the router.
@@ -1364,6 +1389,9 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
         }
 
         queues_by_store_id.remove(queue.store_id)
+        if( virtual_host.broker.queue_dispatch_latency_counters.remove(queue.dispatch_latency_counter) ) {
+          virtual_host.broker.dead_dispatch_latency_counter += queue.dispatch_latency_counter(false)
+        }
         if (queue.tune_persistent) {
           virtual_host.store.remove_queue(queue.store_id) { x =>
             dispatch_queue {
@@ -51,6 +51,18 @@ object Queue extends Log {
     }
   }
 
+  /**
+   * An entry of the queue's expiration index.  It goes stale once the
+   * entry changes state or the state's expiration changes.
+   */
+  case class ExpirationTimeout(expiration:Long, state:QueueEntry#EntryState)
+
+  val expiration_order = new java.util.Comparator[ExpirationTimeout] {
+    def compare(a: ExpirationTimeout, b: ExpirationTimeout) = {
+      if( a.expiration < b.expiration ) -1 else if( a.expiration > b.expiration ) 1 else 0
+    }
+  }
+
 }
 
 import Queue._
@@ -79,6 +91,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   var inbound_sessions = Set[DeliverySession]()
   var all_subscriptions = Map[DeliveryConsumer, Subscription]()
   var exclusive_subscriptions = ListBuffer[Subscription]()
+  val selector_index = new SelectorIndex[Subscription]
 
   var _message_group_buckets: HashRing[GroupBucket, String] = _
 
@@ -208,15 +221,59 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   var swap_in_item_counter = 0L
   var swap_in_size_counter = 0L
 
+  // Moving average of how many nanos the store takes to swap in an entry.
+  var swap_in_latency = 0L
+
+  def swap_in_completed(started:Long) = {
+    val latency = System.nanoTime - started
+    swap_in_latency = if( swap_in_latency == 0 ) latency else (swap_in_latency * 7 + latency) / 8
+  }
+
   var producer_counter = 0L
   var consumer_counter = 0L
 
+  // Tracks how long messages wait in the queue before they are first dispatched.
+  val dispatch_latency_counter = new HistogramCounter
+
+  // The stage latencies of the sampled messages which get enqueued.  Only
+  // allocated once the first sampled message arrives since the histograms
+  // are large and most queues never see a sample.
+  var stage_latency_counters:StageLatencyCounters = null
+
+  def sampled_stage_latency_counters = {
+    if( stage_latency_counters==null ) {
+      stage_latency_counters = new StageLatencyCounters(virtual_host.broker.stage_latency_counters)
+    }
+    stage_latency_counters
+  }
+
   // This set to true if any consumer kept up within the
   // last second.
   var consumers_keeping_up_historically = false
 
   var individual_swapped_items = 0
 
+  // Entries which were flagged as prefetched since the last swap pass.
+  var prefetched_entries = ListBuffer[QueueEntry]()
+
+  // Entries which are in the Loaded state.
+  val loaded_entries = collection.mutable.LinkedHashSet[QueueEntry]()
+
+  // Min-heap of the entry states which expire.
+  var expiration_index = new java.util.PriorityQueue[ExpirationTimeout](64, expiration_order)
+
+  def is_expiration_current(timeout:ExpirationTimeout) = {
+    val entry = timeout.state.entry
+    entry.isLinked && (entry.state eq timeout.state) && entry.expiration == timeout.expiration
+  }
+
+  def index_expiration(state:QueueEntry#EntryState):Unit = {
+    val expiration = state.expiration
+    if( expiration != 0 ) {
+      expiration_index.add(ExpirationTimeout(expiration, state))
+    }
+  }
+
   val swap_source = createSource(EventAggregators.INTEGER_ADD, dispatch_queue)
   swap_source.setEventHandler(^{ swap_messages });
   swap_source.resume
@@ -330,6 +387,11 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
     rc.producer_count = this.inbound_sessions.size
     rc.consumer_count = this.all_subscriptions.size
+
+    rc.dispatch_latency = DestinationMetricsSupport.to_time_metric_dto(dispatch_latency_counter(false))
+    if( stage_latency_counters!=null ) {
+      stage_latency_counters.fill(rc)
+    }
     rc
   }
 
@@ -701,7 +763,11 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
         tail_entry = new QueueEntry(Queue.this, next_message_seq)
         val queue_delivery = delivery.copy
         queue_delivery.seq = entry.seq
+        if( queue_delivery.trace!=null ) {
+          queue_delivery.trace = queue_delivery.trace.enqueue(sampled_stage_latency_counters)
+        }
         entry.init(queue_delivery)
+        entry.enqueued_at = System.nanoTime
         
         entries.addLast(entry)
         enqueue_item_counter += 1
@@ -719,6 +785,12 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
             case state:entry.Loaded => state.store_enqueue(uow)
             case state:entry.Swapped => uow.enqueue(entry.toQueueEntryRecord)
           }
+          val trace = queue_delivery.trace
+          if( trace!=null ) {
+            uow.on_flush {
+              trace.flushed
+            }
+          }
           uow
         } else {
           null
@@ -826,108 +898,141 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     if( !service_state.is_started )
       return
 
-    var cur = entries.getHead
-    while( cur!=null ) {
-
-      // reset the prefetch flags and handle expiration...
-      cur.prefetched = false
-      val next = cur.getNext
-
-      // handle expiration...
-      if( !cur.expiring && cur.expiration != 0 && cur.expiration <= now ) {
-        val entry = cur
-        cur.state match {
-          case x:QueueEntry#SwappedRange =>
-            // load the range to expire the messages in it.
-            cur.load(null)
-          case state:QueueEntry#Swapped =>
-            // remove the expired message if it has not been
-            // acquired.
-            if( !state.is_acquired ) {
-              val uow = create_uow(binding.binding_kind+":"+id+":swap")
-              entry.dequeue(uow)
-              expired(uow, entry) {
-                if( entry.isLinked ) {
-                  entry.remove
-                }
-              }
-            }
-          case state:QueueEntry#Loaded =>
-            // remove the expired message if it has not been
-            // acquired.
-            if( !state.is_acquired ) {
-              val uow = create_uow(binding.binding_kind+":"+id+":swap")
-              entry.dequeue(uow)
-              expired(uow, entry) {
-                if( entry.isLinked ) {
-                  entry.remove
+    // handle expiration...
+    var deferred = List[ExpirationTimeout]()
+    while( !expiration_index.isEmpty && expiration_index.peek.expiration <= now ) {
+      val timeout = expiration_index.poll
+      if( is_expiration_current(timeout) ) {
+        val entry = timeout.state.entry
+        if( entry.expiring ) {
+          // check again on the next pass.
+          deferred ::= timeout
+        } else {
+          timeout.state match {
+            case x:QueueEntry#SwappedRange =>
+              // load the range to expire the messages in it, the loaded
+              // entries will index their own expiration.
+              entry.load(null)
+            case state@(_:QueueEntry#Swapped | _:QueueEntry#Loaded) =>
+              // remove the expired message if it has not been
+              // acquired.
+              if( !state.is_acquired ) {
+                val uow = create_uow(binding.binding_kind+":"+id+":swap")
+                entry.dequeue(uow)
+                expired(uow, entry) {
+                  if( entry.isLinked ) {
+                    entry.remove
+                  }
                 }
+              } else {
+                // check again on the next pass.
+                deferred ::= timeout
               }
-            }
-          case _ =>
+            case _ =>
+          }
         }
       }
-      cur = next
+    }
+    deferred.foreach(expiration_index.add(_))
+
+    // Drop the stale index entries once they out number the messages.
+    if( expiration_index.size > (queue_items*2).max(1024) ) {
+      val current = new java.util.PriorityQueue[ExpirationTimeout](expiration_index.size, expiration_order)
+      val i = expiration_index.iterator
+      while( i.hasNext ) {
+        val timeout = i.next
+        if( is_expiration_current(timeout) ) {
+          current.add(timeout)
+        }
+      }
+      expiration_index = current
     }
 
+    // reset the prefetch flags..
+    val previously_prefetched = prefetched_entries
+    prefetched_entries = ListBuffer()
+    previously_prefetched.foreach(_.prefetched = false)
+
     // Set the prefetch flags
+    var read_ahead_remaining = consumer_swapped_in.size_max
     all_subscriptions.valuesIterator.foreach{ x=>
-      x.refill_prefetch
+      read_ahead_remaining -= x.refill_prefetch
     }
 
-    // swap out messages.
-    cur = entries.getHead.getNext
-    var dropping_head_entries = is_topic_queue
-    while( cur!=null ) {
-      val next = cur.getNext
-      if ( dropping_head_entries ) {
+    // Subscriptions consuming faster than the store loads their receive
+    // buffer read further ahead, using up the consumer memory space the
+    // other subscriptions leave unused.  The bound is approximate: only
+    // the entries which get newly flagged as prefetched in this pass are
+    // charged against it, so the entries which are still loaded but which
+    // no subscription prefetches anymore are not accounted for.
+    all_subscriptions.valuesIterator.foreach{ x=>
+      val extra = x.read_ahead_size - x.consumer_buffer
+      if( extra > 0 && read_ahead_remaining > 0 ) {
+        read_ahead_remaining -= x.read_ahead(extra.min(read_ahead_remaining))
+      }
+    }
+
+    // Topic queues drop the head entries which no subscription is waiting on.
+    var last_dropped:QueueEntry = null
+    if( is_topic_queue ) {
+      var cur = entries.getHead.getNext
+      while( cur!=null && last_dropped==null ) {
+        val next = cur.getNext
         if( cur.parked.isEmpty ) {
           if( cur.is_swapped_range ) {
             cur.load(producer_swapped_in)
-            dropping_head_entries=false
+            last_dropped = cur
           } else {
             cur.dequeue(null)
             cur.remove
           }
         } else {
           cur.load(consumer_swapped_in)
-          dropping_head_entries = false
+          last_dropped = cur
         }
-      } else {
-        if( cur.prefetched ) {
-          // Prefteched entries need to get loaded..
-          cur.load(consumer_swapped_in)
-        } else {
-          // This is a non-prefetched entry.. entires ahead and behind the
-          // consumer subscriptions.
-          val loaded = cur.as_loaded
-          if( loaded!=null ) {
-            // It's in memory.. perhaps we need to swap it out..
-            if(!consumers_keeping_up_historically) {
-              // Swap out ASAP if consumers are not keeping up..
-              cur.swap(true)
+        cur = next
+      }
+    }
+
+    // Only the prefetched and loaded entries need to be visited since
+    // the rest of the entries are already swapped out.
+    prefetched_entries.foreach { cur =>
+      if( cur.isLinked && cur.prefetched && (cur ne last_dropped) ) {
+        // Prefteched entries need to get loaded..
+        cur.load(consumer_swapped_in)
+      }
+    }
+
+    // swap out messages.
+    for( cur <- loaded_entries.toArray ) {
+      if( cur.isLinked && !cur.prefetched && (cur ne last_dropped) ) {
+        // This is a non-prefetched entry.. entires ahead and behind the
+        // consumer subscriptions.
+        val loaded = cur.as_loaded
+        if( loaded!=null ) {
+          // It's in memory.. perhaps we need to swap it out..
+          if(!consumers_keeping_up_historically) {
+            // Swap out ASAP if consumers are not keeping up..
+            cur.swap(true)
+          } else {
+            // Consumers seem to be keeping up.. so we have to be more selective
+            // about what gets swapped out..
+
+            if (cur.memory_space eq producer_swapped_in ) {
+              // Entry will be used soon..
+              cur.load(producer_swapped_in)
+            } else if ( cur.is_acquired ) {
+              // Entry was just used...
+              cur.load(consumer_swapped_in)
             } else {
-              // Consumers seem to be keeping up.. so we have to be more selective
-              // about what gets swapped out..
-
-              if (cur.memory_space eq producer_swapped_in ) {
-                // Entry will be used soon..
-                cur.load(producer_swapped_in)
-              } else if ( cur.is_acquired ) {
-                // Entry was just used...
-                cur.load(consumer_swapped_in)
-  //              cur.swap(false)
-              } else {
-                // Does not look to be anywhere close to the consumer.. so get
-                // rid of it asap.
-                cur.swap(true)
-              }
+              // Does not look to be anywhere close to the consumer.. so get
+              // rid of it asap.
+              cur.swap(true)
             }
           }
         }
       }
-      cur = next
-    }                               
+    }
 
 
     // Combine swapped items into swapped ranges
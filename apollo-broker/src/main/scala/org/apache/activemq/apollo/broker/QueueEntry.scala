@@ -45,7 +45,17 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
   // subscriptions will set this to true if they are interested
   // in the entry.
-  var prefetched = false
+  private var _prefetched = false
+  def prefetched = _prefetched
+  def prefetched_=(value:Boolean):Unit = {
+    if( value && !_prefetched ) {
+      queue.prefetched_entries += this
+    }
+    _prefetched = value
+  }
+
+  // When the entry was enqueued, cleared once it's first dispatched.
+  var enqueued_at = 0L
 
   // The current state of the entry: Head | Tail | Loaded | Swapped | SwappedRange
   var state:EntryState = new Tail
@@ -408,6 +418,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
     queue.loaded_items += 1
     queue.loaded_size += size
+    queue.loaded_entries += entry
+    queue.index_expiration(this)
 
     def label = {
       var rc = "loaded"
@@ -538,6 +550,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         }
         queue.loaded_items -= 1
         queue.loaded_size -= size
+        queue.loaded_entries -= entry
       }
     }
 
@@ -555,6 +568,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       if( !remove_pending ) {
         queue.loaded_items -= 1
         queue.loaded_size -= size
+        queue.loaded_entries -= entry
       }
       if( storing_enqueue | remove_pending ) {
         remove_pending = true
@@ -602,6 +616,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         _browser_copy
       }
 
+      // Lets the subs whose selectors require a different property value skip the selector evaluation.
+      val indexed = queue.selector_index.prepare
+      def matches(sub:Subscription) = (!indexed || !queue.selector_index.excluded(sub, delivery.message)) && sub.matches(delivery)
+
       var acquiringSub: Subscription = null
 
       // Find the the first exclusive target of the message
@@ -621,7 +639,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       parked.foreach{ sub=>
 
         if( sub.browser ) {
-          if (!sub.matches(delivery)) {
+          if (!matches(sub)) {
             // advance: not interested.
             advancing += sub
           } else {
@@ -642,7 +660,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
             // Is the current sub not the exclusive target?
             if( (exclusive_target.isDefined && (exclusive_target.get != sub))
-                || !sub.matches(delivery)
+                || !matches(sub)
                 || (exclusive_target.isEmpty && delivery.message.message_group!=null) ) {
               // advance: not interested.
               advancing += sub
@@ -663,6 +681,9 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
                 val acquiredQueueEntry = sub.acquire(entry)
                 val acquiredDelivery = delivery.copy
+                if( acquiredDelivery.trace!=null ) {
+                  acquiredDelivery.trace = acquiredDelivery.trace.dispatch
+                }
                 if( acquiredDelivery.sender == Nil) {
                   acquiredDelivery.sender ::= queue.address
                 }
@@ -676,6 +697,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
                 val accepted = sub.offer(acquiredDelivery)
                 assert(accepted, "sub should have accepted, it had reported not full earlier.")
+
+                if( entry.enqueued_at!=0 ) {
+                  queue.dispatch_latency_counter += System.nanoTime - entry.enqueued_at
+                  entry.enqueued_at = 0
+                }
               }
             }
           }
@@ -720,8 +746,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     assert( message_key!= -1 )
 
     queue.individual_swapped_items += 1
+    queue.index_expiration(this)
 
     var space:MemorySpace = _
+    var swap_in_started = 0L
 
     override def redelivery_count = _redeliveries
     override def redelivered = _redeliveries = ((_redeliveries+1).min(Short.MaxValue)).toShort
@@ -755,6 +783,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 //        trace("Start entry load of message seq: %s", seq)
         // start swapping in...
         space = mem_space
+        swap_in_started = System.nanoTime
         queue.swapping_in_size += size
         queue.virtual_host.store.load_message(message_key, message_locator) { delivery =>
           // pass off to a source so it can aggregate multiple
@@ -799,6 +828,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       if( space!=null ) {
 //        debug("Loaded message seq: ", seq )
         queue.swapping_in_size -= size
+        queue.swap_in_completed(swap_in_started)
 
         val delivery = to_delivery
         delivery.message = MessageCodecFactory(messageRecord.codec.toString).get.decode(messageRecord)
@@ -919,6 +949,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     override def size = _size
     override def expiration = _expiration
 
+    queue.index_expiration(this)
+
     var loading = false
 
     override def as_swapped_range = this
@@ -945,6 +977,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     override def swap_in(space:MemorySpace):Unit = {
       if( !loading ) {
         loading = true
+        val swap_in_started = System.nanoTime
 
         def complete_load(attempt_counter:Int, records:Seq[QueueEntryRecord]):Unit = {
           assert(isLinked)
@@ -980,6 +1013,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           }
 
           loading  = false
+          queue.swap_in_completed(swap_in_started)
           linkAfter(tmpList)
           val next = getNext
 
@@ -1020,6 +1054,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         last = value.as_swapped_range.last
         _count += value.as_swapped_range.count
       }
+      val previous_expiration = _expiration
       if(_expiration == 0){
         _expiration = value.expiration
       } else {
@@ -1027,6 +1062,9 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           _expiration = value.expiration.min(_expiration)
         }
       }
+      if( _expiration != previous_expiration ) {
+        queue.index_expiration(this)
+      }
       _size += value.size
       value.remove
     }
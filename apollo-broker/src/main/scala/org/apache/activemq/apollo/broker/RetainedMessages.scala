@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtbuf.Buffer
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.broker.store.{Store, StoreUOW, MessageRecord, MessagePB}
+import org.apache.activemq.apollo.broker.protocol.MessageCodecFactory
+
+object RetainedMessages extends Log {
+  val PREFIX = "retained:"
+}
+
+/**
+ * <p>
+ * Holds the retained messages of the topics of a virtual host.  Retained
+ * messages are stored as map entries in the virtual host's store so that
+ * they survive broker restarts.  The most recently used ones are also kept
+ * in memory, but once they use more than the configured cache size the
+ * least recently used ones get evicted and are reloaded from the store
+ * when needed again.
+ * </p>
+ *
+ * <p>
+ * Without a store the cache is the only copy, so nothing gets evicted.
+ * </p>
+ */
+class RetainedMessages(val router:LocalRouter) {
+  import RetainedMessages._
+
+  case class Entry(delivery:Delivery, persisted:Boolean)
+
+  // Tracks the loads in progress for an id and if the retained
+  // message got set or removed since they started.
+  class Load(var count:Int, var changed:Boolean)
+
+  var cache_size_max = 1024*1024*10L
+  var cache_size = 0L
+  private val cache = new java.util.LinkedHashMap[String, Entry](16, 0.75f, true)
+  private val loading = new java.util.HashMap[String, Load]()
+
+  def store = router.virtual_host.store
+
+  def key(id:String) = Buffer.utf8(PREFIX+id)
+
+  /**
+   * Returns the cached retained message of the topic or null if it's
+   * not cached.
+   */
+  def cached(id:String):Delivery = cache.synchronized {
+    val entry = cache.get(id)
+    if( entry == null ) {
+      null
+    } else {
+      entry.delivery
+    }
+  }
+
+  /**
+   * Loads the retained message of the topic from the cache or the store.
+   * The callback may get executed on the store's thread.
+   */
+  def load(id:String)(callback:(Option[Delivery])=>Unit):Unit = {
+    val r = cached(id)
+    if( r!=null ) {
+      callback(Some(r))
+    } else {
+      val s = store
+      if( s == null ) {
+        callback(None)
+      } else {
+        cache.synchronized {
+          val load = loading.get(id)
+          if( load == null ) {
+            loading.put(id, new Load(1, false))
+          } else {
+            load.count += 1
+          }
+        }
+        s.get_map_entry(key(id)) { value =>
+          val rc = cache.synchronized {
+            val load = loading.get(id)
+            load.count -= 1
+            if( load.count == 0 ) {
+              loading.remove(id)
+            }
+            val entry = cache.get(id)
+            if( entry != null ) {
+              // don't clobber a message that got set while we were loading.
+              Some(entry.delivery)
+            } else if( load.changed ) {
+              // it got removed while we were loading, the stored value is stale.
+              None
+            } else {
+              value.map { value =>
+                val delivery = decode(value)
+                cache_put(id, Entry(delivery, true))
+                delivery
+              }
+            }
+          }
+          callback(rc)
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets the retained message of a topic.  If a unit of work is given,
+   * the update is stored as part of it.
+   */
+  def set(id:String, delivery:Delivery, uow:StoreUOW):Unit = {
+    val s = store
+    val value = if( s == null ) {
+      null
+    } else {
+      encode(delivery)
+    }
+    cache.synchronized {
+      changed(id)
+      cache_remove(id)
+      cache_put(id, Entry(delivery, value!=null))
+    }
+    if( value!=null ) {
+      put(s, id, value, uow)
+    }
+  }
+
+  /**
+   * Removes the retained message of a topic.
+   */
+  def remove(id:String, uow:StoreUOW):Unit = {
+    cache.synchronized {
+      changed(id)
+      cache_remove(id)
+    }
+    val s = store
+    if( s!=null ) {
+      put(s, id, null, uow)
+    }
+  }
+
+  private def put(s:Store, id:String, value:Buffer, uow:StoreUOW) = {
+    if( uow!=null ) {
+      uow.put(key(id), value)
+    } else {
+      val uow = s.create_uow("retained message")
+      uow.put(key(id), value)
+      uow.release("retained message")
+    }
+  }
+
+  private def changed(id:String) = {
+    val load = loading.get(id)
+    if( load!=null ) {
+      load.changed = true
+    }
+  }
+
+  private def cache_remove(id:String) = {
+    val entry = cache.remove(id)
+    if( entry!=null ) {
+      cache_size -= entry.delivery.size
+    }
+  }
+
+  private def cache_put(id:String, entry:Entry) = {
+    cache.put(id, entry)
+    cache_size += entry.delivery.size
+    if( cache_size > cache_size_max ) {
+      val i = cache.entrySet().iterator()
+      while( cache_size > cache_size_max && i.hasNext ) {
+        val next = i.next()
+        // Keep the entry we just added and the ones we can't reload.
+        if( next.getValue.persisted && (next.getValue ne entry) ) {
+          cache_size -= next.getValue.delivery.size
+          i.remove()
+        }
+      }
+    }
+  }
+
+  def encode(delivery:Delivery):Buffer = {
+    val record = delivery.createMessageRecord()
+    if( record.buffer == null ) {
+      debug("Not storing the retained message since it's not encoded in a buffer")
+      return null
+    }
+    val pb = new MessagePB.Bean
+    pb.setMessageKey(0)
+    pb.setCodec(record.codec)
+    pb.setSize(delivery.size)
+    pb.setValue(record.buffer)
+    if( delivery.expiration!=0 ) {
+      pb.setExpiration(delivery.expiration)
+    }
+    if( delivery.persistent ) {
+      pb.setPersistent(true)
+    }
+    pb.freeze.toUnframedBuffer
+  }
+
+  def decode(value:Buffer):Delivery = {
+    val pb = MessagePB.FACTORY.parseUnframed(value)
+    val record = new MessageRecord
+    record.codec = pb.getCodec
+    record.buffer = pb.getValue
+    val delivery = new Delivery
+    delivery.message = MessageCodecFactory(record.codec.toString).get.decode(record)
+    delivery.size = pb.getSize
+    delivery.expiration = pb.getExpiration
+    delivery.persistent = pb.getPersistent
+    delivery.retain = RetainSet
+    delivery
+  }
+}
@@ -26,6 +26,7 @@ import java.util.concurrent.atomic.AtomicReference
 import collection.mutable.ListBuffer
 import java.util.regex.Pattern
 import java.lang.String
+import org.fusesource.hawtbuf.Buffer
 
 object DestinationAddress {
   
@@ -224,6 +225,9 @@ abstract class DeliveryProducerRoute(router:Router) extends Sink[Delivery] with
       val t = overflow
       overflow = null
       _offer(t)
+      if( t.message!=null ) {
+        t.message.release
+      }
       if( refiller!=null && !full ) {
         refiller.run()
       }
@@ -288,15 +292,89 @@ abstract class DeliveryProducerRoute(router:Router) extends Sink[Delivery] with
 
   def full = overflow!=null
 
+  /**
+   * Routes whose producers never touch a delivery again after offering
+   * it can return true so that the delivery gets dispatched as is instead
+   * of being copied first.
+   */
+  protected def owns_offered_deliveries = false
+
+  /**
+   * Routes whose producers pick the latency samples themselves return false
+   * so that the messages they did not pick don't get another chance.
+   */
+  protected def samples_latency = true
+
+  /**
+   * Routes can opt into duplicate detection by returning the producer
+   * assigned id of the delivery's message.  Deliveries whose id was already
+   * sent to the same duplicate_detection_scope are acked and dropped
+   * instead of routed.
+   */
+  protected def duplicate_detection_id(delivery:Delivery):Buffer = null
+
+  /**
+   * The scope the duplicate detection ids are unique in, usually the
+   * destination the route sends to.
+   */
+  protected def duplicate_detection_scope:Buffer = null
+
+  // The owner token used to retain the uows of the routed deliveries.
+  private var uow_owner_label:String = _
+  private var uow_owner_token:String = _
+
+  private def uow_owner = {
+    val label = dispatch_queue.getLabel
+    if( label ne uow_owner_label ) {
+      uow_owner_label = label
+      uow_owner_token = "route:"+label+":offer"
+    }
+    uow_owner_token
+  }
+
+  /**
+   * Acks the original delivery once all the targets it was routed to
+   * have acked it.  The instance is both the ack given to the targets and
+   * the task deferred onto the route's dispatch queue when they call it,
+   * so routing an acked delivery only allocates this one object.
+   */
+  private class RouteAck(original_ack:(DeliveryResult, StoreUOW)=>Unit, uow:StoreUOW) extends Task with ((DeliveryResult, StoreUOW)=>Unit) {
+    var matching_targets = 0
+    var acked = false
+
+    def apply(result:DeliveryResult, ignored:StoreUOW) = dispatch_queue_task_source.merge(this)
+
+    def run() = {
+      matching_targets -= 1
+      if ( matching_targets<= 0 && !acked ) {
+        acked = true
+        if (uow != null) {
+          uow.on_complete {
+            defer {
+              original_ack(Consumed, null)
+            }
+          }
+        } else {
+          original_ack(Consumed, null)
+        }
+      }
+    }
+  }
+
   def offer(delivery:Delivery):Boolean = {
     dispatch_queue.assertExecuting()
     if( full ) {
       false
     } else {
       if (delivery.uow != null) {
-        delivery.uow.retain("route:"+dispatch_queue.getLabel+":offer")
+        delivery.uow.retain(uow_owner)
       }
       if ( !is_connected ) {
+        // The producer may release its reference to the message once
+        // it's offered, so hold on to it until we get connected.
+        if( delivery.message!=null ) {
+          delivery.message.retain
+        }
         overflow = delivery
       } else {
         _offer(delivery)
@@ -308,45 +386,60 @@ abstract class DeliveryProducerRoute(router:Router) extends Sink[Delivery] with
   private def _offer(delivery:Delivery):Boolean = {
     last_send = Broker.now
 
+    if( router!=null ) {
+      val id = duplicate_detection_id(delivery)
+      if( id!=null && router.virtual_host.is_duplicate(duplicate_detection_scope, id) ) {
+        debug("dropping duplicate message: %s", id)
+        if (delivery.uow != null) {
+          delivery.uow.release(uow_owner)
+        }
+        if( delivery.ack!=null ) {
+          delivery.ack(Consumed, null)
+        }
+        return true
+      }
+    }
+
+    if( delivery.trace==null && router!=null && samples_latency ) {
+      delivery.trace = router.virtual_host.sample_latency()
+    }
+    if( delivery.trace!=null ) {
+      delivery.trace = delivery.trace.route
+    }
+
     // Do we need to store the message if we have a matching consumer?
     var matching_targets = 0
     val original_ack = delivery.ack
-    val copy = delivery.copy
+    val copy = if( owns_offered_deliveries ) delivery else delivery.copy
     copy.uow = delivery.uow
 
-    if ( original_ack!=null ) {
-      copy.ack = (result, uow)=> {
-        defer {
-          matching_targets -= 1
-          if ( matching_targets<= 0 && copy.ack!=null ) {
-            copy.ack = null
-            if (delivery.uow != null) {
-              delivery.uow.on_complete {
-                defer {
-                  original_ack(Consumed, null)
-                }
-              }
-            } else {
-              original_ack(Consumed, null)
-            }
-          }
-        }
-      }
+    val ack = if ( original_ack!=null ) {
+      new RouteAck(original_ack, delivery.uow)
+    } else {
+      null
     }
+    copy.ack = ack
 
     if(copy.message!=null) {
       copy.message.retain
     }
 
-    targets.foreach { target=>
+    // Avoid the closure and iterator allocations of a foreach
+    var remaining = targets
+    while( !remaining.isEmpty ) {
+      val target = remaining.head
+      remaining = remaining.tail
 
       // only deliver to matching consumers
       if( target.consumer.matches(copy) ) {
         matching_targets += 1
+        if( ack!=null ) {
+          ack.matching_targets += 1
+        }
         if ( target.consumer.is_persistent && copy.persistent && store != null) {
 
           if (copy.uow == null) {
-            copy.uow = store.create_uow("route:"+dispatch_queue.getLabel+":offer")
+            copy.uow = store.create_uow(uow_owner)
           }
 
           if( copy.storeKey == -1L ) {
@@ -376,7 +469,7 @@ abstract class DeliveryProducerRoute(router:Router) extends Sink[Delivery] with
 
   private def release(delivery: Delivery): Unit = {
     if (delivery.uow != null) {
-      delivery.uow.release("route:"+dispatch_queue.getLabel+":offer")
+      delivery.uow.release(uow_owner)
     }
     if( delivery.message!=null ) {
       delivery.message.release
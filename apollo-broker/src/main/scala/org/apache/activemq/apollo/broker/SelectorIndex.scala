@@ -0,0 +1,180 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import collection.mutable.HashSet
+import org.apache.activemq.apollo.filter._
+import org.apache.activemq.apollo.selector.SelectorParser
+import org.apache.activemq.apollo.util.Log
+
+object SelectorIndex extends Log {
+
+  /**
+   * Finds a property which must be equal to one of a set of string values
+   * for the selector to match.  Only the top level AND-ed terms of the
+   * selector are considered since those must all be true for it to match.
+   */
+  def required_values(expression:Expression):Option[(String, Set[String])] = expression match {
+    case x:LogicExpression if x.getExpressionSymbol == "AND" =>
+      required_values(x.getLeft).orElse(required_values(x.getRight))
+    case x:ComparisonExpression if x.getExpressionSymbol == "=" =>
+      (x.getLeft, x.getRight) match {
+        case (p:PropertyExpression, c:ConstantExpression) if c.getValue.isInstanceOf[String] =>
+          Some((p.getName, Set(c.getValue.asInstanceOf[String])))
+        case (c:ConstantExpression, p:PropertyExpression) if c.getValue.isInstanceOf[String] =>
+          Some((p.getName, Set(c.getValue.asInstanceOf[String])))
+        case _ => None
+      }
+    case x:UnaryExpression.InExpression if !x.isNot =>
+      import collection.JavaConversions._
+      val elements = x.getElements.toList
+      x.getRight match {
+        case p:PropertyExpression if elements.forall(_.isInstanceOf[String]) =>
+          Some((p.getName, elements.map(_.asInstanceOf[String]).toSet))
+        case _ => None
+      }
+    case _ => None
+  }
+
+}
+
+/**
+ * <p>
+ * Indexes the subscriptions of a queue by the string values their selectors
+ * require a message property to have, so that the subscriptions that
+ * cannot match a message can be skipped with a hash lookup instead of
+ * evaluating each of their selectors.
+ * </p>
+ * <p>
+ * A selector term like <code>region = 'EU'</code> or <code>region IN ('EU', 'US')</code>
+ * can only be true when the message property is a string, so a message with a
+ * string or missing property only needs to be matched against the subscriptions
+ * indexed under that value.  Messages with properties of other types are
+ * matched against all the subscriptions.
+ * </p>
+ * <p>
+ * It is not thread safe, it's used from the queue's dispatch queue.
+ * </p>
+ */
+class SelectorIndex[S <: AnyRef] {
+  import SelectorIndex._
+
+  class PropertyIndex(val name:String) {
+    // property value -> subscriptions which require it.
+    val by_value = new java.util.HashMap[String, HashSet[S]]()
+    // The subscriptions indexed under the value the message being
+    // matched has, null if they all need to be evaluated.
+    var candidates:collection.Set[S] = null
+    var looked_up = -1L
+  }
+
+  private val EMPTY = Set[S]()
+  private val index = new java.util.HashMap[String, PropertyIndex]()
+  private val indexed = new java.util.HashMap[S, PropertyIndex]()
+
+  // Changes with every message so that the property lookups of the
+  // previous message don't get reused.
+  private var lookup_counter = 0L
+
+  def isEmpty = indexed.isEmpty
+
+  def add(sub:S, selector:String):Unit = {
+    if( selector == null ) {
+      return
+    }
+    val required = try {
+      required_values(SelectorParser.parse(selector))
+    } catch {
+      case e:FilterException =>
+        debug("Not indexing invalid selector: %s", selector)
+        None
+    }
+    for( (name, values) <- required ) {
+      var property = index.get(name)
+      if( property == null ) {
+        property = new PropertyIndex(name)
+        index.put(name, property)
+      }
+      for( value <- values ) {
+        var subs = property.by_value.get(value)
+        if( subs == null ) {
+          subs = HashSet()
+          property.by_value.put(value, subs)
+        }
+        subs += sub
+      }
+      indexed.put(sub, property)
+    }
+  }
+
+  def remove(sub:S):Unit = {
+    val property = indexed.remove(sub)
+    if( property!=null ) {
+      val i = property.by_value.values.iterator
+      while( i.hasNext ) {
+        val subs = i.next
+        subs -= sub
+        if( subs.isEmpty ) {
+          i.remove()
+        }
+      }
+      if( property.by_value.isEmpty ) {
+        index.remove(property.name)
+      }
+      property.candidates = null
+      property.looked_up = -1
+    }
+  }
+
+  /**
+   * Starts matching a new message against the subscriptions.
+   *
+   * @return false if no subscriptions are indexed, in which case
+   *         none of them get excluded.
+   */
+  def prepare:Boolean = {
+    if( indexed.isEmpty ) {
+      false
+    } else {
+      lookup_counter += 1
+      true
+    }
+  }
+
+  /**
+   * @return true if the subscription is known to not match the message.
+   *         The message must be the one the index was last prepared for.
+   */
+  def excluded(sub:S, message:Message):Boolean = {
+    val property = indexed.get(sub)
+    if( property == null ) {
+      return false
+    }
+    if( property.looked_up != lookup_counter ) {
+      property.looked_up = lookup_counter
+      property.candidates = message.getProperty(property.name) match {
+        case null => EMPTY
+        case value:String =>
+          val subs = property.by_value.get(value)
+          if( subs == null ) EMPTY else subs
+        case _ => null
+      }
+    }
+    property.candidates!=null && !property.candidates.contains(sub)
+  }
+
+}
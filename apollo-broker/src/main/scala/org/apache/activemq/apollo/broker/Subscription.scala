@@ -22,6 +22,7 @@ import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import org.apache.activemq.apollo.util.list._
 import org.apache.activemq.apollo.dto.QueueConsumerLinkDTO
+import java.util.concurrent.TimeUnit
 
 trait Acquirer
 object DeadLetterHandler extends Acquirer
@@ -163,6 +164,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
     pos ::= this
 
     queue.all_subscriptions += consumer -> this
+    queue.selector_index.add(this, consumer.jms_selector)
     if( !consumer.browser && queue._message_group_buckets != null ) {
 
       var iterators = queue._message_group_buckets.add(GroupBucket(this), 10)
@@ -251,6 +253,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
 
       queue.exclusive_subscriptions = queue.exclusive_subscriptions.filterNot( _ == this )
       queue.all_subscriptions -= consumer
+      queue.selector_index.remove(this)
       if( !consumer.browser && queue._message_group_buckets != null ) {
         queue._message_group_buckets.remove(GroupBucket(this))
         if( queue._message_group_buckets.getNodes.isEmpty ) {
@@ -332,17 +335,33 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
     enqueue_size_at_last_interval = session.enqueue_size_counter
   }
 
-  def refill_prefetch = {
+  // The entry the last prefetch stopped at.
+  private var prefetch_end:QueueEntry = null
 
-    var cursor = if( pos.is_tail ) {
+  /**
+   * Prefetches a receive buffer's worth of entries from the current position.
+   * @return the size of the entries which got flagged as prefetched.
+   */
+  def refill_prefetch:Int = {
+    prefetch_end = if( pos.is_tail ) {
       null // can't prefetch the tail..
     } else if( pos.is_head ) {
       pos.getNext // can't prefetch the head.
     } else {
       pos // start prefetching from the current position.
     }
+    read_ahead(consumer_buffer)
+  }
 
-    var remaining = consumer_buffer;
+  /**
+   * Prefetches up to size more bytes worth of entries past where
+   * the last prefetch stopped.  Entries which another subscription
+   * already prefetched are skipped over without counting against size.
+   * @return the size of the entries which got flagged as prefetched.
+   */
+  def read_ahead(size:Int):Int = {
+    var cursor = prefetch_end
+    var remaining = size
     while( remaining>0 && cursor!=null ) {
       val next = cursor.getNext
       // Browsers prefetch all messages..
@@ -354,6 +373,19 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
       }
       cursor = next
     }
+    prefetch_end = cursor
+    size - remaining
+  }
+
+  /**
+   * How many bytes ahead of its position the subscription needs messages
+   * loaded so that it does not stall waiting on the store: what it consumes
+   * while a swapped range gets loaded, which takes a listing of the range's
+   * entries followed by loads of their messages.
+   */
+  def read_ahead_size:Int = {
+    val size = avg_enqueue_size_per_interval.toLong * queue.swap_in_latency * 2 / TimeUnit.SECONDS.toNanos(1)
+    size.min(Int.MaxValue).toInt.max(consumer_buffer)
   }
 
   class AcquiredQueueEntry(val entry:QueueEntry) extends LinkedNode[AcquiredQueueEntry] {
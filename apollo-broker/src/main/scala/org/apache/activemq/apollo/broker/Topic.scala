@@ -42,8 +42,12 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
   var proxy_sessions = new HashSet[DeliverySession]()
   var topic_queue_consumers = new HashMap[DeliveryConsumer, DeliveryConsumer]()
 
-  @transient
-  var retained_message: Delivery = _
+  // The retained message body lives in the router's retained message
+  // cache/store, the topic only tracks if it has one.
+  @volatile
+  var has_retained = false
+  var retained_restored = false
+  var retained_waiters = ListBuffer[(Delivery)=>Unit]()
 
   import language.implicitConversions
   implicit def from_link(from:LinkDTO):(Long,Long,Long)=(from.enqueue_item_counter, from.enqueue_size_counter, from.enqueue_ts)
@@ -97,11 +101,15 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
       enqueue_ts = now
       value.retain match {
         case RetainSet =>
-          // TODO: perhaps persist so that we can recall what was
-          // retained across broker restarts.
-          retained_message = value;
+          router.retained_messages.set(id, value, value.uow)
+          dispatch_queue {
+            retained_updated(true)
+          }
         case RetainRemove =>
-          retained_message = null;
+          router.retained_messages.remove(id, value.uow)
+          dispatch_queue {
+            retained_updated(false)
+          }
         case _ =>
       }
       if( value.ack != null ) {
@@ -190,6 +198,7 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
   var config:TopicDTO = _
 
   refresh_config
+  restore_retained
 
   import OptionSupport._
 
@@ -280,7 +289,7 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
       add_enqueue_counters(rc.metrics, link)
     }
 
-    if( retained_message!=null ) {
+    if( has_retained ) {
       rc.retained = 1
     }
 
@@ -342,17 +351,65 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
     }
   }
 
-  def browse(from_seq:Long, to:Option[Long], max:Long)(func: (BrowseResult)=>Unit):Unit = {
-    val msg = retained_message
-    if ( msg==null ) {
-      func(BrowseResult(0, 0, 0, Array()))
+  def browse(from_seq:Long, to:Option[Long], max:Long)(func: (BrowseResult)=>Unit):Unit = dispatch_queue {
+    retained_message { msg =>
+      if ( msg==null ) {
+        func(BrowseResult(0, 0, 0, Array()))
+      } else {
+        val status = new EntryStatusDTO()
+        status.seq = msg.seq
+        status.size = msg.size
+        status.state = "loaded"
+        status.is_prefetched = true;
+        func(BrowseResult(status.seq, status.seq, 1, Array((status, msg))))
+      }
+    }
+  }
+
+  /**
+   * Restores the retained message state of the topic from
+   * the store.
+   */
+  def restore_retained = {
+    router.retained_messages.load(id) { rc =>
+      dispatch_queue {
+        if( !retained_restored ) {
+          retained_updated(rc.isDefined)
+        }
+      }
+    }
+  }
+
+  def retained_updated(value:Boolean) = {
+    dispatch_queue.assertExecuting()
+    has_retained = value
+    retained_restored = true
+    val waiters = retained_waiters
+    retained_waiters = ListBuffer()
+    waiters.foreach(retained_message(_))
+  }
+
+  /**
+   * Passes the retained message or null to the function once it's
+   * available.  The function is executed on the topic's dispatch queue.
+   */
+  def retained_message(func:(Delivery)=>Unit):Unit = {
+    dispatch_queue.assertExecuting()
+    if( !retained_restored ) {
+      retained_waiters += func
+    } else if( !has_retained ) {
+      func(null)
     } else {
-      val status = new EntryStatusDTO()
-      status.seq = retained_message.seq
-      status.size = retained_message.size
-      status.state = "loaded"
-      status.is_prefetched = true;
-      func(BrowseResult(status.seq, status.seq, 1, Array((status, retained_message))))
+      val r = router.retained_messages.cached(id)
+      if( r!=null ) {
+        func(r)
+      } else {
+        router.retained_messages.load(id) { rc =>
+          dispatch_queue {
+            func(rc.orNull)
+          }
+        }
+      }
     }
   }
 
@@ -421,8 +478,7 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
       }
     }
 
-    def send_retained = {
-      val r = retained_message
+    def send_retained = retained_message { r =>
       if (r != null) {
         val copy = r.copy()
         copy.sender ::= address
@@ -27,6 +27,8 @@ import security.SecuredResource.VirtualHostKind
 import store._
 import java.lang.{Throwable, String}
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import org.fusesource.hawtbuf.Buffer
 
 trait VirtualHostFactory {
   def create(broker:Broker, dto:VirtualHostDTO):VirtualHost
@@ -110,6 +112,49 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService with Se
   var console_log:Log = _
 
   var direct_buffer_allocator:DirectBufferAllocator = null
+  // Message bodies at least this large are kept off the heap while queued, 0 to disable.
+  var heap_bypass = 0
+
+  // 1 out of this many messages get their stage latencies traced, 0 to disable.
+  var latency_sampling = 0
+  private val latency_sample_counter = new AtomicInteger
+
+  /**
+   * @return a trace to time stamp the message with if it was picked
+   *         as a latency sample, otherwise null.  decoded is only
+   *         evaluated for the picked messages.
+   */
+  def sample_latency(decoded: =>Long = 0L):LatencyTrace = {
+    val sampling = latency_sampling
+    if( sampling > 0 && latency_sample_counter.incrementAndGet % sampling == 0 ) {
+      LatencyTrace(decoded)
+    } else {
+      null
+    }
+  }
+
+  @volatile
+  private var duplicate_filter:DuplicateFilter = null
+
+  /**
+   * @return true if a message with the same id was already sent to the same
+   *         scope (usually the destination) of the virtual host by a producer
+   *         which opted into duplicate detection.
+   */
+  def is_duplicate(scope:Buffer, id:Buffer):Boolean = {
+    var filter = duplicate_filter
+    if( filter == null ) {
+      this.synchronized {
+        if( duplicate_filter == null ) {
+          duplicate_filter = new DuplicateFilter(
+            config.duplicate_detection_window.getOrElse(300) * 1000L,
+            config.duplicate_detection_size.getOrElse(100000))
+        }
+        filter = duplicate_filter
+      }
+    }
+    filter.duplicate(scope, id)
+  }
 
   def resource_kind = VirtualHostKind
 
@@ -148,11 +193,18 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService with Se
     audit_log = Option(log_category.audit).map(Log(_)).getOrElse(broker.audit_log)
     connection_log = Option(log_category.connection).map(Log(_)).getOrElse(broker.connection_log)
     console_log = Option(log_category.console).map(Log(_)).getOrElse(broker.console_log)
+    latency_sampling = config.latency_sampling.getOrElse(0)
+    val filter = duplicate_filter
+    if( filter!=null && (filter.window != config.duplicate_detection_window.getOrElse(300) * 1000L ||
+        filter.capacity != config.duplicate_detection_size.getOrElse(100000)) ) {
+      // it gets re-created with the new settings on the next use.
+      duplicate_filter = null
+    }
 
     if (config.authentication != null) {
       if (config.authentication.enabled.getOrElse(true)) {
         // Virtual host has it's own settings.
-        authenticator = new JaasAuthenticator(config.authentication, security_log)
+        authenticator = new JaasAuthenticator(config.authentication, security_log, broker.authentication_metrics)
       } else {
         // Don't use security on this host.
         authenticator = null
@@ -172,7 +224,8 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService with Se
   override protected def _start(on_completed:Task):Unit = {
     apply_update
 
-    if ( Option(config.heap_bypass).map(MemoryPropertyEditor.parse(_).toInt).getOrElse(0) > 0 ) {
+    heap_bypass = Option(config.heap_bypass).map(MemoryPropertyEditor.parse(_).toInt).getOrElse(0)
+    if ( heap_bypass > 0 ) {
       import org.apache.activemq.apollo.util.FileSupport._
       val tmp_dir = broker.tmp / "heapbypass" / id
       tmp_dir.recursive_delete
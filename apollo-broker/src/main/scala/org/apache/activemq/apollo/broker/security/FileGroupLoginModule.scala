@@ -44,7 +44,10 @@ import org.apache.activemq.jaas.UserPrincipal
 import java.{util => ju}
 import java.util.regex.Pattern
 import java.util.LinkedList
-import org.apache.activemq.apollo.util.Log
+import java.util.Properties
+import java.util.concurrent.ConcurrentHashMap
+import org.apache.activemq.apollo.util.{FileCache, Log}
+import collection.mutable.{HashMap, LinkedHashSet}
 
 object FileGroupLoginModule {
   val LOGIN_CONFIG = "java.security.auth.login.config"
@@ -52,6 +55,44 @@ object FileGroupLoginModule {
   val MATCH_OPTION = "match"
   val SEPARATOR_OPTION = "separator"
   val DEFAULT_LOG = Log(getClass)
+
+  val file_cache = new FileCache[GroupFile](file => FileUserLoginModule.load_properties(file).map(new GroupFile(_)))
+}
+
+/**
+ * <p>
+ * A loaded groups file indexed by member so that logins don't have
+ * to scan and split every group entry.
+ * </p>
+ */
+class GroupFile(groups:Properties) {
+
+  private val indexes = new ConcurrentHashMap[String, Map[String, List[String]]]()
+
+  /**
+   * @return the groups which list the member using the given separator.
+   */
+  def groups_of(member:String, separator:String):List[String] = {
+    var index = indexes.get(separator)
+    if( index == null ) {
+      index = index_by_member(separator)
+      indexes.put(separator, index)
+    }
+    index.getOrElse(member, Nil)
+  }
+
+  private def index_by_member(separator:String) = {
+    val rc = HashMap[String, LinkedHashSet[String]]()
+    val en = groups.keys()
+    while (en.hasMoreElements()) {
+      val group_name = en.nextElement().asInstanceOf[String]
+      val users = groups.getProperty(group_name).split(Pattern.quote(separator)).map(_.trim)
+      users.foreach { x =>
+        rc.getOrElseUpdate(x, LinkedHashSet()) += group_name
+      }
+    }
+    rc.map{ case (member, group_names) => (member, group_names.toList) }.toMap
+  }
 }
 
 /**
@@ -100,7 +141,7 @@ class FileGroupLoginModule extends LoginModule {
 
   def commit: Boolean = {
 
-    val groups = FileUserLoginModule.file_cache.get(file) match {
+    val groups = file_cache.get(file) match {
       case None => return false
       case Some(x) => x
     }
@@ -108,16 +149,11 @@ class FileGroupLoginModule extends LoginModule {
     import collection.JavaConversions._
     val principles = subject.getPrincipals.filter(_.getClass.getName == match_kind).map(_.getName)
 
-    val en = groups.keys()
-    while (en.hasMoreElements()) {
-      val group_name = en.nextElement().asInstanceOf[String]
-      val users = groups.getProperty(group_name).split(Pattern.quote(separator)).map(_.trim)
-      users.foreach { x =>
-        debug("Searching for groups with member: '%s'", x)
-        if ( principles.contains(x) ) {
-          principals.add(new GroupPrincipal(group_name))
-          debug("Added group principal: '%s'", group_name)
-        }
+    principles.foreach { x =>
+      debug("Searching for groups with member: '%s'", x)
+      groups.groups_of(x, separator).foreach { group_name =>
+        principals.add(new GroupPrincipal(group_name))
+        debug("Added group principal: '%s'", group_name)
       }
     }
 
@@ -27,10 +27,17 @@ import org.apache.activemq.jaas._
 import org.apache.activemq.apollo.broker.Broker.BLOCKABLE_THREAD_POOL
 import org.fusesource.hawtdispatch._
 import org.apache.activemq.apollo.dto.AuthenticationDTO
-import org.apache.activemq.apollo.util.Log
+import org.apache.activemq.apollo.util.{HistogramCounter, Log}
+import org.apache.activemq.apollo.util.OptionSupport._
 import collection.JavaConversions._
 import javax.security.auth.login._
 import javax.security.auth.message.AuthException
+import javax.security.auth.Subject
+import java.net.{InetSocketAddress, SocketAddress}
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+import org.fusesource.hawtbuf.Buffer
+import collection.mutable.{HashMap, ListBuffer}
 
 /**
  * <p>
@@ -43,6 +50,36 @@ object JaasAuthenticator extends Log {
   val _log = new ThreadLocal[Log]()
   def broker_log = Option(_log.get())
 
+  /**
+   * The most logins an authenticator caches.
+   */
+  val MAX_CACHED_LOGINS = 10000
+
+  /**
+   * Changes whenever the user, group, certificate or address files
+   * the login modules use get changed.
+   */
+  def files_version = FileUserLoginModule.file_cache.change_counter +
+    FileGroupLoginModule.file_cache.change_counter +
+    CertificateLoginModule.file_cache.change_counter +
+    SocketAddressLoginModule.file_cache.change_counter
+
+  def digest(data:Array[Byte]) = new Buffer(MessageDigest.getInstance("SHA-256").digest(data))
+
+}
+
+/**
+ * <p>
+ * Counters kept across the authenticators of a broker, the authenticators
+ * get re-created every time the configuration gets updated.
+ * </p>
+ */
+class AuthenticationMetrics {
+  // How long it takes to authenticate a client, in nanoseconds.
+  val latency_counter = new HistogramCounter
+  // The authentications answered without running a JAAS login.
+  val cache_hits = new AtomicLong
+  val cache_misses = new AtomicLong
 }
 
 
@@ -52,19 +89,131 @@ object JaasAuthenticator extends Log {
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-class JaasAuthenticator(val config: AuthenticationDTO, val log:Log) extends Authenticator {
+class JaasAuthenticator(val config: AuthenticationDTO, val log:Log, val metrics:AuthenticationMetrics=new AuthenticationMetrics) extends Authenticator {
+  import JaasAuthenticator._
 
   val jass_realm = Option(config.domain).getOrElse("apollo")
   val user_principal_kinds = config.user_principal_kinds()
   val acl_principal_kinds = config.acl_principal_kinds().toSet
+  val cache_ttl = config.cache_ttl.getOrElse(0) * 1000L
+
+  case class LoginKey(user:String, password:Buffer, certificates:List[Buffer], remote_host:String, local_address:SocketAddress)
+  case class CachedLogin(subject:Subject, expires:Long, files_version:Long)
+
+  // The successful logins, in least recently used order.
+  private val cache = new java.util.LinkedHashMap[LoginKey, CachedLogin](16, 0.75f, true) {
+    override def removeEldestEntry(eldest:java.util.Map.Entry[LoginKey, CachedLogin]) = size > MAX_CACHED_LOGINS
+  }
+
+  // The logins in progress and the clients waiting on their outcome.
+  private val pending = HashMap[LoginKey, ListBuffer[(SecurityContext, Long, (String)=>Unit)]]()
+
+  def login_key(ctx:SecurityContext) = {
+    val password = if( ctx.password==null ) null else digest(ctx.password.getBytes("UTF-8"))
+    val certificates = if( ctx.certificates==null ) Nil else ctx.certificates.toList.map(x=> digest(x.getEncoded))
+    // The client's port changes with every connection, only the host matters to the login modules.
+    val remote_host = ctx.remote_address match {
+      case null => null
+      case x:InetSocketAddress if x.getAddress!=null => x.getAddress.getHostAddress
+      case x => x.toString
+    }
+    LoginKey(ctx.user, password, certificates, remote_host, ctx.local_address)
+  }
+
+  private def cached(key:LoginKey):Subject = cache.synchronized {
+    val entry = cache.get(key)
+    if( entry == null ) {
+      null
+    } else if( entry.expires < System.currentTimeMillis() || entry.files_version != files_version ) {
+      cache.remove(key)
+      null
+    } else {
+      entry.subject
+    }
+  }
 
   /*
    * The 'BLOCKABLE_THREAD_POOL ! { ... }' magic makes the code block
    * execute on the global thread pool since JAAS requests could
    * potentially perform a blocking wait (e.g. LDAP request).
+   *
+   * When logins are cached, cached logins get answered right away, and
+   * clients connecting with the same credentials while a login is in progress
+   * wait on that login instead of queuing up on the thread pool with logins
+   * of their own.
    */
-  def authenticate(security_ctx: SecurityContext)(cb:(String)=>Unit) = BLOCKABLE_THREAD_POOL {
-    cb(_authenticate(security_ctx))
+  def authenticate(security_ctx: SecurityContext)(cb:(String)=>Unit) = {
+    val start = System.nanoTime()
+    if( cache_ttl <= 0 ) {
+      BLOCKABLE_THREAD_POOL {
+        val error = _authenticate(security_ctx)
+        done(start, cb, error)
+      }
+    } else {
+      val key = login_key(security_ctx)
+      val subject = cached(key)
+      if( subject!=null ) {
+        metrics.cache_hits.incrementAndGet()
+        security_ctx.subject = subject
+        done(start, cb, null)
+      } else {
+        val waiting = pending.synchronized {
+          pending.get(key) match {
+            case Some(waiting) =>
+              waiting += ((security_ctx, start, cb))
+              true
+            case None =>
+              pending.put(key, ListBuffer())
+              false
+          }
+        }
+        if( waiting ) {
+          metrics.cache_hits.incrementAndGet()
+        } else {
+          metrics.cache_misses.incrementAndGet()
+          BLOCKABLE_THREAD_POOL {
+            login(key, security_ctx, start, cb)
+          }
+        }
+      }
+    }
+  }
+
+  private def done(start:Long, cb:(String)=>Unit, error:String) = {
+    metrics.latency_counter += System.nanoTime() - start
+    cb(error)
+  }
+
+  /**
+   * Runs the login the clients waiting on the key share.
+   */
+  private def login(key:LoginKey, security_ctx:SecurityContext, start:Long, cb:(String)=>Unit) = {
+    var error = "Authentication failed"
+    var subject:Subject = null
+    try {
+      val version = files_version
+      val rc = _authenticate(security_ctx)
+      if( rc==null ) {
+        // Only keep a copy of the principals, the original subject
+        // gets emptied when the client logs out.
+        subject = new Subject(true, security_ctx.subject.getPrincipals, security_ctx.subject.getPublicCredentials, java.util.Collections.emptySet())
+        cache.synchronized {
+          cache.put(key, CachedLogin(subject, System.currentTimeMillis() + cache_ttl, version))
+        }
+      }
+      error = rc
+    } finally {
+      val waiting = pending.synchronized {
+        pending.remove(key).getOrElse(Nil)
+      }
+      done(start, cb, error)
+      waiting.foreach { case (ctx, start, cb) =>
+        if( subject!=null ) {
+          ctx.subject = subject
+        }
+        done(start, cb, error)
+      }
+    }
   }
 
   /**
@@ -72,6 +72,52 @@ object UowCompleted extends UowState {
   override def toString = "UowCompleted"
 }
 
+/**
+ * Group commit sizing: the units of work which get closed while a write
+ * is in progress or while they are being delayed get batched into the
+ * next write, so the delay determines the batch size.  We pick the
+ * largest delay which still lets a unit of work complete within the
+ * latency target, given the observed write (fsync) latency and how
+ * busy the write thread is kept by the arrival rate of flushes.
+ *
+ * @param flush_delay the upper bound of the delay in milliseconds.
+ * @param latency_target the flush latency to aim for in milliseconds.
+ */
+class AdaptiveFlushDelay(flush_delay:Long, latency_target:Long) {
+
+  private val max_delay = TimeUnit.MILLISECONDS.toNanos(flush_delay)
+  private val target = TimeUnit.MILLISECONDS.toNanos(latency_target)
+
+  private var write_latency_avg = 0.0d
+  private var write_interval_avg = 0.0d
+  private var last_write_at = 0L
+
+  @volatile
+  private var current = max_delay.min(target) / 2
+
+  /**
+   * @return the delay to apply to units of work in nanoseconds.
+   */
+  def delay = current
+
+  /**
+   * Adapts the delay to a completed write.  Times are in nanoseconds.
+   */
+  def write_completed(write_started:Long, write_latency:Long):Unit = {
+    def ewma(avg:Double, value:Long) = if( avg == 0 ) value.toDouble else avg * 0.8 + value * 0.2
+    write_latency_avg = ewma(write_latency_avg, write_latency)
+    if( last_write_at != 0 ) {
+      write_interval_avg = ewma(write_interval_avg, write_started - last_write_at)
+    }
+    last_write_at = write_started
+
+    // The odds that a unit of work has to wait on a write in progress.
+    val busy = if( write_interval_avg == 0 ) 1.0d else (write_latency_avg / write_interval_avg).min(1.0d)
+    val budget = target - write_latency_avg * (1 + busy / 2)
+    current = budget.max(0).min(max_delay).toLong
+  }
+}
+
 /**
  * <p>
  * Support class for implementing Stores which delay doing updates
@@ -87,8 +133,20 @@ trait DelayingStoreSupport extends Store with BaseService {
 
   protected def flush_delay:Long
 
+  /**
+   * When positive, the delay applied to units of work is adapted so that
+   * they complete within this many milliseconds.  The flush_delay is then
+   * used as the upper bound of the delay.
+   */
+  protected def flush_latency_target:Long = -1
+
   protected def get_next_msg_key:Long
 
+  /**
+   * Picks the key a message record gets stored under.
+   */
+  protected def next_msg_key(record:MessageRecord):Long = get_next_msg_key
+
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit):Unit
 
   /////////////////////////////////////////////////////////////////////
@@ -172,6 +230,8 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     var actions = Map[Long, MessageAction]()
     var map_actions = Map[Buffer, Buffer]()
+    // off heap message bodies which must stay around until the uow completes.
+    var direct_buffers = ListBuffer[DirectBuffer]()
 
 
     def put(key: Buffer, value: Buffer) = {
@@ -236,12 +296,16 @@ trait DelayingStoreSupport extends Store with BaseService {
     }
 
     def store(record: MessageRecord):Long = {
-      record.key = get_next_msg_key
+      record.key = next_msg_key(record)
       val action = new MessageAction
       action.msg = record.key
       action.message_record = record
       on_store_requested(record)
       this.synchronized {
+        if( record.direct_buffer!=null ) {
+          record.direct_buffer.retain
+          direct_buffers += record.direct_buffer
+        }
         actions += record.key -> action
         pending_stores.put(action.message_record.key, action)
       }
@@ -311,6 +375,8 @@ trait DelayingStoreSupport extends Store with BaseService {
         state = UowCompleted
         close_latency_counter += System.nanoTime-close_ts
         complete_listeners.foreach(_(canceled))
+        direct_buffers.foreach(_.release)
+        direct_buffers.clear
         super.dispose
       }
     }
@@ -327,6 +393,19 @@ trait DelayingStoreSupport extends Store with BaseService {
     rc
   }
 
+  implicit def fromHistogramMetric( m: HistogramMetric) = {
+    val rc = new TimeMetricDTO()
+    rc.count = m.count
+    rc.max = m.max
+    rc.min = m.min
+    rc.total = m.total
+    rc.p50 = m.p50
+    rc.p90 = m.p90
+    rc.p99 = m.p99
+    rc.p999 = m.p999
+    rc
+  }
+
   implicit def toIntMetricDTO( m: IntMetric) = {
     val rc = new IntMetricDTO()
     rc.count = m.count
@@ -343,7 +422,7 @@ trait DelayingStoreSupport extends Store with BaseService {
   var metric_flushed_message_counter:Long = 0
   var metric_flushed_enqueue_counter:Long = 0
 
-  val close_latency_counter = new TimeCounter
+  val close_latency_counter = new HistogramCounter
   var close_latency = close_latency_counter(false)
 
   val message_load_latency_counter = new TimeCounter
@@ -365,6 +444,8 @@ trait DelayingStoreSupport extends Store with BaseService {
     rc.state_since = service_state.since
 
     rc.flush_latency = flush_latency
+    rc.current_flush_delay = TimeUnit.NANOSECONDS.toMicros(current_flush_delay)
+    rc.close_latency = close_latency
     rc.message_load_latency = message_load_latency
 
     rc.canceled_message_counter = metric_canceled_message_counter
@@ -497,12 +578,42 @@ trait DelayingStoreSupport extends Store with BaseService {
   })
 
   private def schedule_flush(ref: WeakReference[DelayableUOW]) {
-    dispatch_queue.executeAfter(flush_delay, TimeUnit.MILLISECONDS, ^ {
-      val uow = ref.get();
-      if (uow != null) {
-        queue_flush(uow)
-      }
-    })
+    val delay = current_flush_delay
+    if( delay <= 0 ) {
+      queue_flush(ref.get())
+    } else {
+      dispatch_queue.executeAfter(delay, TimeUnit.NANOSECONDS, ^ {
+        val uow = ref.get();
+        if (uow != null) {
+          queue_flush(uow)
+        }
+      })
+    }
+  }
+
+  // The delay currently applied to delayable units of work in nanoseconds.
+  def current_flush_delay:Long = {
+    val adaptive = adaptive_flush_delay
+    if( adaptive!=null ) {
+      adaptive.delay
+    } else {
+      TimeUnit.MILLISECONDS.toNanos(flush_delay)
+    }
+  }
+
+  @volatile
+  private var adaptive_flush_delay:AdaptiveFlushDelay = null
+
+  /**
+   * Starts adapting the flush delay from scratch if a flush_latency_target
+   * is configured.  Stores call this when they get started.
+   */
+  protected def reset_flush_delay = {
+    adaptive_flush_delay = if( flush_latency_target > 0 ) {
+      new AdaptiveFlushDelay(flush_delay, flush_latency_target)
+    } else {
+      null
+    }
   }
 
   private def queue_flush(uow:DelayableUOW) = {
@@ -516,7 +627,7 @@ trait DelayingStoreSupport extends Store with BaseService {
   flush_source.setEventHandler(^{drain_flushes});
   flush_source.resume
 
-  val flush_latency_counter = new TimeCounter
+  val flush_latency_counter = new HistogramCounter
   var flush_latency = flush_latency_counter(false)
 
   def drain_flushes:Unit = {
@@ -546,8 +657,13 @@ trait DelayingStoreSupport extends Store with BaseService {
     if( !uows.isEmpty ) {
       flush_latency_counter.start { end=>
         flush_source.suspend
+        val write_started = System.nanoTime
         store(uows) {
           assert_executing
+          val adaptive = adaptive_flush_delay
+          if( adaptive!=null ) {
+            adaptive.write_completed(write_started, System.nanoTime - write_started)
+          }
           flush_source.resume
           store_completed(uows)
           dispatch_queue.assertExecuting()
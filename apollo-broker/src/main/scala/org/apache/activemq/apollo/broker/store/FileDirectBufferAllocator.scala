@@ -259,6 +259,16 @@ class ActiveAllocator(val range:Range) extends Allocator {
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 object ByteBufferReleaser {
+
+  @volatile
+  private var _supported = false
+
+  /**
+   * Is false if the JVM does not let us get at the buffer internals, release
+   * then does nothing and the buffers get freed once they are garbage collected.
+   */
+  def supported = _supported
+
   val release: (ByteBuffer) => Unit = {
 
     // Try to drill into the java.nio.DirectBuffer internals...
@@ -281,6 +291,7 @@ object ByteBufferReleaser {
             }
           }
 
+          _supported = true
           clean _
         } catch {
           case _ =>
@@ -451,6 +462,8 @@ class FileDirectBufferAllocator(val file:File) extends DirectBufferAllocator {
       val b = ByteBuffer.allocate(size.min(1024*4))
       var pos = 0
       while( remaining(pos)> 0 ) {
+        // don't read past the end of this allocation.
+        b.limit(remaining(pos).min(b.capacity))
         val count = channel.read(b, offset+pos)
         if( count == -1 ) {
           throw new EOFException()
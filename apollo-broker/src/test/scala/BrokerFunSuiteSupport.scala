@@ -88,13 +88,13 @@ object BrokerTestSupport {
     unwrap_future_result(broker.default_virtual_host.get_dest_metrics)
   }
 
-  def queue_status(broker:Broker, name: String): QueueStatusDTO = {
+  def queue_status(broker:Broker, name: String, entries:Boolean=false): QueueStatusDTO = {
     val host = broker.default_virtual_host
     sync(host) {
       val router = host.router.asInstanceOf[LocalRouter]
       val queue = router.local_queue_domain.destination_by_id.get(name).get
       sync(queue) {
-        queue.status(false)
+        queue.status(entries)
       }
     }
   }
@@ -224,7 +224,7 @@ class BrokerFunSuiteSupport extends FunSuiteSupport with Logging { // with Shoul
   def get_topic_metrics = BrokerTestSupport.get_topic_metrics(broker)
   def get_dsub_metrics = BrokerTestSupport.get_dsub_metrics(broker)
   def get_dest_metrics = BrokerTestSupport.get_dest_metrics(broker)
-  def queue_status(name: String) = BrokerTestSupport.queue_status(broker, name)
+  def queue_status(name: String, entries:Boolean=false) = BrokerTestSupport.queue_status(broker, name, entries)
   def dsub_status(name: String) = BrokerTestSupport.dsub_status(broker, name)
   def webadmin_uri(scheme:String = "http") = BrokerTestSupport.webadmin_uri(broker, scheme)
 
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.broker.protocol.RawMessage
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.Buffer._
+
+class MessageEncodingTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("encodings are cached by key") {
+    val message = RawMessage(ascii("hello").buffer)
+    var created = 0
+    def encode(key:String) = message.encoding(key) {
+      created += 1
+      new String(key+"-"+created)
+    }
+    val first = encode("a")
+    encode("a") should be theSameInstanceAs (first)
+    created should be (1)
+    encode("b") should not be theSameInstanceAs (first)
+    created should be (2)
+  }
+
+  test("at most MAX_ENCODINGS encodings are cached") {
+    val message = RawMessage(ascii("hello").buffer)
+    var created = 0
+    def encode(key:Int) = message.encoding(new java.lang.Integer(key)) {
+      created += 1
+      new Object
+    }
+    for( i <- 0 until Message.MAX_ENCODINGS ) {
+      encode(i)
+    }
+    created should be (Message.MAX_ENCODINGS)
+
+    // Past the limit, the encodings get created every time.
+    val extra = encode(Message.MAX_ENCODINGS)
+    encode(Message.MAX_ENCODINGS) should not be theSameInstanceAs (extra)
+    created should be (Message.MAX_ENCODINGS + 2)
+
+    // The cached ones are still served from the cache.
+    encode(0)
+    created should be (Message.MAX_ENCODINGS + 2)
+  }
+
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtdispatch._
+
+class RateRegroupStrategyTest extends FunSuiteSupport with ShouldMatchers {
+
+  class TestProducer(val dispatch_queue:DispatchQueue) extends DeliveryProducer
+
+  // Serial queues stand in for the dispatch threads.
+  val threads = Array[DispatchQueue](createQueue("thread 0"), createQueue("thread 1"))
+
+  def node(name:String, thread:Int) = {
+    val rc = createQueue(name)
+    rc.setTargetQueue(threads(thread))
+    rc
+  }
+
+  def producer(name:String, thread:Int) = new TestProducer(node(name, thread))
+
+  def thread_of(queue:DispatchQueue) = threads.indexWhere(_ eq queue.getTargetQueue)
+
+  test("flows get spread over the threads of their consumers") {
+    val strategy = new RateRegroupStrategy
+    import strategy._
+
+    val c1 = node("consumer 1", 0)
+    val c2 = node("consumer 2", 1)
+    val p1 = producer("producer 1", 0)
+    val p2 = producer("producer 2", 0)
+    val q1 = producer("queue 1", 0)
+    val q2 = producer("queue 2", 0)
+
+    strategy.balance(List(
+      (Flow(p1, q1.dispatch_queue, q1), 100L),
+      (Flow(q1, c1, null), 100L),
+      (Flow(p2, q2.dispatch_queue, q2), 100L),
+      (Flow(q2, c2, null), 100L)
+    ), threads)
+
+    thread_of(p1.dispatch_queue) should be (0)
+    thread_of(q1.dispatch_queue) should be (0)
+    thread_of(c1) should be (0)
+
+    // The second flow moves to it's consumer's thread.
+    thread_of(p2.dispatch_queue) should be (1)
+    thread_of(q2.dispatch_queue) should be (1)
+    thread_of(c2) should be (1)
+  }
+
+  test("consumers are not moved") {
+    val strategy = new RateRegroupStrategy
+    import strategy._
+
+    val c1 = node("consumer 1", 0)
+    val c2 = node("consumer 2", 1)
+    val p1 = producer("producer 1", 0)
+
+    // A topic producer feeding consumers on both threads.
+    strategy.balance(List(
+      (Flow(p1, c1, null), 100L),
+      (Flow(p1, c2, null), 100L)
+    ), threads)
+
+    thread_of(c1) should be (0)
+    thread_of(c2) should be (1)
+    thread_of(p1.dispatch_queue) should be (0)
+  }
+
+  test("partitions stay on their thread unless it gets overloaded") {
+    val strategy = new RateRegroupStrategy
+    import strategy._
+
+    val c1 = node("consumer 1", 0)
+    val c2 = node("consumer 2", 0)
+    val c3 = node("consumer 3", 1)
+    val p1 = producer("producer 1", 0)
+    val p2 = producer("producer 2", 0)
+    val p3 = producer("producer 3", 1)
+
+    strategy.balance(List(
+      (Flow(p1, c1, null), 100L),
+      (Flow(p2, c2, null), 45L),
+      (Flow(p2, c3, null), 45L),
+      (Flow(p3, c3, null), 1L)
+    ), threads)
+
+    // The heaviest flow stays where it is.
+    thread_of(p1.dispatch_queue) should be (0)
+    // Keeping p2 on thread 0 would overload it, so it goes to c3's thread.
+    thread_of(p2.dispatch_queue) should be (1)
+    thread_of(p3.dispatch_queue) should be (1)
+    List(c1, c2, c3).map(thread_of(_)) should be (List(0, 0, 1))
+  }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.broker.protocol.RawMessage
+import org.apache.activemq.apollo.selector.SelectorParser
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.Buffer
+
+class SelectorIndexTest extends FunSuiteSupport with ShouldMatchers {
+
+  def message(properties:(String, AnyRef)*) = {
+    val map = properties.toMap
+    new RawMessage(new Buffer(0)) {
+      override def getProperty(name: String):AnyRef = map.get(name).orNull
+    }
+  }
+
+  def required(selector:String) = SelectorIndex.required_values(SelectorParser.parse(selector))
+
+  def excluded(index:SelectorIndex[String], message:Message, subs:String*) = {
+    index.prepare should be (true)
+    subs.filter(index.excluded(_, message)).toSet
+  }
+
+  test("required values") {
+    required("region = 'EU'") should be (Some(("region", Set("EU"))))
+    required("'EU' = region") should be (Some(("region", Set("EU"))))
+    required("region IN ('EU', 'US')") should be (Some(("region", Set("EU", "US"))))
+    required("size > 5 AND region = 'EU'") should be (Some(("region", Set("EU"))))
+    required("region = 'EU' OR region = 'US'") should be (None)
+    required("region NOT IN ('EU', 'US')") should be (None)
+    required("region <> 'EU'") should be (None)
+    required("size = 5") should be (None)
+  }
+
+  test("subscriptions requiring other values are excluded") {
+    val index = new SelectorIndex[String]
+    index.prepare should be (false)
+
+    index.add("eu", "region = 'EU'")
+    index.add("us", "region = 'US' AND size > 5")
+    index.add("both", "region IN ('EU', 'US')")
+    index.add("any", null)
+    index.add("invalid", "region = ")
+    index.add("or", "region = 'EU' OR region = 'ASIA'")
+    val all = List("eu", "us", "both", "any", "invalid", "or")
+
+    excluded(index, message("region"->"EU"), all:_*) should be (Set("us"))
+    excluded(index, message("region"->"US"), all:_*) should be (Set("eu"))
+    excluded(index, message("region"->"ASIA"), all:_*) should be (Set("eu", "us", "both"))
+    excluded(index, message(), all:_*) should be (Set("eu", "us", "both"))
+
+    // Properties which are not strings need the selectors to get evaluated.
+    excluded(index, message("region"->new java.lang.Integer(1)), all:_*) should be (Set())
+  }
+
+  test("removed subscriptions are no longer indexed") {
+    val index = new SelectorIndex[String]
+    index.add("eu", "region = 'EU'")
+    index.add("us", "region = 'US'")
+
+    excluded(index, message("region"->"EU"), "eu", "us") should be (Set("us"))
+    index.remove("us")
+    excluded(index, message("region"->"EU"), "eu", "us") should be (Set())
+    excluded(index, message("region"->"US"), "eu", "us") should be (Set("eu"))
+    index.remove("eu")
+    index.isEmpty should be (true)
+    index.prepare should be (false)
+  }
+
+}
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.security
+
+import java.util.Properties
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import java.util.concurrent.atomic.AtomicInteger
+import javax.security.auth.Subject
+import javax.security.auth.callback.{PasswordCallback, NameCallback, Callback, CallbackHandler}
+import javax.security.auth.login.{FailedLoginException, AppConfigurationEntry, Configuration}
+import javax.security.auth.spi.LoginModule
+import org.apache.activemq.apollo.dto.AuthenticationDTO
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.jaas.UserPrincipal
+import org.scalatest.matchers.ShouldMatchers
+
+object CountingLoginModule {
+  val logins = new AtomicInteger
+  // when set, the logins wait on it.
+  @volatile var gate:CountDownLatch = null
+}
+
+/**
+ * Accepts the users whose password is their user name and counts the logins.
+ */
+class CountingLoginModule extends LoginModule {
+  import CountingLoginModule._
+
+  private var subject: Subject = _
+  private var callback_handler: CallbackHandler = _
+  private var user:String = _
+
+  def initialize(subject: Subject, callback_handler: CallbackHandler, shared_state: java.util.Map[String, _], options: java.util.Map[String, _]) = {
+    this.subject = subject
+    this.callback_handler = callback_handler
+  }
+
+  def login = {
+    logins.incrementAndGet()
+    val g = gate
+    if( g!=null ) {
+      g.await(5, TimeUnit.SECONDS)
+    }
+    val name = new NameCallback("Username: ")
+    val password = new PasswordCallback("Password: ", false)
+    callback_handler.handle(Array[Callback](name, password))
+    if( password.getPassword==null || name.getName != new String(password.getPassword) ) {
+      throw new FailedLoginException("Invalid user id or password")
+    }
+    user = name.getName
+    true
+  }
+
+  def commit = {
+    subject.getPrincipals.add(new UserPrincipal(user))
+    true
+  }
+
+  def abort = true
+
+  def logout = true
+}
+
+class JaasAuthenticatorTest extends FunSuiteSupport with ShouldMatchers {
+
+  override def is_parallel_test_class = false
+
+  val DOMAIN = "JaasAuthenticatorTest"
+  var original:Configuration = _
+
+  override protected def beforeAll(map: Map[String, Any]) = {
+    super.beforeAll(map)
+    original = try { Configuration.getConfiguration } catch { case e:SecurityException => null }
+    Configuration.setConfiguration(new Configuration {
+      def getAppConfigurationEntry(name: String) = {
+        if( name == DOMAIN ) {
+          Array(new AppConfigurationEntry(classOf[CountingLoginModule].getName, AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, new java.util.HashMap[String, AnyRef]()))
+        } else if( original!=null ) {
+          original.getAppConfigurationEntry(name)
+        } else {
+          null
+        }
+      }
+    })
+  }
+
+  override protected def afterAll(map: Map[String, Any]) = {
+    Configuration.setConfiguration(original)
+    super.afterAll(map)
+  }
+
+  def authenticator(cache_ttl:Int) = {
+    val config = new AuthenticationDTO
+    config.domain = DOMAIN
+    config.cache_ttl = cache_ttl
+    new JaasAuthenticator(config, JaasAuthenticator)
+  }
+
+  def context(user:String, password:String) = {
+    val rc = new SecurityContext
+    rc.user = user
+    rc.password = password
+    rc
+  }
+
+  def authenticate(authenticator:JaasAuthenticator, ctx:SecurityContext) = {
+    val done = new CountDownLatch(1)
+    var error:String = null
+    authenticator.authenticate(ctx) { rc =>
+      error = rc
+      done.countDown()
+    }
+    done.await(5, TimeUnit.SECONDS) should be (true)
+    error
+  }
+
+  test("logins are not cached by default") {
+    val auth = authenticator(0)
+    val start = CountingLoginModule.logins.get
+    authenticate(auth, context("alice", "alice")) should be (null)
+    authenticate(auth, context("alice", "alice")) should be (null)
+    CountingLoginModule.logins.get - start should be (2)
+    auth.metrics.cache_hits.get should be (0)
+  }
+
+  test("successful logins are cached") {
+    val auth = authenticator(60)
+    val start = CountingLoginModule.logins.get
+    authenticate(auth, context("alice", "alice")) should be (null)
+    val ctx = context("alice", "alice")
+    authenticate(auth, ctx) should be (null)
+    CountingLoginModule.logins.get - start should be (1)
+    auth.metrics.cache_hits.get should be (1)
+    auth.metrics.cache_misses.get should be (1)
+    ctx.subject.getPrincipals.iterator.next.getName should be ("alice")
+
+    // other credentials don't hit the cache.
+    authenticate(auth, context("alice", "wrong")) should not be (null)
+    authenticate(auth, context("alice", "wrong")) should not be (null)
+    CountingLoginModule.logins.get - start should be (3)
+  }
+
+  test("cached logins expire") {
+    val auth = authenticator(1)
+    val start = CountingLoginModule.logins.get
+    authenticate(auth, context("bob", "bob")) should be (null)
+    authenticate(auth, context("bob", "bob")) should be (null)
+    CountingLoginModule.logins.get - start should be (1)
+    Thread.sleep(1100)
+    authenticate(auth, context("bob", "bob")) should be (null)
+    CountingLoginModule.logins.get - start should be (2)
+  }
+
+  test("concurrent logins with the same credentials are coalesced") {
+    val auth = authenticator(60)
+    val start = CountingLoginModule.logins.get
+    val gate = new CountDownLatch(1)
+    CountingLoginModule.gate = gate
+    try {
+      val done = new CountDownLatch(3)
+      val errors = new java.util.concurrent.ConcurrentLinkedQueue[String]()
+      val contexts = (1 to 3).map(_ => context("carol", "carol"))
+      contexts.foreach { ctx =>
+        auth.authenticate(ctx) { error =>
+          if( error!=null ) {
+            errors.add(error)
+          }
+          done.countDown()
+        }
+      }
+      gate.countDown()
+      done.await(5, TimeUnit.SECONDS) should be (true)
+      errors.isEmpty should be (true)
+      CountingLoginModule.logins.get - start should be (1)
+      contexts.foreach { ctx =>
+        ctx.subject.getPrincipals.iterator.next.getName should be ("carol")
+      }
+    } finally {
+      CountingLoginModule.gate = null
+    }
+  }
+
+  test("group files are indexed by member") {
+    val groups = new Properties
+    groups.put("admins", "alice|bob")
+    groups.put("users", "alice | carol")
+    val file = new GroupFile(groups)
+    file.groups_of("alice", "|").sorted should be (List("admins", "users"))
+    file.groups_of("carol", "|") should be (List("users"))
+    file.groups_of("dave", "|") should be (Nil)
+    file.groups_of("alice|bob", ",") should be (List("admins"))
+  }
+
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import java.util.concurrent.TimeUnit._
+
+class AdaptiveFlushDelayTest extends FunSuiteSupport with ShouldMatchers {
+
+  /**
+   * Feeds the delay count writes which take latency ms and start every interval ms.
+   */
+  def feed(delay:AdaptiveFlushDelay, count:Int, latency:Long, interval:Long) = {
+    var now = MILLISECONDS.toNanos(1)
+    for( i <- 0 until count ) {
+      delay.write_completed(now, MILLISECONDS.toNanos(latency))
+      now += MILLISECONDS.toNanos(interval)
+    }
+  }
+
+  test("starts at half of the smaller of the flush_delay and latency target") {
+    new AdaptiveFlushDelay(500, 10).delay should be (MILLISECONDS.toNanos(5))
+    new AdaptiveFlushDelay(4, 10).delay should be (MILLISECONDS.toNanos(2))
+  }
+
+  test("converges so that the delay and the write fit in the latency target") {
+    val delay = new AdaptiveFlushDelay(500, 10)
+    feed(delay, 50, 2, 5)
+    delay.delay should be > (0L)
+    (delay.delay + MILLISECONDS.toNanos(2)) should be < (MILLISECONDS.toNanos(10))
+  }
+
+  test("busier writes leave less of the latency target for the delay") {
+    val idle = new AdaptiveFlushDelay(500, 10)
+    feed(idle, 50, 2, 100)
+    val busy = new AdaptiveFlushDelay(500, 10)
+    feed(busy, 50, 2, 2)
+    busy.delay should be < (idle.delay)
+  }
+
+  test("never exceeds the flush_delay") {
+    val delay = new AdaptiveFlushDelay(1, 100)
+    feed(delay, 50, 1, 50)
+    delay.delay should be (MILLISECONDS.toNanos(1))
+  }
+
+  test("does not delay when the writes alone miss the latency target") {
+    val delay = new AdaptiveFlushDelay(500, 10)
+    feed(delay, 50, 20, 25)
+    delay.delay should be (0L)
+  }
+
+}
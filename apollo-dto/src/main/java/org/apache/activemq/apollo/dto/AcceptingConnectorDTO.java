@@ -59,6 +59,36 @@ public class AcceptingConnectorDTO extends ConnectorTypeDTO {
     @XmlAttribute(name="send_buffer_size")
     public String send_buffer_size;
 
+    /**
+     * The maximum number of connections per second that the connector starts.
+     * Connections accepted faster than that wait in the accept queue.  Not
+     * limited by default.
+     */
+    @XmlAttribute(name="accept_rate")
+    public Integer accept_rate;
+
+    /**
+     * How many connections can get started at once before the accept_rate
+     * limit kicks in.  Defaults to the accept_rate.
+     */
+    @XmlAttribute(name="accept_burst")
+    public Integer accept_burst;
+
+    /**
+     * The maximum number of accepted connections waiting to get started
+     * because of the accept_rate, further connections get closed.  Defaults
+     * to 1000.
+     */
+    @XmlAttribute(name="accept_queue_size")
+    public Integer accept_queue_size;
+
+    /**
+     * The maximum number of connections per second accepted from a single
+     * remote host, further connections get closed.  Not limited by default.
+     */
+    @XmlAttribute(name="source_accept_rate")
+    public Integer source_accept_rate;
+
     /**
      * A broker accepts connections via it's configured connectors.
      */
@@ -83,6 +113,14 @@ public class AcceptingConnectorDTO extends ConnectorTypeDTO {
             return false;
         if (send_buffer_size != null ? !send_buffer_size.equals(that.send_buffer_size) : that.send_buffer_size != null)
             return false;
+        if (accept_rate != null ? !accept_rate.equals(that.accept_rate) : that.accept_rate != null)
+            return false;
+        if (accept_burst != null ? !accept_burst.equals(that.accept_burst) : that.accept_burst != null)
+            return false;
+        if (accept_queue_size != null ? !accept_queue_size.equals(that.accept_queue_size) : that.accept_queue_size != null)
+            return false;
+        if (source_accept_rate != null ? !source_accept_rate.equals(that.source_accept_rate) : that.source_accept_rate != null)
+            return false;
 
         return true;
     }
@@ -94,6 +132,10 @@ public class AcceptingConnectorDTO extends ConnectorTypeDTO {
         result = 31 * result + (protocol != null ? protocol.hashCode() : 0);
         result = 31 * result + (receive_buffer_size != null ? receive_buffer_size.hashCode() : 0);
         result = 31 * result + (send_buffer_size != null ? send_buffer_size.hashCode() : 0);
+        result = 31 * result + (accept_rate != null ? accept_rate.hashCode() : 0);
+        result = 31 * result + (accept_burst != null ? accept_burst.hashCode() : 0);
+        result = 31 * result + (accept_queue_size != null ? accept_queue_size.hashCode() : 0);
+        result = 31 * result + (source_accept_rate != null ? source_accept_rate.hashCode() : 0);
         result = 31 * result + (protocols != null ? protocols.hashCode() : 0);
         return result;
     }
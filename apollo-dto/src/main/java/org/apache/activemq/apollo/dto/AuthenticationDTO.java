@@ -48,6 +48,14 @@ public class AuthenticationDTO {
     @XmlAttribute
     public String domain;
 
+    /**
+     * How many seconds a successful login is remembered so that clients
+     * reconnecting with the same credentials don't have to go through
+     * the JAAS login modules again.  Defaults to 0 which disables the cache.
+     */
+    @XmlAttribute(name="cache_ttl")
+    public Integer cache_ttl;
+
     /**
      * The class names for the types of principles that
      * the acl lists check against.
@@ -121,4 +121,25 @@ public class BrokerStatusDTO extends ServiceStatusDTO {
 	@XmlAttribute(name="write_counter")
 	public long write_counter;
 
+    /**
+     * How long it took to authenticate the clients of the broker.
+     */
+    @XmlElement(name="authentication_latency")
+    public TimeMetricDTO authentication_latency;
+
+    /**
+     * The number of authentications which were answered from the
+     * authentication cache or by a login of the same credentials
+     * which was already in progress.
+     */
+    @XmlAttribute(name="authentication_cache_hits")
+    public long authentication_cache_hits;
+
+    /**
+     * The number of authentications which had to go through the JAAS
+     * login modules.
+     */
+    @XmlAttribute(name="authentication_cache_misses")
+    public long authentication_cache_misses;
+
 }
@@ -56,6 +56,27 @@ public class ConnectorStatusDTO extends ServiceStatusDTO {
     @XmlAttribute
     public long connected;
 
+    /**
+     * The number of accepted connections which are waiting to get started
+     * because of the connector's accept_rate.
+     */
+    @XmlAttribute
+    public long queued;
+
+    /**
+     * The number of accepted connections which had to wait in the
+     * accept queue.
+     */
+    @XmlAttribute(name="queued_counter")
+    public long queued_counter;
+
+    /**
+     * The number of accepted connections which were closed because the
+     * accept queue was full or their remote host connected too often.
+     */
+    @XmlAttribute(name="rejected_counter")
+    public long rejected_counter;
+
     /**
      * The connections that have been created via the connector.
      */
@@ -22,6 +22,7 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
 /**
@@ -231,4 +232,48 @@ public class DestMetricsDTO {
     @XmlAttribute(name="swap_in_size_counter")
     public long swap_in_size_counter;
 
+    /**
+     * How long messages waited in the queue before they were first
+     * dispatched to a consumer.  On aggregated metrics the percentiles
+     * are the highest ones of the aggregated destinations.
+     */
+    @XmlElement(name="dispatch_latency")
+    public TimeMetricDTO dispatch_latency;
+
+    /**
+     * How long sampled messages took from being decoded by the
+     * producer's protocol to being accepted by the router.  Only
+     * collected when the virtual host sets latency_sampling.
+     */
+    @XmlElement(name="route_latency")
+    public TimeMetricDTO route_latency;
+
+    /**
+     * How long sampled messages took from the router to being
+     * enqueued by the destination.
+     */
+    @XmlElement(name="enqueue_latency")
+    public TimeMetricDTO enqueue_latency;
+
+    /**
+     * How long sampled persistent messages took from being enqueued
+     * to being flushed by the store.
+     */
+    @XmlElement(name="store_latency")
+    public TimeMetricDTO store_latency;
+
+    /**
+     * How long sampled messages took from being enqueued to being
+     * accepted by a subscription.
+     */
+    @XmlElement(name="subscription_latency")
+    public TimeMetricDTO subscription_latency;
+
+    /**
+     * How long sampled messages took from being accepted by a
+     * subscription to being handed to the consumer's transport.
+     */
+    @XmlElement(name="transport_latency")
+    public TimeMetricDTO transport_latency;
+
 }
@@ -42,6 +42,15 @@ public abstract class StoreDTO {
     @XmlAttribute(name="flush_delay", required=false)
     public Long flush_delay;
 
+    /**
+     * When set, the store adapts the delay applied to units of work so
+     * that they complete within this many milliseconds, based on the
+     * observed write latency and load of the store.  The flush_delay
+     * then becomes the upper bound of the delay.
+     */
+    @XmlAttribute(name="flush_latency_target", required=false)
+    public Long flush_latency_target;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -51,12 +60,16 @@ public abstract class StoreDTO {
 
         if (flush_delay != null ? !flush_delay.equals(storeDTO.flush_delay) : storeDTO.flush_delay != null)
             return false;
+        if (flush_latency_target != null ? !flush_latency_target.equals(storeDTO.flush_latency_target) : storeDTO.flush_latency_target != null)
+            return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return flush_delay != null ? flush_delay.hashCode() : 0;
+        int result = flush_delay != null ? flush_delay.hashCode() : 0;
+        result = 31 * result + (flush_latency_target != null ? flush_latency_target.hashCode() : 0);
+        return result;
     }
 }
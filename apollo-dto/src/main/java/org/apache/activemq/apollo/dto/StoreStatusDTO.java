@@ -100,6 +100,20 @@ public abstract class StoreStatusDTO {
     @XmlElement(name="flush_latency")
     public TimeMetricDTO flush_latency;
 
+    /**
+     * The amount of time it takes a unit of work to complete once
+     * it has been closed.
+     */
+    @XmlElement(name="close_latency")
+    public TimeMetricDTO close_latency;
+
+    /**
+     * The delay currently applied to units of work before they
+     * get flushed, in microseconds.
+     */
+    @XmlAttribute(name="current_flush_delay")
+    public long current_flush_delay;
+
     @XmlElement(name="pending_stores")
     public int pending_stores;
 
@@ -60,6 +60,31 @@ public class TimeMetricDTO {
     @XmlAttribute
     public long min;
 
+    /**
+     * The time in nanoseconds below which 50% of the events completed.
+     * Only reported by metrics which track a latency histogram.
+     */
+    @XmlAttribute
+    public long p50;
+
+    /**
+     * The time in nanoseconds below which 90% of the events completed.
+     */
+    @XmlAttribute
+    public long p90;
+
+    /**
+     * The time in nanoseconds below which 99% of the events completed.
+     */
+    @XmlAttribute
+    public long p99;
+
+    /**
+     * The time in nanoseconds below which 99.9% of the events completed.
+     */
+    @XmlAttribute
+    public long p999;
+
 
     public float max(TimeUnit unit) {
         return ((float)max) / unit.toNanos(1);
@@ -71,6 +96,19 @@ public class TimeMetricDTO {
         return ((float)total) / unit.toNanos(1);
     }
 
+    public float p50(TimeUnit unit) {
+        return ((float)p50) / unit.toNanos(1);
+    }
+    public float p90(TimeUnit unit) {
+        return ((float)p90) / unit.toNanos(1);
+    }
+    public float p99(TimeUnit unit) {
+        return ((float)p99) / unit.toNanos(1);
+    }
+    public float p999(TimeUnit unit) {
+        return ((float)p999) / unit.toNanos(1);
+    }
+
     public float avg(TimeUnit unit) {
         return count==0 ? 0f : total(unit) / count;
     }
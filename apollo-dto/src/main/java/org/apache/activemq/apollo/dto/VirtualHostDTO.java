@@ -78,9 +78,42 @@ public class VirtualHostDTO extends ServiceDTO {
 
     /**
      * Should connections get regroups so they get serviced by the same thread?
+     * Set to "true" to collocate producers and queues with their first consumer,
+     * to "rate" to spread the measured message flows evenly across the dispatch
+     * threads, or to the class name of a custom ConnectionRegroupStrategy.
      */
     @XmlAttribute(name="regroup_connections")
-    public Boolean regroup_connections;
+    public String regroup_connections;
+
+    /**
+     * The maximum amount of memory used to cache the retained messages
+     * of the topics.  Retained messages not in the cache are loaded from
+     * the store on demand.  Defaults to 10m.
+     */
+    @XmlAttribute(name="retained_cache_size")
+    public String retained_cache_size;
+
+    /**
+     * If set, 1 out of this many messages get time stamped as they go
+     * through the broker so that the queues can report the latency of
+     * each stage of the delivery.  Not set by default.
+     */
+    @XmlAttribute(name="latency_sampling")
+    public Integer latency_sampling;
+
+    /**
+     * How many seconds the ids of the messages sent by producers which opted
+     * into duplicate detection are remembered for.  Defaults to 300.
+     */
+    @XmlAttribute(name="duplicate_detection_window")
+    public Integer duplicate_detection_window;
+
+    /**
+     * The maximum number of message ids remembered for duplicate
+     * detection.  Defaults to 100000.
+     */
+    @XmlAttribute(name="duplicate_detection_size")
+    public Integer duplicate_detection_size;
 
     @XmlElement(name="authentication")
     public AuthenticationDTO authentication;
@@ -89,8 +122,11 @@ public class VirtualHostDTO extends ServiceDTO {
     public LogCategoryDTO log_category;
 
     /**
-     * If set the the broker will avoid allocating messages larger than the configured
-     * setting on the JVM heap.  They will be held in temp files until consumed or persisted
+     * If set the broker will avoid holding message bodies larger than the configured
+     * setting on the JVM heap while they are queued.  They will be held in temp files
+     * until consumed or persisted.  Only STOMP messages are kept off the heap, and their
+     * bodies are still copied through the connection's write buffer in chunks when they
+     * are sent to consumers.
      */
     @XmlElement(name="heap_bypass")
     public String heap_bypass;
@@ -124,6 +160,14 @@ public class VirtualHostDTO extends ServiceDTO {
         if (queues != null ? !queues.equals(that.queues) : that.queues != null) return false;
         if (regroup_connections != null ? !regroup_connections.equals(that.regroup_connections) : that.regroup_connections != null)
             return false;
+        if (latency_sampling != null ? !latency_sampling.equals(that.latency_sampling) : that.latency_sampling != null)
+            return false;
+        if (duplicate_detection_window != null ? !duplicate_detection_window.equals(that.duplicate_detection_window) : that.duplicate_detection_window != null)
+            return false;
+        if (duplicate_detection_size != null ? !duplicate_detection_size.equals(that.duplicate_detection_size) : that.duplicate_detection_size != null)
+            return false;
+        if (retained_cache_size != null ? !retained_cache_size.equals(that.retained_cache_size) : that.retained_cache_size != null)
+            return false;
         if (store != null ? !store.equals(that.store) : that.store != null) return false;
         if (topics != null ? !topics.equals(that.topics) : that.topics != null) return false;
 
@@ -142,6 +186,10 @@ public class VirtualHostDTO extends ServiceDTO {
         result = 31 * result + (queues != null ? queues.hashCode() : 0);
         result = 31 * result + (dsubs != null ? dsubs.hashCode() : 0);
         result = 31 * result + (regroup_connections != null ? regroup_connections.hashCode() : 0);
+        result = 31 * result + (retained_cache_size != null ? retained_cache_size.hashCode() : 0);
+        result = 31 * result + (latency_sampling != null ? latency_sampling.hashCode() : 0);
+        result = 31 * result + (duplicate_detection_window != null ? duplicate_detection_window.hashCode() : 0);
+        result = 31 * result + (duplicate_detection_size != null ? duplicate_detection_size.hashCode() : 0);
         result = 31 * result + (authentication != null ? authentication.hashCode() : 0);
         result = 31 * result + (log_category != null ? log_category.hashCode() : 0);
         result = 31 * result + (heap_bypass != null ? heap_bypass.hashCode() : 0);
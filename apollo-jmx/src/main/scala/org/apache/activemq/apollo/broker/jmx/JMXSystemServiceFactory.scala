@@ -69,10 +69,76 @@ trait JmxBrokerMBean {
   def getVersion:String
   def getState:String
   def getWebAdminUrl:String
+
+  // How long messages wait in the queues before they are first
+  // dispatched, in nanoseconds.
+  def getDispatchLatencyCount:Long
+  def getDispatchLatencyMax:Long
+  def getDispatchLatencyP50:Long
+  def getDispatchLatencyP90:Long
+  def getDispatchLatencyP99:Long
+  def getDispatchLatencyP999:Long
+
+  // The stage latencies of the messages sampled by the virtual hosts
+  // which set latency_sampling, in nanoseconds.
+  def getRouteLatencyP50:Long
+  def getRouteLatencyP99:Long
+  def getRouteLatencyMax:Long
+  def getEnqueueLatencyP50:Long
+  def getEnqueueLatencyP99:Long
+  def getEnqueueLatencyMax:Long
+  def getStoreLatencyP50:Long
+  def getStoreLatencyP99:Long
+  def getStoreLatencyMax:Long
+  def getSubscriptionLatencyP50:Long
+  def getSubscriptionLatencyP99:Long
+  def getSubscriptionLatencyMax:Long
+  def getTransportLatencyP50:Long
+  def getTransportLatencyP99:Long
+  def getTransportLatencyMax:Long
+
+  // How long it takes to authenticate clients, in nanoseconds.
+  def getAuthenticationLatencyP50:Long
+  def getAuthenticationLatencyP99:Long
+  def getAuthenticationLatencyMax:Long
+  def getAuthenticationCacheHits:Long
+  def getAuthenticationCacheMisses:Long
 }
 
 class JmxBroker(val broker: Broker) extends JmxBrokerMBean {
   def getVersion = Broker.version
   def getState = broker.service_state.toString
   def getWebAdminUrl = broker.web_admin_url
+
+  def dispatch_latency = broker.dispatch_latency
+  def getDispatchLatencyCount = dispatch_latency.count
+  def getDispatchLatencyMax = dispatch_latency.max
+  def getDispatchLatencyP50 = dispatch_latency.p50
+  def getDispatchLatencyP90 = dispatch_latency.p90
+  def getDispatchLatencyP99 = dispatch_latency.p99
+  def getDispatchLatencyP999 = dispatch_latency.p999
+
+  def stage_latency = broker.stage_latency_counters
+  def getRouteLatencyP50 = stage_latency.route(false).p50
+  def getRouteLatencyP99 = stage_latency.route(false).p99
+  def getRouteLatencyMax = stage_latency.route(false).max
+  def getEnqueueLatencyP50 = stage_latency.enqueue(false).p50
+  def getEnqueueLatencyP99 = stage_latency.enqueue(false).p99
+  def getEnqueueLatencyMax = stage_latency.enqueue(false).max
+  def getStoreLatencyP50 = stage_latency.store(false).p50
+  def getStoreLatencyP99 = stage_latency.store(false).p99
+  def getStoreLatencyMax = stage_latency.store(false).max
+  def getSubscriptionLatencyP50 = stage_latency.subscription(false).p50
+  def getSubscriptionLatencyP99 = stage_latency.subscription(false).p99
+  def getSubscriptionLatencyMax = stage_latency.subscription(false).max
+  def getTransportLatencyP50 = stage_latency.transport(false).p50
+  def getTransportLatencyP99 = stage_latency.transport(false).p99
+  def getTransportLatencyMax = stage_latency.transport(false).max
+
+  def authentication = broker.authentication_metrics
+  def getAuthenticationLatencyP50 = authentication.latency_counter(false).p50
+  def getAuthenticationLatencyP99 = authentication.latency_counter(false).p99
+  def getAuthenticationLatencyMax = authentication.latency_counter(false).max
+  def getAuthenticationCacheHits = authentication.cache_hits.get
+  def getAuthenticationCacheMisses = authentication.cache_misses.get
 }
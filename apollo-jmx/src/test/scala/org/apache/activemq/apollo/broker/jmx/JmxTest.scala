@@ -38,4 +38,33 @@ class JmxTest extends BrokerFunSuiteSupport with ShouldMatchers with BeforeAndAf
     info should not be(null)
     info should not be(Broker.version)
   }
+
+  test("Dispatch latency is aggregated from the queues") {
+    val host = broker.default_virtual_host
+    val queues = host.dispatch_queue.future {
+      val router = host.router.asInstanceOf[LocalRouter]
+      List("jmx.latency.a", "jmx.latency.b").map { name =>
+        router.local_queue_domain.get_or_create_destination(SimpleAddress("queue:"+name), null).success
+      }
+    }.await()
+    queues(0).dispatch_latency_counter += 1000
+    queues(0).dispatch_latency_counter += 2000
+    queues(1).dispatch_latency_counter += 3000
+
+    val name = new ObjectName("org.apache.apollo:type=broker,name=\"default\"")
+    def attribute(attribute:String) = platform_mbean_server.getAttribute(name, attribute).asInstanceOf[java.lang.Long].longValue
+
+    attribute("DispatchLatencyCount") should be (3L)
+    attribute("DispatchLatencyMax") should be (3000L)
+    // the percentiles are accurate to within 1/16.
+    attribute("DispatchLatencyP50") should (be >= (2000L) and be <= (2125L))
+
+    // the latencies of a destroyed queue are still part of the totals.
+    delete_queue("jmx.latency.b")
+    within(5, SECONDS) {
+      queue_exists("jmx.latency.b") should be (false)
+      attribute("DispatchLatencyCount") should be (3L)
+      attribute("DispatchLatencyMax") should be (3000L)
+    }
+  }
 }
@@ -19,8 +19,9 @@ package org.apache.activemq.apollo.broker.store.leveldb
 
 import org.fusesource.hawtbuf._
 import org.iq80.leveldb._
-import java.io.DataOutput
+import java.io.{IOException, DataOutput}
 import org.fusesource.leveldbjni.internal.JniDB
+import org.apache.activemq.apollo.broker.store.QueueEntryPB
 
 object HelperTrait {
 
@@ -101,6 +102,131 @@ object HelperTrait {
     (in.readByte(), in.readInt())
   }
 
+  //
+  // Queue entry index values use a compact encoding.  An unframed QueueEntryPB
+  // always starts with a single byte field tag below 0x80, so values whose first
+  // byte has the high bit set are compact encoded.  That first byte holds the
+  // encoding version in bits 5-6 and flags for the optional fields in bits 0-4.
+  // It is followed by the message locator (as written by encode_locator), the
+  // size as a varint and then the optional fields which are present.  Senders
+  // are stored as the ids of their interned addresses.  The queue key and seq
+  // are not stored since they are part of the index key.  Entries with a
+  // sender that could not be interned are protobuf encoded instead.
+  //
+  final val COMPACT_ENTRY_V1 = 0xA0
+  final val COMPACT_ENTRY_VERSION_MASK = 0xE0
+  final val COMPACT_ENTRY_FLAGS_MASK = 0x1F
+
+  final val ENTRY_HAS_EXPIRATION = 0x01
+  final val ENTRY_HAS_REDELIVERIES = 0x02
+  final val ENTRY_HAS_SENDER = 0x04
+  final val ENTRY_HAS_ATTACHMENT = 0x08
+  final val ENTRY_HAS_MESSAGE_KEY = 0x10
+
+  /**
+   * @param sender_id returns the interned id of a sender address, or -1 if
+   *                  it could not be interned.
+   */
+  def encode_queue_entry(record: QueueEntryPB.Getter, sender_id: Buffer => Int): Array[Byte] = {
+    val senders = record.getSenderList
+    var sender_ids:Array[Int] = null
+    if (senders != null && !senders.isEmpty) {
+      sender_ids = new Array[Int](senders.size)
+      var i = 0
+      while (i < sender_ids.length) {
+        sender_ids(i) = sender_id(senders.get(i))
+        if (sender_ids(i) < 0) {
+          return record.freeze().toUnframedBuffer.toByteArray
+        }
+        i += 1
+      }
+    }
+
+    var flags = 0
+    if (record.getExpiration != 0)
+      flags |= ENTRY_HAS_EXPIRATION
+    if (record.getRedeliveries != 0)
+      flags |= ENTRY_HAS_REDELIVERIES
+    if (sender_ids != null)
+      flags |= ENTRY_HAS_SENDER
+    if (record.getAttachment != null)
+      flags |= ENTRY_HAS_ATTACHMENT
+    if (record.getMessageKey != 0)
+      flags |= ENTRY_HAS_MESSAGE_KEY
+
+    val out = new DataByteArrayOutputStream(32)
+    out.writeByte(COMPACT_ENTRY_V1 | flags)
+    record.getMessageLocator.writeTo(out.asInstanceOf[DataOutput])
+    out.writeVarInt(record.getSize)
+    if ((flags & ENTRY_HAS_EXPIRATION) != 0)
+      out.writeVarLong(record.getExpiration)
+    if ((flags & ENTRY_HAS_REDELIVERIES) != 0)
+      out.writeVarInt(record.getRedeliveries)
+    if ((flags & ENTRY_HAS_SENDER) != 0) {
+      out.writeVarInt(sender_ids.length)
+      sender_ids.foreach(out.writeVarInt(_))
+    }
+    if ((flags & ENTRY_HAS_ATTACHMENT) != 0) {
+      val attachment = record.getAttachment
+      out.writeVarInt(attachment.length)
+      attachment.writeTo(out.asInstanceOf[DataOutput])
+    }
+    if ((flags & ENTRY_HAS_MESSAGE_KEY) != 0)
+      out.writeVarLong(record.getMessageKey)
+    out.toBuffer.toByteArray
+  }
+
+  def is_compact_queue_entry(value: Array[Byte]) = value.length > 0 && (value(0) & 0x80) != 0
+
+  private def compact_queue_entry_input(value: Array[Byte]) = {
+    if ((value(0) & COMPACT_ENTRY_VERSION_MASK) != COMPACT_ENTRY_V1) {
+      throw new IOException("Unsupported queue entry encoding: " + (value(0) & 0xFF))
+    }
+    val in = new DataByteArrayInputStream(value)
+    in.readByte()
+    in
+  }
+
+  def decode_queue_entry(value: Array[Byte], sender: Int => Buffer): QueueEntryPB.Bean = {
+    if (!is_compact_queue_entry(value)) {
+      // Written before the compact encoding was introduced.
+      return QueueEntryPB.FACTORY.parseUnframed(value).copy()
+    }
+    val flags = value(0) & COMPACT_ENTRY_FLAGS_MASK
+    val in = compact_queue_entry_input(value)
+    val rc = new QueueEntryPB.Bean
+    rc.setMessageLocator(new Buffer(encode_locator(in.readVarLong(), in.readVarInt())))
+    rc.setSize(in.readVarInt())
+    if ((flags & ENTRY_HAS_EXPIRATION) != 0)
+      rc.setExpiration(in.readVarLong())
+    if ((flags & ENTRY_HAS_REDELIVERIES) != 0)
+      rc.setRedeliveries(in.readVarInt())
+    if ((flags & ENTRY_HAS_SENDER) != 0) {
+      var remaining = in.readVarInt()
+      while (remaining > 0) {
+        rc.addSender(sender(in.readVarInt()))
+        remaining -= 1
+      }
+    }
+    if ((flags & ENTRY_HAS_ATTACHMENT) != 0)
+      rc.setAttachment(in.readBuffer(in.readVarInt()))
+    if ((flags & ENTRY_HAS_MESSAGE_KEY) != 0)
+      rc.setMessageKey(in.readVarLong())
+    rc
+  }
+
+  /**
+   * Decodes just the message locator of a queue entry index value, this
+   * avoids decoding the rest of the entry when scanning the index.
+   */
+  def decode_queue_entry_locator(value: Array[Byte]): (Long, Int) = {
+    if (!is_compact_queue_entry(value)) {
+      return decode_locator(QueueEntryPB.FACTORY.parseUnframed(value).getMessageLocator)
+    }
+    val in = compact_queue_entry_input(value)
+    (in.readVarLong(), in.readVarInt())
+  }
+
   final class RichDB(val db: DB) {
 
     val is_pure_java_version = db.getClass.getName == "org.iq80.leveldb.impl.DbImpl"
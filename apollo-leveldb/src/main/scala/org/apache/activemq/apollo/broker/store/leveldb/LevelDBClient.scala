@@ -23,7 +23,7 @@ import java.{util => ju}
 import org.fusesource.hawtdispatch._
 import org.apache.activemq.apollo.broker.store._
 import java.io._
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{TimeUnit, Executors, ThreadFactory, Callable, ExecutionException, Future => JFuture}
 import org.apache.activemq.apollo.util._
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import org.apache.activemq.apollo.util.{TreeMap => ApolloTreeMap}
@@ -34,7 +34,7 @@ import org.apache.activemq.apollo.util.ProcessSupport._
 import collection.mutable.{HashMap, ListBuffer}
 import org.apache.activemq.apollo.dto.JsonCodec
 import org.iq80.leveldb._
-import org.apache.activemq.apollo.broker.store.leveldb.RecordLog.LogInfo
+import org.apache.activemq.apollo.broker.store.leveldb.RecordLog.{LOG_HEADER_SIZE, LogInfo}
 import org.apache.activemq.apollo.broker.store.PBSupport
 import java.util.concurrent.atomic.AtomicReference
 import org.fusesource.hawtbuf.{DataByteArrayInputStream, Buffer}
@@ -52,10 +52,12 @@ object LevelDBClient extends Log {
   final val queue_entry_prefix = 'e'.toByte
   final val map_prefix = 'p'.toByte
   final val tmp_prefix = 't'.toByte
+  final val sender_prefix = 's'.toByte
 
   final val queue_prefix_array = Array(queue_prefix)
   final val map_prefix_array = Array(map_prefix)
   final val queue_entry_prefix_array = Array(queue_entry_prefix)
+  final val sender_prefix_array = Array(sender_prefix)
 
   final val dirty_index_key = bytes(":dirty")
   final val log_refs_index_key = bytes(":log-refs")
@@ -68,6 +70,19 @@ object LevelDBClient extends Log {
   final val LOG_ADD_QUEUE_ENTRY = 5.toByte
   final val LOG_REMOVE_QUEUE_ENTRY = 6.toByte
   final val LOG_MAP_ENTRY = 7.toByte
+  final val LOG_UPDATE_QUEUE_ENTRY = 8.toByte
+
+  // How often we scan the index looking for journals worth compacting.
+  final val LOG_COMPACTION_CHECK_INTERVAL = 60 * 1000L
+
+  // Every moved message keeps an entry in the relocation map until its
+  // new journal is deleted, so we stop compacting once it holds this many.
+  final val LOG_COMPACTION_MAX_RELOCATIONS = 100 * 1000
+
+  // Interned sender addresses are never removed, so we stop interning once
+  // this many are held.  The queue entries of the other senders keep their
+  // addresses inline.
+  final val MAX_INTERNED_SENDERS = 64 * 1024
 
   final val LOG_SUFFIX = ".log"
   final val INDEX_SUFFIX = ".index"
@@ -186,7 +201,7 @@ class LevelDBClient(store: LevelDBStore) {
 
   def config = store.config
 
-  def directory = config.directory
+  def directory = store.directory
 
   /////////////////////////////////////////////////////////////////////
   //
@@ -205,11 +220,18 @@ class LevelDBClient(store: LevelDBStore) {
 
   var last_index_snapshot_ts = System.currentTimeMillis()
   var last_index_snapshot_pos: Long = _
+  var index_snapshot_interval = 1024 * 1024 * 100L
+  @volatile
+  var index_snapshot_pending = false
   val snapshot_rw_lock = new ReentrantReadWriteLock(true)
 
   var factory: DBFactory = _
   val log_refs = HashMap[Long, LongCounter]()
 
+  // The sender addresses interned by the queue entry index values.
+  val sender_ids = new ju.concurrent.ConcurrentHashMap[Buffer, Integer]()
+  val senders = new ju.concurrent.ConcurrentHashMap[Integer, Buffer]()
+
   def dirty_index_file = directory / ("dirty" + INDEX_SUFFIX)
 
   def temp_index_file = directory / ("temp" + INDEX_SUFFIX)
@@ -224,6 +246,10 @@ class LevelDBClient(store: LevelDBStore) {
     Option(config.log_size).map(MemoryPropertyEditor.parse(_)).getOrElse(1024 * 1024 * 100L)
   }
 
+  def recovery_threads = {
+    Option(config.recovery_threads).map(_.intValue()).getOrElse(Runtime.getRuntime.availableProcessors() min 8)
+  }
+
   def start() = {
     import OptionSupport._
     directory.mkdirs()
@@ -246,6 +272,7 @@ class LevelDBClient(store: LevelDBStore) {
 
     sync = config.sync.getOrElse(true);
     verify_checksums = config.verify_checksums.getOrElse(false);
+    index_snapshot_interval = Option(config.index_snapshot_interval).map(MemoryPropertyEditor.parse(_)).getOrElse(1024 * 1024 * 100L)
 
     index_options = new Options();
     index_options.createIfMissing(true);
@@ -275,6 +302,7 @@ class LevelDBClient(store: LevelDBStore) {
     log.sync = sync
     log.logSize = log_size
     log.verify_checksums = verify_checksums
+    log.mmap_limit = Option(config.log_mmap_limit).map(MemoryPropertyEditor.parse(_)).getOrElse(0L)
     log.on_log_rotate = () => {
       // lets queue a request to checkpoint when
       // the logs rotate.. queue it on the GC thread since GC's lock
@@ -355,6 +383,7 @@ class LevelDBClient(store: LevelDBStore) {
       def recover = {
         index = new RichDB(factory.open(dirty_index_file, index_options))
         load_log_refs
+        load_senders
         index.put(dirty_index_key, TRUE)
 
         if (paranoid_checks) {
@@ -378,84 +407,178 @@ class LevelDBClient(store: LevelDBStore) {
           }
         }
 
-        var replay_operations = 0
-        val log_replay_duration = time {
-          while (pos < log.appender_limit) {
-
-            val now = System.currentTimeMillis();
-            if (now > last_reported_at + 1000) {
-              val at = pos - last_index_snapshot_pos
-              val total = log.appender_limit - last_index_snapshot_pos
-              val rate = (pos - last_reported_pos) * 1000.0 / (now - last_reported_at)
-              val eta = (total - at) / rate
-
-              System.out.print("Replaying recovery log: %f%% done (%,d/%,d bytes) @ %,.2f kb/s, %s remaining.     \r".format(
-                at * 100.0 / total, at, total, rate / 1024, remaining(eta)))
-              showing_progress = true;
-              last_reported_at = now
-              last_reported_pos = pos
-            }
+        def report_progress(pos: Long) = {
+          val now = System.currentTimeMillis();
+          if (now > last_reported_at + 1000) {
+            val at = pos - last_index_snapshot_pos
+            val total = log.appender_limit - last_index_snapshot_pos
+            val rate = (pos - last_reported_pos) * 1000.0 / (now - last_reported_at)
+            val eta = (total - at) / rate
+
+            System.out.print("Replaying recovery log: %f%% done (%,d/%,d bytes) @ %,.2f kb/s, %s remaining.     \r".format(
+              at * 100.0 / total, at, total, rate / 1024, remaining(eta)))
+            showing_progress = true;
+            last_reported_at = now
+            last_reported_pos = pos
+          }
+        }
 
-            log.read(pos).map {
-              case (kind, data, next_pos) =>
-                kind match {
-                  case LOG_ADD_QUEUE_ENTRY =>
-                    replay_operations += 1
-                    val record = QueueEntryPB.FACTORY.parseUnframed(data)
+        // Only these records require index updates, the data of the
+        // rest does not even get read from the logs.
+        val replayable = (kind: Byte) => kind match {
+          case LOG_ADD_QUEUE_ENTRY | LOG_UPDATE_QUEUE_ENTRY | LOG_REMOVE_QUEUE_ENTRY |
+               LOG_ADD_QUEUE | LOG_REMOVE_QUEUE | LOG_MAP_ENTRY => true
+          case _ => false
+        }
 
-                    val index_record = record.copy()
-                    index_record.clearQueueKey()
-                    index_record.clearQueueSeq()
-                    index.put(encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq), index_record.freeze().toUnframedBuffer)
+        // Decodes a log record into the index update it requires.  The decoding
+        // is safe to do concurrently, the returned actions must be applied in log order.
+        def replay_action(kind: Byte, data: Buffer): Option[() => Unit] = kind match {
+          case LOG_ADD_QUEUE_ENTRY =>
+            val record = QueueEntryPB.FACTORY.parseUnframed(data)
+            Some(() => {
+              index.put(encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq), encode_index_entry(record))
+
+              log_ref_increment(decode_vlong(record.getMessageLocator))
+            })
+
+          case LOG_UPDATE_QUEUE_ENTRY =>
+            // The journal compactor moved the message of an existing entry.
+            val record = QueueEntryPB.FACTORY.parseUnframed(data)
+            Some(() => {
+              val key = encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq)
+              index.get(key, new ReadOptions).foreach {
+                value =>
+                  val (previous_pos, _) = decode_queue_entry_locator(value)
+                  live_log_info(previous_pos).foreach(log_ref_decrement(previous_pos, _))
+
+                  index.put(key, encode_index_entry(record))
+                  log_ref_increment(decode_vlong(record.getMessageLocator))
+              }
+            })
+
+          case LOG_REMOVE_QUEUE_ENTRY =>
+            Some(() => {
+              index.get(data, new ReadOptions).foreach {
+                value =>
+                  val (pos, _) = decode_queue_entry_locator(value)
+                  log_ref_decrement(pos)
+                  index.delete(data)
+              }
+            })
+
+          case LOG_ADD_QUEUE =>
+            val record = QueuePB.FACTORY.parseUnframed(data)
+            Some(() => {
+              index.put(encode_key(queue_prefix, record.getKey), data)
+            })
+
+          case LOG_REMOVE_QUEUE =>
+            val queue_key = decode_vlong(data)
+            Some(() => {
+              val ro = new ReadOptions
+              ro.fillCache(false)
+              ro.verifyChecksums(verify_checksums)
+              index.delete(encode_key(queue_prefix, queue_key))
+              index.cursor_prefixed(encode_key(queue_entry_prefix, queue_key), ro) {
+                (key, value) =>
+                  index.delete(key)
+
+                  // Figure out what log file that message entry was in so we can,
+                  // decrement the log file reference.
+                  val (pos, _) = decode_queue_entry_locator(value)
+                  log_ref_decrement(pos)
+                  true
+              }
+            })
 
-                    log_ref_increment(decode_vlong(record.getMessageLocator))
+          case LOG_MAP_ENTRY =>
+            val entry = MapEntryPB.FACTORY.parseUnframed(data)
+            Some(() => {
+              if (entry.getValue == null) {
+                index.delete(encode_key(map_prefix, entry.getKey))
+              } else {
+                index.put(encode_key(map_prefix, entry.getKey), entry.getValue.toByteArray)
+              }
+            })
 
-                  case LOG_REMOVE_QUEUE_ENTRY =>
-                    replay_operations += 1
-                    index.get(data, new ReadOptions).foreach {
-                      value =>
-                        val record = QueueEntryPB.FACTORY.parseUnframed(value)
-                        val pos = decode_vlong(record.getMessageLocator)
-                        pos.foreach(log_ref_decrement(_))
-                        index.delete(data)
-                    }
+          case _ =>
+            // Skip records which don't require index updates.
+            None
+        }
 
-                  case LOG_ADD_QUEUE =>
+        var replay_operations = 0
+        val log_replay_duration = time {
+          if (recovery_threads <= 1) {
+            while (pos < log.appender_limit) {
+              report_progress(pos)
+              log.read(pos, replayable).map {
+                case (kind, data, next_pos) =>
+                  replay_action(kind, data).foreach { action =>
+                    action()
                     replay_operations += 1
-                    val record = QueuePB.FACTORY.parseUnframed(data)
-                    index.put(encode_key(queue_prefix, record.getKey), data)
+                  }
+                  pos = next_pos
+              }
+            }
+          } else {
+            // Each log file gets scanned and decoded by a worker thread while
+            // the resulting index updates get applied here in log order.
+            val segments = log.log_mutex.synchronized {
+              val infos = collection.JavaConversions.collectionAsScalaIterable(log.log_infos.values()).toList
+              infos.zip(infos.drop(1).map(_.position) ::: List(log.appender_limit))
+            }.map {
+              case (info, limit) => (info.position max pos, limit)
+            }.filter {
+              case (start, limit) => start < limit
+            }
 
-                  case LOG_REMOVE_QUEUE =>
-                    replay_operations += 1
-                    val ro = new ReadOptions
-                    ro.fillCache(false)
-                    ro.verifyChecksums(verify_checksums)
-                    val queue_key = decode_vlong(data)
-                    index.delete(encode_key(queue_prefix, queue_key))
-                    index.cursor_prefixed(encode_key(queue_entry_prefix, queue_key), ro) {
-                      (key, value) =>
-                        index.delete(key)
-
-                        // Figure out what log file that message entry was in so we can,
-                        // decrement the log file reference.
-                        val record = QueueEntryPB.FACTORY.parseUnframed(value)
-                        val pos = decode_vlong(record.getMessageLocator)
-                        log_ref_decrement(pos)
-                        true
+            val executor = Executors.newFixedThreadPool(recovery_threads, new ThreadFactory() {
+              def newThread(r: Runnable) = {
+                val rc = new Thread(null, r, "LevelDB store recovery")
+                rc.setDaemon(true)
+                rc
+              }
+            })
+            try {
+              val pending = new ju.LinkedList[JFuture[ListBuffer[(Long, () => Unit)]]]()
+              var remaining_segments = segments
+              while (!remaining_segments.isEmpty || !pending.isEmpty) {
+                // Bound how many decoded log files we hold in memory.
+                while (!remaining_segments.isEmpty && pending.size < recovery_threads) {
+                  val (start, limit) = remaining_segments.head
+                  remaining_segments = remaining_segments.tail
+                  pending.add(executor.submit(new Callable[ListBuffer[(Long, () => Unit)]] {
+                    def call = {
+                      val rc = ListBuffer[(Long, () => Unit)]()
+                      var at = start
+                      while (at < limit) {
+                        val (kind, data, next_pos) = log.read(at, replayable).getOrElse {
+                          throw new IOException("Could not read the log at position: " + at)
+                        }
+                        replay_action(kind, data).foreach(action => rc += ((at, action)))
+                        at = next_pos
+                      }
+                      rc
                     }
+                  }))
+                }
 
-                  case LOG_MAP_ENTRY =>
+                val actions = try {
+                  pending.removeFirst().get()
+                } catch {
+                  case e: ExecutionException => throw e.getCause
+                }
+                actions.foreach {
+                  case (at, action) =>
+                    report_progress(at)
+                    action()
                     replay_operations += 1
-                    val entry = MapEntryPB.FACTORY.parseUnframed(data)
-                    if (entry.getValue == null) {
-                      index.delete(encode_key(map_prefix, entry.getKey))
-                    } else {
-                      index.put(encode_key(map_prefix, entry.getKey), entry.getValue.toByteArray)
-                    }
-                  case _ =>
-                  // Skip records which don't require index updates.
                 }
-                pos = next_pos
+              }
+              pos = log.appender_limit
+            } finally {
+              executor.shutdownNow()
             }
           }
           if (replay_operations > 0) {
@@ -511,7 +634,7 @@ class LevelDBClient(store: LevelDBStore) {
       (key, value) =>
         try {
           val (_, queue_key, seq_key) = decode_long_long_key(key)
-          val record = QueueEntryPB.FACTORY.parseUnframed(value)
+          val record = decode_index_entry(key, value)
           val (pos, len) = decode_locator(record.getMessageLocator)
           if (record.getQueueKey != queue_key) {
             throw new IOException("key missmatch")
@@ -562,8 +685,7 @@ class LevelDBClient(store: LevelDBStore) {
             trace("invalid queue entry record: %s, error: queue key does not exits %s", new Buffer(key), queue_key)
             fixed_records += 1
             index.delete(key)
-            val record = QueueEntryPB.FACTORY.parseUnframed(value)
-            val pos = decode_vlong(record.getMessageLocator)
+            val (pos, _) = decode_queue_entry_locator(value)
             log.log_info(pos).foreach {
               log_info =>
                 actual_log_refs.get(log_info.position).foreach {
@@ -621,6 +743,64 @@ class LevelDBClient(store: LevelDBStore) {
     }
   }
 
+  private def load_senders = {
+    sender_ids.clear()
+    senders.clear()
+    index.cursor_prefixed(sender_prefix_array) {
+      (key, value) =>
+        val (_, id) = decode_long_key(key)
+        val address = new Buffer(value)
+        sender_ids.put(address, id.toInt)
+        senders.put(id.toInt, address)
+        true
+    }
+  }
+
+  /**
+   * Returns the id of the interned sender address, interning it first
+   * if needed.  The address is stored in the index before it's id can
+   * be referenced by any queue entry index value.  Returns -1 if the
+   * address is not interned and MAX_INTERNED_SENDERS has been reached.
+   */
+  def sender_id(address: Buffer): Int = {
+    val id = sender_ids.get(address)
+    if (id != null) {
+      return id.intValue()
+    }
+    sender_ids.synchronized {
+      var rc = sender_ids.get(address)
+      if (rc == null) {
+        if (senders.size >= MAX_INTERNED_SENDERS) {
+          return -1
+        }
+        val copy = new Buffer(address.toByteArray)
+        rc = senders.size
+        index.put(encode_key(sender_prefix, rc.longValue()), copy.toByteArray)
+        senders.put(rc, copy)
+        sender_ids.put(copy, rc)
+      }
+      rc.intValue()
+    }
+  }
+
+  def sender(id: Int): Buffer = {
+    val rc = senders.get(id)
+    if (rc == null) {
+      throw new IOException("Unknown queue entry sender id: " + id)
+    }
+    rc
+  }
+
+  def encode_index_entry(record: QueueEntryPB.Getter): Array[Byte] = encode_queue_entry(record, sender_id)
+
+  def decode_index_entry(key: Array[Byte], value: Array[Byte]): QueueEntryPB.Bean = {
+    val (_, queue_key, queue_seq) = decode_long_long_key(key)
+    val rc = decode_queue_entry(value, sender)
+    rc.setQueueKey(queue_key)
+    rc.setQueueSeq(queue_seq)
+    rc
+  }
+
   def stop() = {
     // this blocks until all io completes..
     snapshot_rw_lock.writeLock().lock()
@@ -761,6 +941,8 @@ class LevelDBClient(store: LevelDBStore) {
       index.close
       directory.list_files.foreach(_.recursive_delete)
       log_refs.clear()
+      sender_ids.clear()
+      senders.clear()
     } finally {
       retry {
         index = new RichDB(factory.open(dirty_index_file, index_options))
@@ -821,8 +1003,7 @@ class LevelDBClient(store: LevelDBStore) {
 
               // Figure out what log file that message entry was in so we can,
               // decrement the log file reference.
-              val record = QueueEntryPB.FACTORY.parseUnframed(value)
-              val pos = decode_vlong(record.getMessageLocator)
+              val (pos, _) = decode_queue_entry_locator(value)
               log_ref_decrement(pos)
               true
           }
@@ -875,15 +1056,23 @@ class LevelDBClient(store: LevelDBStore) {
                         }
                         var header = pb.freeze().toFramedBuffer
 
-                        val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, header, body)
-                        locator = (pos, header.length + body.length)
+                        val direct = message_record.direct_buffer
+                        if( direct!=null ) {
+                          // The stored record holds the complete message so it
+                          // loads back without needing the direct buffer.
+                          val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, List(header, body), direct)
+                          locator = (pos, header.length + body.length + direct.size)
+                        } else {
+                          val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, header, body)
+                          locator = (pos, header.length + body.length)
+                        }
                         message_record.locator.set(locator);
                       }
 
                       action.dequeues.foreach {
                         entry =>
                           if (locator == null) {
-                            locator = entry.message_locator.get().asInstanceOf[(Long, Int)]
+                            locator = resolve_locator(entry.message_locator)
                           }
                           assert(locator != null)
                           val (pos, len) = locator
@@ -898,7 +1087,7 @@ class LevelDBClient(store: LevelDBStore) {
                       action.enqueues.foreach {
                         entry =>
                           if (locator == null) {
-                            locator = entry.message_locator.get().asInstanceOf[(Long, Int)]
+                            locator = resolve_locator(entry.message_locator)
                           }
                           assert(locator != null)
                           val (pos, len) = locator
@@ -909,7 +1098,6 @@ class LevelDBClient(store: LevelDBStore) {
                           entry.message_locator.set(locator)
 
                           val log_record = new QueueEntryPB.Bean
-                          // TODO: perhaps we should normalize the sender to make the index entries more compact.
                           if( entry.sender!=null ) {
                             entry.sender.foreach(log_record.addSender(_))
                           }
@@ -926,10 +1114,7 @@ class LevelDBClient(store: LevelDBStore) {
 
                           // Slim down the index record, the smaller it is the cheaper the compactions
                           // will be and the more we can cache in mem.
-                          val index_record = log_record.copy()
-                          index_record.clearQueueKey()
-                          index_record.clearQueueSeq()
-                          batch.put(encode_key(queue_entry_prefix, entry.queue_key, entry.entry_seq), index_record.freeze().toUnframedBuffer)
+                          batch.put(encode_key(queue_entry_prefix, entry.queue_key, entry.entry_seq), encode_index_entry(log_record))
 
                           // Increment it.
                           log_ref_increment(pos, log_info)
@@ -947,6 +1132,16 @@ class LevelDBClient(store: LevelDBStore) {
           }
       }
     }
+
+    // Snapshot the index once enough data has been logged so that
+    // recovery does not have to replay too much of the log.
+    if (!index_snapshot_pending && log.appender_limit - last_index_snapshot_pos >= index_snapshot_interval) {
+      index_snapshot_pending = true
+      store.write_executor {
+        index_snapshot_pending = false
+        snapshot_index
+      }
+    }
   }
 
   val metric_load_from_index_counter = new TimeCounter
@@ -966,7 +1161,7 @@ class LevelDBClient(store: LevelDBStore) {
             x =>
               val (_, locator, callback) = x
               val record = metric_load_from_index_counter.time {
-                val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
+                val (pos, len) = resolve_locator(locator)
                 log.read(pos, len).map { data =>
                   val is = new DataByteArrayInputStream(data)
                   val pb = MessagePB.FACTORY.parseFramed(is)
@@ -1002,7 +1197,7 @@ class LevelDBClient(store: LevelDBStore) {
             x =>
               val (_, locator, callback) = x
               val record: Option[MessageRecord] = metric_load_from_index_counter.time {
-                val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
+                val (pos, len) = resolve_locator(locator)
                 log.read(pos, len).map { data=>
                   val is = new DataByteArrayInputStream(data)
                   val pb = MessagePB.FACTORY.parseFramed(is)
@@ -1068,8 +1263,7 @@ class LevelDBClient(store: LevelDBStore) {
                 group.first_entry_seq = current_key
               }
 
-              val entry = QueueEntryPB.FACTORY.parseUnframed(value)
-              val pos = decode_vlong(entry.getMessageLocator)
+              val entry = decode_queue_entry(value, sender)
 
               group.last_entry_seq = current_key
               group.count += 1
@@ -1111,11 +1305,8 @@ class LevelDBClient(store: LevelDBStore) {
           val end = encode_key(queue_entry_prefix, queue_key, lastSeq + 1)
           index.cursor_range(start, end, ro) {
             (key, value) =>
-              val (_, _, queue_seq) = decode_long_long_key(key)
-              val record = QueueEntryPB.FACTORY.parseUnframed(value)
+              val record = decode_index_entry(key, value)
               val entry = PBSupport.from_pb(record)
-              entry.queue_key = queue_key
-              entry.entry_seq = queue_seq
               entry.message_locator = new AtomicReference[Object](decode_locator(record.getMessageLocator))
               rc += entry
               true
@@ -1199,6 +1390,9 @@ class LevelDBClient(store: LevelDBStore) {
       index.compact
       info("Compaction completed")
     }
+
+    compact_logs
+
     val empty_journals = log.log_infos.keySet.toSet -- log_refs.keySet
 
     // We don't want to delete any journals that the index has not snapshot'ed or
@@ -1206,12 +1400,241 @@ class LevelDBClient(store: LevelDBStore) {
     val delete_limit = log.log_info(last_index_snapshot_pos).map(_.position).
       getOrElse(last_index_snapshot_pos).min(log.appender_start)
 
+    var deleted = List[LogInfo]()
     empty_journals.foreach {
       id =>
         if (id < delete_limit) {
+          log.log_info(id).foreach { info =>
+            compacted_logs.remove(id).foreach { moved =>
+              compacted_log_files += 1
+              compaction_reclaimed_size += (info.length - moved).max(0)
+            }
+            deleted ::= info
+          }
           log.delete(id)
         }
     }
+    drop_relocations(deleted)
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Journal compaction
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  // Maps the old position of a message moved by the compactor to its new
+  // locator so that locators still held by the broker keep working.
+  val relocations = new ju.concurrent.ConcurrentHashMap[Long, (Long, Int)]()
+
+  // Journals whose live records were moved and which are waiting to be
+  // deleted, mapped to the number of bytes that were moved out of them.
+  val compacted_logs = HashMap[Long, Long]()
+
+  var last_log_compaction_check = System.currentTimeMillis()
+  var compacted_log_files = 0L
+  var compaction_moved_size = 0L
+  var compaction_reclaimed_size = 0L
+  var compaction_pending_log_files = 0
+
+  def log_compaction_threshold = {
+    import OptionSupport._
+    config.log_compaction_threshold.getOrElse(0.0)
+  }
+
+  def resolve_locator(locator: AtomicReference[Object]): (Long, Int) = {
+    var rc = locator.get().asInstanceOf[(Long, Int)]
+    if (rc != null && !relocations.isEmpty) {
+      var moved = relocations.get(rc._1)
+      if (moved != null) {
+        while (moved != null) {
+          rc = moved
+          moved = relocations.get(rc._1)
+        }
+        locator.set(rc)
+      }
+    }
+    rc
+  }
+
+  /**
+   * Like log.log_info but returns None if the position is in a
+   * journal which has been deleted.
+   */
+  def live_log_info(pos: Long) = log.log_info(pos).filter {
+    info => info.position == log.appender_start || pos < info.limit
+  }
+
+  private def drop_relocations(deleted: Seq[LogInfo]) = {
+    import collection.JavaConversions._
+    if (!deleted.isEmpty && !relocations.isEmpty) {
+      // Nothing references messages in a deleted journal anymore.
+      val i = relocations.entrySet().iterator()
+      while (i.hasNext) {
+        val pos = i.next().getValue._1
+        if (deleted.exists(info => info.position <= pos && pos < info.limit)) {
+          i.remove()
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves the live records of sealed journals whose utilization has dropped
+   * below the log_compaction_threshold into the current appender so that gc
+   * can delete the old journals.  Must be called from the write thread.
+   */
+  def compact_logs: Unit = {
+    import collection.JavaConversions._
+
+    val threshold = log_compaction_threshold
+    val now = System.currentTimeMillis()
+    if (threshold <= 0 || now < last_log_compaction_check + LOG_COMPACTION_CHECK_INTERVAL) {
+      return
+    }
+    last_log_compaction_check = now
+    if (relocations.size >= LOG_COMPACTION_MAX_RELOCATIONS) {
+      return
+    }
+
+    // Only sealed journals which are still referenced are candidates.
+    val candidates = log.log_mutex.synchronized {
+      log.log_infos.values.toList.filter {
+        info => info.position < log.appender_start && info.length > 0 && !compacted_logs.contains(info.position)
+      }
+    }.filter(info => log_refs.contains(info.position))
+
+    if (candidates.isEmpty) {
+      compaction_pending_log_files = 0
+      return
+    }
+
+    def candidate_of(pos: Long) = live_log_info(pos).filter(info => candidates.exists(_.position == info.position))
+
+    val ro = new ReadOptions
+    ro.verifyChecksums(verify_checksums)
+    ro.fillCache(false)
+
+    // Estimate how much of each candidate is still live. Messages referenced by
+    // multiple queues are counted more than once which just makes us compact
+    // a little less eagerly.
+    val live_size = HashMap[Long, Long]()
+    val live_count = HashMap[Long, Int]()
+    using_index {
+      index.cursor_prefixed(queue_entry_prefix_array, ro) {
+        (_, value) =>
+          val (pos, len) = decode_queue_entry_locator(value)
+          candidate_of(pos).foreach {
+            info =>
+              live_size.put(info.position, live_size.getOrElse(info.position, 0L) + LOG_HEADER_SIZE + len)
+              live_count.put(info.position, live_count.getOrElse(info.position, 0) + 1)
+          }
+          true
+      }
+    }
+
+    val sparse = candidates.map(info => (info, live_size.getOrElse(info.position, 0L))).filter {
+      case (info, used) => used < info.length * threshold
+    }.sortBy {
+      case (info, used) => used.toDouble / info.length
+    }
+    compaction_pending_log_files = sparse.size
+    if (sparse.isEmpty) {
+      return
+    }
+
+    // Don't move more than a journal's worth of data per pass so that we
+    // don't hold up the write thread for too long, nor more messages than
+    // the relocation map has room for.
+    var budget = log_size
+    var relocation_budget = LOG_COMPACTION_MAX_RELOCATIONS - relocations.size
+    val selected = sparse.takeWhile {
+      case (info, used) =>
+        val count = live_count.getOrElse(info.position, 0)
+        val rc = budget > 0 && count <= relocation_budget
+        budget -= used
+        relocation_budget -= count
+        rc
+    }.map(_._1)
+    if (selected.isEmpty) {
+      return
+    }
+
+    // Collect the queue entries which reference the selected journals, grouped by message.
+    val moves = new ju.TreeMap[Long, (Int, ListBuffer[(Array[Byte], Array[Byte])])]()
+    using_index {
+      index.cursor_prefixed(queue_entry_prefix_array, ro) {
+        (key, value) =>
+          val (pos, len) = decode_queue_entry_locator(value)
+          if (selected.exists(info => info.position <= pos && pos < info.limit)) {
+            var entries = moves.get(pos)
+            if (entries == null) {
+              entries = (len, ListBuffer[(Array[Byte], Array[Byte])]())
+              moves.put(pos, entries)
+            }
+            entries._2 += ((key, value))
+          }
+          true
+      }
+    }
+
+    val moved_from = HashMap[Long, Long]()
+    val moved = HashMap[Long, (Long, Int)]()
+    retry_using_index {
+      moved_from.clear()
+      moved.clear()
+      log.appender {
+        appender =>
+          index.write() {
+            batch =>
+              for ((old_pos, (old_len, entries)) <- moves) {
+                log.read(old_pos) match {
+                  case Some((LOG_ADD_MESSAGE, data, _)) =>
+                    val (new_pos, new_info) = appender.append(LOG_ADD_MESSAGE, data)
+                    val locator = (new_pos, data.length)
+                    val locator_buffer = encode_locator(new_pos, data.length)
+                    entries.foreach {
+                      case (key, value) =>
+                        val log_record = decode_index_entry(key, value)
+                        log_record.setMessageLocator(locator_buffer)
+                        appender.append(LOG_UPDATE_QUEUE_ENTRY, log_record.freeze().toUnframedBuffer)
+                        batch.put(key, encode_index_entry(log_record))
+
+                        log_ref_increment(new_pos, new_info)
+                        log_ref_decrement(old_pos)
+                    }
+                    moved.put(old_pos, locator)
+                    log.log_info(old_pos).foreach {
+                      info =>
+                        moved_from.put(info.position, moved_from.getOrElse(info.position, 0L) + LOG_HEADER_SIZE + data.length)
+                    }
+                  case _ =>
+                    warn("Could not compact the message at log position: %d", old_pos)
+                }
+              }
+          }
+      }
+    }
+
+    // Point previous relocations at the new locations and record the new ones.
+    for (entry <- relocations.entrySet()) {
+      moved.get(entry.getValue._1).foreach(entry.setValue(_))
+    }
+    for ((old_pos, locator) <- moved) {
+      relocations.put(old_pos, locator)
+    }
+
+    for (info <- selected) {
+      val moved_size = moved_from.getOrElse(info.position, 0L)
+      compaction_moved_size += moved_size
+      compacted_logs.put(info.position, moved_size)
+    }
+    compaction_pending_log_files = sparse.size - selected.size
+    info("Compacted %d journal(s), moved %d message(s)", selected.size, moved.size)
+
+    // The old journals can only be deleted once the index has been snapshot
+    // past the moved records.
+    snapshot_index
   }
 
   case class UsageCounter(info: LogInfo) {
@@ -1287,107 +1710,111 @@ class LevelDBClient(store: LevelDBStore) {
   def export_data(os: OutputStream): Option[String] = {
     try {
       val manager = ExportStreamManager(os, 1)
+      export_records(manager, pos => pos)
+      manager.finish
 
-      retry_using_index {
+      None
+    } catch {
+      case x: Exception =>
+        debug(x, "Export failed")
+        x.printStackTrace()
+        Some(x.getMessage)
+    }
+  }
 
-        // Delete all the tmp keys..
-        index.cursor_keys_prefixed(Array(tmp_prefix)) {
-          key =>
-            index.delete(key)
-            true
-        }
+  /**
+   * Writes the contents of the store to the export stream.  Messages are
+   * exported under the key that message_key maps their log position to, so
+   * that several stores can export into one stream.
+   */
+  def export_records(manager: ExportStreamManager, message_key: Long => Long): Unit = {
+    retry_using_index {
 
-        index.snapshot {
-          snapshot =>
-            val nocache = new ReadOptions
-            nocache.snapshot(snapshot)
-            nocache.verifyChecksums(verify_checksums)
-            nocache.fillCache(false)
-
-            val cache = new ReadOptions
-            nocache.snapshot(snapshot)
-            nocache.verifyChecksums(false)
-            nocache.fillCache(false)
-
-            // Build a temp table of all references messages by the queues
-            // Remember 2 queues could reference the same message.
-            index.cursor_prefixed(queue_entry_prefix_array, cache) {
-              (_, value) =>
-                val record = QueueEntryPB.FACTORY.parseUnframed(value)
-                val (pos, len) = decode_locator(record.getMessageLocator)
-                index.put(encode_key(tmp_prefix, pos), encode_vlong(len))
-                true
-            }
+      // Delete all the tmp keys..
+      index.cursor_keys_prefixed(Array(tmp_prefix)) {
+        key =>
+          index.delete(key)
+          true
+      }
 
-            // Use the temp table to export all the referenced messages. Use
-            // the log position as the message key.
-            index.cursor_prefixed(Array(tmp_prefix)) {
-              (key, value) =>
-                val (_, pos) = decode_long_key(key)
-                val len = decode_vlong(value).toInt
-                log.read(pos, len).foreach { data =>
-                  val is = new DataByteArrayInputStream(data)
-                  val record = MessagePB.FACTORY.parseFramed(is).copy()
-                  var buffer = is.readBuffer(is.available())
-                  if(record.getCompression == 1) {
-                    buffer = Snappy.uncompress(buffer)
-                  }
-                  record.setMessageKey(pos)
-                  record.setValue(buffer)
-                  manager.store_message(record)
-                }
-                true
-            }
+      index.snapshot {
+        snapshot =>
+          val nocache = new ReadOptions
+          nocache.snapshot(snapshot)
+          nocache.verifyChecksums(verify_checksums)
+          nocache.fillCache(false)
+
+          val cache = new ReadOptions
+          nocache.snapshot(snapshot)
+          nocache.verifyChecksums(false)
+          nocache.fillCache(false)
+
+          // Build a temp table of all references messages by the queues
+          // Remember 2 queues could reference the same message.
+          index.cursor_prefixed(queue_entry_prefix_array, cache) {
+            (_, value) =>
+              val (pos, len) = decode_queue_entry_locator(value)
+              index.put(encode_key(tmp_prefix, pos), encode_vlong(len))
+              true
+          }
 
-            // Now export the queue entries
-            index.cursor_prefixed(queue_entry_prefix_array, nocache) {
-              (key, value) =>
-                val (_, queue_key, queue_seq) = decode_long_long_key(key)
-                val record = QueueEntryPB.FACTORY.parseUnframed(value).copy()
-                val (pos, len) = decode_locator(record.getMessageLocator)
-                record.setQueueKey(queue_key)
-                record.setQueueSeq(queue_seq)
-                record.setMessageKey(pos)
-                manager.store_queue_entry(record)
-                true
-            }
+          // Use the temp table to export all the referenced messages. Use
+          // the log position as the message key.
+          index.cursor_prefixed(Array(tmp_prefix)) {
+            (key, value) =>
+              val (_, pos) = decode_long_key(key)
+              val len = decode_vlong(value).toInt
+              log.read(pos, len).foreach { data =>
+                val is = new DataByteArrayInputStream(data)
+                val record = MessagePB.FACTORY.parseFramed(is).copy()
+                var buffer = is.readBuffer(is.available())
+                if(record.getCompression == 1) {
+                  buffer = Snappy.uncompress(buffer)
+                }
+                record.setMessageKey(message_key(pos))
+                record.setValue(buffer)
+                manager.store_message(record)
+              }
+              true
+          }
 
-            index.cursor_prefixed(queue_prefix_array) {
-              (_, value) =>
-                val record = QueuePB.FACTORY.parseUnframed(value)
-                manager.store_queue(record)
-                true
-            }
+          // Now export the queue entries
+          index.cursor_prefixed(queue_entry_prefix_array, nocache) {
+            (key, value) =>
+              val record = decode_index_entry(key, value)
+              val (pos, len) = decode_locator(record.getMessageLocator)
+              record.setMessageKey(message_key(pos))
+              manager.store_queue_entry(record)
+              true
+          }
 
-            index.cursor_prefixed(map_prefix_array, nocache) {
-              (key, value) =>
-                val key_buffer = new Buffer(key)
-                key_buffer.moveHead(1)
-                val record = new MapEntryPB.Bean
-                record.setKey(key_buffer)
-                record.setValue(new Buffer(value))
-                manager.store_map_entry(record)
-                true
-            }
+          index.cursor_prefixed(queue_prefix_array) {
+            (_, value) =>
+              val record = QueuePB.FACTORY.parseUnframed(value)
+              manager.store_queue(record)
+              true
+          }
 
-        }
+          index.cursor_prefixed(map_prefix_array, nocache) {
+            (key, value) =>
+              val key_buffer = new Buffer(key)
+              key_buffer.moveHead(1)
+              val record = new MapEntryPB.Bean
+              record.setKey(key_buffer)
+              record.setValue(new Buffer(value))
+              manager.store_map_entry(record)
+              true
+          }
 
-        // Delete all the tmp keys..
-        index.cursor_keys_prefixed(Array(tmp_prefix)) {
-          key =>
-            index.delete(key)
-            true
-        }
+      }
 
+      // Delete all the tmp keys..
+      index.cursor_keys_prefixed(Array(tmp_prefix)) {
+        key =>
+          index.delete(key)
+          true
       }
-      manager.finish
 
-      None
-    } catch {
-      case x: Exception =>
-        debug(x, "Export failed")
-        x.printStackTrace()
-        Some(x.getMessage)
     }
   }
 
@@ -1400,73 +1827,33 @@ class LevelDBClient(store: LevelDBStore) {
 
       purge
 
-      retry_using_index {
-        log.appender {
-          appender =>
-            while (manager.getNext match {
-
-              case record: MessagePB.Buffer =>
-                val pb = new MessagePB.Bean
-                pb.setCodec(record.getCodec)
-                val body = if(snappy_compress_logs) {
-                  val compressed = Snappy.compress(record.getValue)
-                  if (compressed.length < record.getValue.length) {
-                    pb.setCompression(1)
-                    compressed
-                  } else {
-                    record.getValue
-                  }
-                } else {
-                  record.getValue
-                }
-                var header = pb.freeze().toFramedBuffer
-                val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, header, body)
-                index.put(encode_key(tmp_prefix, record.getMessageKey), encode_locator(pos, header.length+body.length))
-                true
-
-              case record: QueueEntryPB.Buffer =>
-                val copy = record.copy();
-                var original_msg_key: Long = record.getMessageKey
-                index.get(encode_key(tmp_prefix, original_msg_key)) match {
-                  case Some(locator) =>
-                    val (pos, len) = decode_locator(locator)
-                    copy.setMessageLocator(locator)
-                    index.put(encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq), copy.freeze().toUnframedBuffer)
-                    log.log_info(pos).foreach {
-                      log_info =>
-                        log_refs.getOrElseUpdate(log_info.position, new LongCounter()).incrementAndGet()
-                    }
-                  case None =>
-                    println("Invalid queue entry, references message that was not in the export: " + original_msg_key)
-                }
-                true
-
-              case record: QueuePB.Buffer =>
-                index.put(encode_key(queue_prefix, record.getKey), record.toUnframedBuffer)
-                true
+      while (manager.getNext match {
 
-              case record: MapEntryPB.Buffer =>
-                index.put(encode_key(map_prefix, record.getKey), record.getValue)
-                true
+        case record: MessagePB.Buffer =>
+          import_message(record)
+          true
 
-              case null =>
-                false
-            }) {
-              // keep looping
-            }
+        case record: QueueEntryPB.Buffer =>
+          if (!import_queue_entry(record)) {
+            println("Invalid queue entry, references message that was not in the export: " + record.getMessageKey)
+          }
+          true
 
-        }
-      }
+        case record: QueuePB.Buffer =>
+          import_queue(record)
+          true
 
-      store_log_refs
-      // Delete all the tmp keys..
-      index.cursor_keys_prefixed(Array(tmp_prefix)) {
-        key =>
-          index.delete(key)
+        case record: MapEntryPB.Buffer =>
+          import_map_entry(record)
           true
+
+        case null =>
+          false
+      }) {
+        // keep looping
       }
 
-      snapshot_index
+      import_completed
       None
 
     } catch {
@@ -1475,4 +1862,107 @@ class LevelDBClient(store: LevelDBStore) {
         Some(x.getMessage)
     }
   }
+
+  /**
+   * Appends an imported message to the log and remembers where it was
+   * stored under its exported key until the import completes.
+   */
+  def import_message(record: MessagePB.Buffer): Unit = {
+    retry_using_index {
+      log.appender {
+        appender =>
+          val pb = new MessagePB.Bean
+          pb.setCodec(record.getCodec)
+          val body = if(snappy_compress_logs) {
+            val compressed = Snappy.compress(record.getValue)
+            if (compressed.length < record.getValue.length) {
+              pb.setCompression(1)
+              compressed
+            } else {
+              record.getValue
+            }
+          } else {
+            record.getValue
+          }
+          var header = pb.freeze().toFramedBuffer
+          val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, header, body)
+          index.put(encode_key(tmp_prefix, record.getMessageKey), encode_locator(pos, header.length+body.length))
+      }
+    }
+  }
+
+  /**
+   * Reads back a message imported by import_message.
+   */
+  def imported_message(key: Long): Option[MessagePB.Buffer] = {
+    retry_using_index {
+      index.get(encode_key(tmp_prefix, key)).flatMap { locator =>
+        val (pos, len) = decode_locator(locator)
+        log.read(pos, len).map { data =>
+          val is = new DataByteArrayInputStream(data)
+          val record = MessagePB.FACTORY.parseFramed(is).copy()
+          var buffer = is.readBuffer(is.available())
+          if(record.getCompression == 1) {
+            buffer = Snappy.uncompress(buffer)
+          }
+          record.setMessageKey(key)
+          record.setValue(buffer)
+          record.freeze()
+        }
+      }
+    }
+  }
+
+  def has_imported_message(key: Long): Boolean = {
+    retry_using_index {
+      index.get(encode_key(tmp_prefix, key)).isDefined
+    }
+  }
+
+  /**
+   * Imports a queue entry, returns false if the message it references
+   * has not been imported.
+   */
+  def import_queue_entry(record: QueueEntryPB.Buffer): Boolean = {
+    retry_using_index {
+      val copy = record.copy();
+      index.get(encode_key(tmp_prefix, record.getMessageKey)) match {
+        case Some(locator) =>
+          val (pos, len) = decode_locator(locator)
+          copy.setMessageLocator(locator)
+          copy.clearMessageKey()
+          index.put(encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq), encode_index_entry(copy))
+          log.log_info(pos).foreach {
+            log_info =>
+              log_refs.getOrElseUpdate(log_info.position, new LongCounter()).incrementAndGet()
+          }
+          true
+        case None =>
+          false
+      }
+    }
+  }
+
+  def import_queue(record: QueuePB.Buffer): Unit = {
+    retry_using_index {
+      index.put(encode_key(queue_prefix, record.getKey), record.toUnframedBuffer)
+    }
+  }
+
+  def import_map_entry(record: MapEntryPB.Buffer): Unit = {
+    retry_using_index {
+      index.put(encode_key(map_prefix, record.getKey), record.getValue)
+    }
+  }
+
+  def import_completed: Unit = {
+    store_log_refs
+    // Delete all the tmp keys..
+    index.cursor_keys_prefixed(Array(tmp_prefix)) {
+      key =>
+        index.delete(key)
+        true
+    }
+    snapshot_index
+  }
 }
@@ -59,17 +59,22 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
 
   def store_kind = "leveldb"
 
-  override def toString = store_kind + " store at " + config.directory
+  def directory = config.directory
+
+  override def toString = store_kind + " store at " + directory
 
   override protected def locator_based = true
 
   def flush_delay = config.flush_delay.getOrElse(500)
 
+  override def flush_latency_target = config.flush_latency_target.getOrElse(-1L)
+
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
 
   override def on_store_requested(mr: MessageRecord) = {
-    if( client.snappy_compress_logs && mr.compressed==null ) {
+    // bodies kept in a direct buffer are appended to the log uncompressed.
+    if( client.snappy_compress_logs && mr.compressed==null && mr.direct_buffer==null ) {
       val compressed = Snappy.compress(mr.buffer)
       if (compressed.length < mr.buffer.length) {
         mr.compressed = compressed
@@ -92,6 +97,7 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
 
   protected def _start(on_completed: Task) = {
     try {
+      reset_flush_delay
       client = create_client
       write_executor = Executors.newFixedThreadPool(1, new ThreadFactory() {
         def newThread(r: Runnable) = {
@@ -272,12 +278,12 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   }
 
   def kind = "LevelDB"
-  def location = config.directory.toString
+  def location = directory.toString
 
   def get_store_status(callback: (StoreStatusDTO) => Unit) = dispatch_queue {
     val rc = new LevelDBStoreStatusDTO
     fill_store_status(rc)
-    for( file <- config.directory.recursive_list ) {
+    for( file <- directory.recursive_list ) {
       if(!file.isDirectory) {
         rc.disk_usage += file.length()
       }
@@ -290,6 +296,10 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
         rc.index_stats = client.index.getProperty("leveldb.stats")
         rc.log_append_pos = client.log.appender_limit
         rc.index_snapshot_pos = client.last_index_snapshot_pos
+        rc.compacted_log_files = client.compacted_log_files
+        rc.compaction_pending_log_files = client.compaction_pending_log_files
+        rc.compaction_moved_size = client.compaction_moved_size
+        rc.compaction_reclaimed_size = client.compaction_reclaimed_size
         rc.log_stats = {
           import collection.JavaConversions._
           var row_layout = "%-20s | %-10s | %-10s\n"
@@ -340,6 +350,7 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   override def compact(callback: => Unit) = write_executor {
     info("Compacting '%s'", toString)
     client.index.compact_needed = true
+    client.last_log_compaction_check = 0
     client.gc
     info("'%s' compaction completed", toString)
     callback
@@ -38,7 +38,11 @@ class LevelDBStoreFactory extends StoreFactory {
   def create(config: StoreDTO) = config match {
     case config: LevelDBStoreDTO =>
       if (config.getClass == classOf[LevelDBStoreDTO]) {
-        new LevelDBStore(config)
+        if (Option(config.partitions).map(_.intValue).getOrElse(1) > 1) {
+          new PartitionedLevelDBStore(config)
+        } else {
+          new LevelDBStore(config)
+        }
       } else {
         null
       }
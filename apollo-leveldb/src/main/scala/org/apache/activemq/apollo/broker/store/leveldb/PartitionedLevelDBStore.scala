@@ -0,0 +1,759 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import dto.{LevelDBStoreDTO, LevelDBStoreStatusDTO}
+import collection.Seq
+import collection.mutable.{HashMap, ListBuffer}
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.{Callable, ExecutionException}
+import java.util.concurrent.atomic._
+import java.io._
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.dto.{IntMetricDTO, TimeMetricDTO, StoreStatusDTO}
+import org.fusesource.hawtbuf.Buffer
+import FileSupport._
+
+object PartitionedLevelDBStore extends Log {
+
+  /**
+   * What the locator the broker holds for a message refers to: the
+   * message's locator in each of the partitions it was stored in.
+   */
+  class PartitionLocators(size:Int) {
+    val refs = new AtomicReferenceArray[AtomicReference[Object]](size)
+
+    def get(partition:Int) = refs.get(partition)
+
+    /**
+     * @return the message's locator in the partition and true if the
+     *         message still needs to get stored in the partition.
+     */
+    def create(partition:Int):(AtomicReference[Object], Boolean) = {
+      val ref = new AtomicReference[Object]()
+      if( refs.compareAndSet(partition, null, ref) ) {
+        (ref, true)
+      } else {
+        (refs.get(partition), false)
+      }
+    }
+
+    /**
+     * @return a partition the message was stored in and its locator there.
+     */
+    def stored:Option[(Int, AtomicReference[Object])] = {
+      (0 until refs.length).view.map(i => (i, refs.get(i))).find(_._2 != null)
+    }
+
+    // The operations waiting on the message to get copied into a partition.
+    private val copying = HashMap[Int, ListBuffer[()=>Unit]]()
+
+    /**
+     * @return true if the caller should copy the message into the
+     *         partition, false if it's already being copied.
+     */
+    def start_copy(partition:Int):Boolean = this.synchronized {
+      if( copying.contains(partition) ) {
+        false
+      } else {
+        copying.put(partition, ListBuffer())
+        true
+      }
+    }
+
+    /**
+     * Executes the func once the message copy into the partition
+     * is done, right away if it's not being copied.
+     */
+    def after_copy(partition:Int)(func: =>Unit):Unit = {
+      val waiting = this.synchronized {
+        copying.get(partition) match {
+          case Some(waiting) =>
+            waiting += (()=>func)
+            true
+          case None =>
+            false
+        }
+      }
+      if( !waiting ) {
+        func
+      }
+    }
+
+    def copied(partition:Int) = {
+      this.synchronized { copying.remove(partition) }.foreach(_.foreach(_()))
+    }
+  }
+
+  def partition_locators(locator:AtomicReference[Object], size:Int):PartitionLocators = {
+    locator.get match {
+      case null =>
+        val rc = new PartitionLocators(size)
+        if( locator.compareAndSet(null, rc) ) {
+          rc
+        } else {
+          partition_locators(locator, size)
+        }
+      case rc:PartitionLocators => rc
+      case x => throw new IllegalArgumentException("Not a partitioned store message locator: "+x)
+    }
+  }
+
+  private def merge(a:TimeMetricDTO, b:TimeMetricDTO):TimeMetricDTO = {
+    if( a == null || a.count == 0 ) {
+      return b
+    }
+    if( b == null || b.count == 0 ) {
+      return a
+    }
+    val rc = new TimeMetricDTO
+    rc.count = a.count + b.count
+    rc.total = a.total + b.total
+    rc.max = a.max max b.max
+    rc.min = a.min min b.min
+    // percentiles can't be combined, so report the worst partition's.
+    rc.p50 = a.p50 max b.p50
+    rc.p90 = a.p90 max b.p90
+    rc.p99 = a.p99 max b.p99
+    rc.p999 = a.p999 max b.p999
+    rc
+  }
+
+  private def merge(a:IntMetricDTO, b:IntMetricDTO):IntMetricDTO = {
+    if( a == null || a.count == 0 ) {
+      return b
+    }
+    if( b == null || b.count == 0 ) {
+      return a
+    }
+    val rc = new IntMetricDTO
+    rc.count = a.count + b.count
+    rc.total = a.total + b.total
+    rc.max = a.max max b.max
+    rc.min = a.min min b.min
+    rc
+  }
+}
+
+/**
+ * One of the partitions of a PartitionedLevelDBStore.  It keeps the message
+ * keys the partitioned store assigns so they stay unique across partitions.
+ */
+class LevelDBStorePartition(config:LevelDBStoreDTO, val partition_directory:File) extends LevelDBStore(config) {
+
+  override def directory = partition_directory
+
+  override protected def next_msg_key(record:MessageRecord) = record.key
+
+}
+
+/**
+ * <p>
+ * A LevelDB store which spreads the queues over several LevelDB stores, each
+ * in a partition-N sub directory and with its own log, index, write thread and
+ * disk syncs, so that units of work touching different queues get written
+ * in parallel.
+ * </p>
+ * <p>
+ * Queues are assigned to partitions by their queue key.  A message is stored
+ * in each partition holding a queue it is enqueued on and the locator of the
+ * message held by the broker tracks its locator in each of those partitions.
+ * Map entries are kept in the first partition.
+ * </p>
+ */
+class PartitionedLevelDBStore(val config:LevelDBStoreDTO) extends Store with BaseService {
+  import PartitionedLevelDBStore._
+
+  val dispatch_queue:DispatchQueue = createQueue(toString)
+
+  val partitions:Array[LevelDBStore] = Array.tabulate[LevelDBStore](config.partitions.intValue) { i =>
+    new LevelDBStorePartition(config, config.directory / ("partition-"+i))
+  }
+
+  val next_msg_key = new AtomicLong(1)
+
+  def kind = "LevelDB"
+
+  def location = config.directory.toString
+
+  override def toString = "partitioned leveldb store at " + config.directory
+
+  def partition_of(queue_key:Long):Int = {
+    val count = partitions.length
+    (((queue_key % count) + count) % count).toInt
+  }
+
+  /**
+   * Applies the func to all the partitions, the callback is executed once
+   * they all have passed their result to the func's callback.
+   */
+  private def collect[T](func:(LevelDBStore, (T)=>Unit)=>Unit)(callback:(Seq[T])=>Unit):Unit = {
+    val results = new AtomicReferenceArray[Any](partitions.length)
+    val remaining = new AtomicInteger(partitions.length)
+    for( i <- 0 until partitions.length ) {
+      func(partitions(i), (result:T) => {
+        results.set(i, result)
+        if( remaining.decrementAndGet == 0 ) {
+          callback((0 until partitions.length).map(results.get(_).asInstanceOf[T]))
+        }
+      })
+    }
+  }
+
+  private def each(func:(LevelDBStore, Task)=>Unit)(callback: =>Unit):Unit = {
+    collect[Unit]((partition, cb) => func(partition, ^{ cb(()) })) { _ =>
+      callback
+    }
+  }
+
+  protected def _start(on_completed:Task) = {
+    try {
+      check_partitions
+      each(_.start(_)) {
+        partitions.flatMap(x => Option(x.service_failure)).headOption.foreach { e =>
+          _service_failure = e
+        }
+        next_msg_key.set(partitions.map(_.next_msg_key.get).max)
+        on_completed.run
+      }
+    } catch {
+      case e:Throwable =>
+        _service_failure = e
+        error(e, "Store startup failure: " + e)
+        on_completed.run
+    }
+  }
+
+  /**
+   * The queues would get looked up in the wrong partitions if the number
+   * of partitions changed, so it's recorded the first time the store starts.
+   */
+  private def check_partitions = {
+    val file = config.directory / "partitions"
+    if( file.exists ) {
+      val stored = file.read_text().trim.toInt
+      if( stored != partitions.length ) {
+        throw new IOException("The store at %s was created with %d partitions, it cannot be opened with %d".format(config.directory, stored, partitions.length))
+      }
+    } else {
+      config.directory.mkdirs
+      file.write_text(partitions.length.toString)
+    }
+  }
+
+  protected def _stop(on_completed:Task) = {
+    each(_.stop(_)) {
+      on_completed.run
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Implementation of the StoreUOW interface
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def create_uow(owner:String) = {
+    val rc = new PartitionedUOW
+    rc.owners.add(owner)
+    rc
+  }
+
+  /**
+   * Routes the operations to the units of work of the partitions holding the
+   * queues.  The messages get stored in a partition by the first enqueue to
+   * one of its queues.
+   */
+  class PartitionedUOW extends BaseRetained with StoreUOW {
+
+    val owners = scala.collection.mutable.HashSet[String]()
+
+    def release(owner: String) {
+      if( !owners.remove(owner) ) {
+        warn("UOW owner already removed! "+owner)
+      }
+      super.release()
+    }
+
+    def retain(owner: String) {
+      if( !owners.add(owner) ) {
+        warn("UOW owner already added! "+owner)
+      }
+      super.retain()
+    }
+
+    // the units of work of the partitions this uow has touched.
+    private val uows = new Array[StoreUOW](partitions.length)
+    private val messages = HashMap[Long, MessageRecord]()
+    private val listeners = ListBuffer[((Boolean)=>Unit, Boolean)]()
+    private val direct_buffers = ListBuffer[DirectBuffer]()
+    private var flush_asap = false
+    private var disposed = false
+
+    private def uow(partition:Int):StoreUOW = this.synchronized {
+      var rc = uows(partition)
+      if( rc == null ) {
+        rc = partitions(partition).create_uow("partitioned")
+        if( flush_asap ) {
+          rc.complete_asap()
+        }
+        uows(partition) = rc
+      }
+      rc
+    }
+
+    private def touched = this.synchronized {
+      uows.filter(_ != null)
+    }
+
+    def store(record:MessageRecord):Long = {
+      record.key = next_msg_key.getAndIncrement
+      this.synchronized {
+        if( record.direct_buffer!=null ) {
+          record.direct_buffer.retain
+          direct_buffers += record.direct_buffer
+        }
+        messages.put(record.key, record)
+      }
+      record.key
+    }
+
+    def enqueue(entry:QueueEntryRecord) = {
+      val partition = partition_of(entry.queue_key)
+      val locators = partition_locators(entry.message_locator, partitions.length)
+      this.synchronized { messages.get(entry.message_key) } match {
+        case Some(record) =>
+          enqueue_stored(partition, locators, record, entry)
+        case None =>
+          locators.get(partition) match {
+            case null => copy_and_enqueue(partition, locators, entry)
+            case locator => uow(partition).enqueue(copy(entry, locator))
+          }
+      }
+    }
+
+    private def enqueue_stored(partition:Int, locators:PartitionLocators, record:MessageRecord, entry:QueueEntryRecord) = {
+      val (locator, created) = locators.create(partition)
+      if( created ) {
+        uow(partition).store(copy(record, entry.message_key, locator))
+      }
+      uow(partition).enqueue(copy(entry, locator))
+    }
+
+    /**
+     * The message was stored by a previous uow, but not in the partition of
+     * the queue, so it gets loaded from a partition it was stored in.
+     */
+    private def copy_and_enqueue(partition:Int, locators:PartitionLocators, entry:QueueEntryRecord) = {
+      locators.stored match {
+        case Some((source, source_locator)) =>
+          retain()
+          if( locators.start_copy(partition) ) {
+            partitions(source).flush_message(entry.message_key) {
+              partitions(source).load_message(entry.message_key, source_locator) { rc =>
+                rc match {
+                  case Some(record) =>
+                    enqueue_stored(partition, locators, record, entry)
+                  case None =>
+                    warn("Could not load message %d to enqueue it on queue %d", entry.message_key, entry.queue_key)
+                }
+                locators.copied(partition)
+                release()
+              }
+            }
+          } else {
+            // another enqueue is already copying it.
+            locators.after_copy(partition) {
+              locators.get(partition) match {
+                case null =>
+                  warn("Could not load message %d to enqueue it on queue %d", entry.message_key, entry.queue_key)
+                case locator =>
+                  uow(partition).enqueue(copy(entry, locator))
+              }
+              release()
+            }
+          }
+        case None =>
+          warn("Message %d was not stored, it cannot be enqueued on queue %d", entry.message_key, entry.queue_key)
+      }
+    }
+
+    def dequeue(entry:QueueEntryRecord) = {
+      val partition = partition_of(entry.queue_key)
+      val locators = partition_locators(entry.message_locator, partitions.length)
+      locators.get(partition) match {
+        case null =>
+          // The enqueue is still copying the message into the partition.
+          retain()
+          locators.after_copy(partition) {
+            locators.get(partition) match {
+              case null =>
+                warn("Message %d was not stored with queue %d, it cannot be dequeued", entry.message_key, entry.queue_key)
+              case locator =>
+                uow(partition).dequeue(copy(entry, locator))
+            }
+            release()
+          }
+        case locator =>
+          uow(partition).dequeue(copy(entry, locator))
+      }
+    }
+
+    def put(key:Buffer, value:Buffer) = {
+      uow(0).put(key, value)
+    }
+
+    def complete_asap() = {
+      this.synchronized {
+        flush_asap = true
+      }
+      touched.foreach(_.complete_asap())
+    }
+
+    def on_flush(callback:(Boolean)=>Unit) = listen(callback, false)
+
+    def on_complete(callback:(Boolean)=>Unit) = listen(callback, true)
+
+    private def listen(callback:(Boolean)=>Unit, sync:Boolean) = {
+      val deferred = this.synchronized {
+        if( !disposed ) {
+          listeners += ((callback, sync))
+        }
+        !disposed
+      }
+      if( !deferred ) {
+        attach(callback, sync)
+      }
+    }
+
+    /**
+     * Calls back once all the partition uows have flushed (or completed),
+     * the uow was canceled if all of them were.
+     */
+    private def attach(callback:(Boolean)=>Unit, sync:Boolean) = {
+      val uows = touched
+      if( uows.isEmpty ) {
+        callback(false)
+      } else {
+        val remaining = new AtomicInteger(uows.length)
+        val canceled = new AtomicBoolean(true)
+        uows.foreach { uow =>
+          val done = (was_canceled:Boolean) => {
+            if( !was_canceled ) {
+              canceled.set(false)
+            }
+            if( remaining.decrementAndGet == 0 ) {
+              callback(canceled.get)
+            }
+          }
+          if( sync ) {
+            uow.on_complete(done)
+          } else {
+            uow.on_flush(done)
+          }
+        }
+      }
+    }
+
+    override def dispose = {
+      val pending = this.synchronized {
+        disposed = true
+        listeners.toList
+      }
+      // Only register the partition listeners once all the partition
+      // uows exist, so that they are waited on.
+      pending.foreach { case (callback, sync) => attach(callback, sync) }
+      touched.foreach(_.release("partitioned"))
+      this.synchronized {
+        direct_buffers.foreach(_.release)
+        direct_buffers.clear
+      }
+      super.dispose
+    }
+  }
+
+  private def copy(record:MessageRecord, key:Long, locator:AtomicReference[Object]) = {
+    val rc = new MessageRecord
+    rc.key = key
+    rc.codec = record.codec
+    rc.buffer = record.buffer
+    rc.compressed = record.compressed
+    rc.direct_buffer = record.direct_buffer
+    rc.locator = locator
+    rc
+  }
+
+  private def copy(entry:QueueEntryRecord, locator:AtomicReference[Object]) = {
+    val rc = new QueueEntryRecord
+    rc.queue_key = entry.queue_key
+    rc.entry_seq = entry.entry_seq
+    rc.message_key = entry.message_key
+    rc.message_locator = locator
+    rc.attachment = entry.attachment
+    rc.size = entry.size
+    rc.expiration = entry.expiration
+    rc.redeliveries = entry.redeliveries
+    rc.sender = entry.sender
+    rc
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Implementation of the Store interface
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def purge(callback: =>Unit) = {
+    each((partition, done) => partition.purge(done.run)) {
+      next_msg_key.set(1)
+      callback
+    }
+  }
+
+  def get_last_queue_key(callback:(Option[Long])=>Unit) = {
+    collect[Option[Long]]((partition, cb) => partition.get_last_queue_key(cb)) { keys =>
+      callback(keys.flatten.reduceOption(_ max _))
+    }
+  }
+
+  def add_queue(record:QueueRecord)(callback:(Boolean)=>Unit) = {
+    partitions(partition_of(record.key)).add_queue(record)(callback)
+  }
+
+  def remove_queue(queue_key:Long)(callback:(Boolean)=>Unit) = {
+    partitions(partition_of(queue_key)).remove_queue(queue_key)(callback)
+  }
+
+  def get_queue(queue_key:Long)(callback:(Option[QueueRecord])=>Unit) = {
+    partitions(partition_of(queue_key)).get_queue(queue_key)(callback)
+  }
+
+  def list_queues(callback:(Seq[Long])=>Unit) = {
+    collect[Seq[Long]]((partition, cb) => partition.list_queues(cb)) { keys =>
+      callback(keys.flatten.sorted)
+    }
+  }
+
+  def list_queue_entry_ranges(queue_key:Long, limit:Int)(callback:(Seq[QueueEntryRange])=>Unit) = {
+    partitions(partition_of(queue_key)).list_queue_entry_ranges(queue_key, limit)(callback)
+  }
+
+  def list_queue_entries(queue_key:Long, first_seq:Long, last_seq:Long)(callback:(Seq[QueueEntryRecord])=>Unit) = {
+    val partition = partition_of(queue_key)
+    partitions(partition).list_queue_entries(queue_key, first_seq, last_seq) { entries =>
+      entries.foreach { entry =>
+        val locators = new PartitionLocators(partitions.length)
+        locators.refs.set(partition, entry.message_locator)
+        entry.message_locator = new AtomicReference[Object](locators)
+      }
+      callback(entries)
+    }
+  }
+
+  def get_map_entry(key:Buffer)(callback:(Option[Buffer])=>Unit) = {
+    partitions(0).get_map_entry(key)(callback)
+  }
+
+  def get_prefixed_map_entries(prefix:Buffer)(callback:Seq[(Buffer, Buffer)]=>Unit) = {
+    partitions(0).get_prefixed_map_entries(prefix)(callback)
+  }
+
+  def flush_message(message_key:Long)(callback: =>Unit) = {
+    each((partition, done) => partition.flush_message(message_key)(done.run)) {
+      callback
+    }
+  }
+
+  def load_message(message_key:Long, locator:AtomicReference[Object])(callback:(Option[MessageRecord])=>Unit) = {
+    partition_locators(locator, partitions.length).stored match {
+      case Some((partition, partition_locator)) =>
+        partitions(partition).load_message(message_key, partition_locator) { rc =>
+          rc.foreach(_.locator = locator)
+          callback(rc)
+        }
+      case None =>
+        callback(None)
+    }
+  }
+
+  override def compact(callback: =>Unit) = {
+    each((partition, done) => partition.compact(done.run)) {
+      callback
+    }
+  }
+
+  def get_store_status(callback:(StoreStatusDTO)=>Unit) = {
+    collect[StoreStatusDTO]((partition, cb) => partition.get_store_status(cb)) { statuses =>
+      val rc = new LevelDBStoreStatusDTO
+      rc.kind = kind
+      rc.location = location
+      rc.state = service_state.toString
+      rc.state_since = service_state.since
+      rc.index_stats = ""
+      rc.log_stats = ""
+      for( (status, i) <- statuses.map(_.asInstanceOf[LevelDBStoreStatusDTO]).zipWithIndex ) {
+        rc.disk_usage += status.disk_usage
+        rc.canceled_message_counter += status.canceled_message_counter
+        rc.flushed_message_counter += status.flushed_message_counter
+        rc.canceled_enqueue_counter += status.canceled_enqueue_counter
+        rc.flushed_enqueue_counter += status.flushed_enqueue_counter
+        rc.pending_stores += status.pending_stores
+        rc.current_flush_delay = rc.current_flush_delay max status.current_flush_delay
+        rc.flush_latency = merge(rc.flush_latency, status.flush_latency)
+        rc.close_latency = merge(rc.close_latency, status.close_latency)
+        rc.message_load_latency = merge(rc.message_load_latency, status.message_load_latency)
+        rc.message_load_batch_size = merge(rc.message_load_batch_size, status.message_load_batch_size)
+        rc.compacted_log_files += status.compacted_log_files
+        rc.compaction_pending_log_files += status.compaction_pending_log_files
+        rc.compaction_moved_size += status.compaction_moved_size
+        rc.compaction_reclaimed_size += status.compaction_reclaimed_size
+        rc.index_stats += "partition-%d:\n%s\n".format(i, status.index_stats)
+        rc.log_stats += "partition-%d: log append pos: %d, index snapshot pos: %d\n%s\n".format(
+          i, status.log_append_pos, status.index_snapshot_pos, status.log_stats)
+      }
+      callback(rc)
+    }
+  }
+
+  /**
+   * Exports the partitions one after the other into the stream.  The log
+   * positions used as message keys are only unique within a partition, so
+   * the partition number is folded into them.
+   */
+  def export_data(os:OutputStream, cb:(Option[String])=>Unit) = {
+    val manager = ExportStreamManager(os, 1)
+    def export(i:Int):Unit = {
+      if( i < partitions.length ) {
+        val partition = partitions(i)
+        partition.write_executor {
+          try {
+            partition.client.export_records(manager, pos => pos * partitions.length + i)
+            export(i + 1)
+          } catch {
+            case e:Exception =>
+              debug(e, "Export failed")
+              cb(Some(e.getMessage))
+          }
+        }
+      } else {
+        try {
+          manager.finish
+          cb(None)
+        } catch {
+          case e:Exception =>
+            debug(e, "Export failed")
+            cb(Some(e.getMessage))
+        }
+      }
+    }
+    export(0)
+  }
+
+  /**
+   * Imports a previous export, deleting any previous data in the partitions.
+   */
+  def import_data(is:InputStream, cb:(Option[String])=>Unit) = {
+    new Thread("partitioned leveldb store import") {
+      override def run = cb(import_records(is))
+    }.start
+  }
+
+  private def on_partition[T](partition:LevelDBStore)(func: =>T):T = {
+    partition.write_executor.submit(new Callable[T] {
+      def call = func
+    }).get
+  }
+
+  /**
+   * The messages get imported into the first partition and are copied into
+   * the other partitions as queue entries referencing them get imported.
+   */
+  private def import_records(is:InputStream):Option[String] = {
+    try {
+      val manager = ImportStreamManager(is)
+      if (manager.version != 1) {
+        return Some("Cannot import from an export file of version: " + manager.version)
+      }
+
+      partitions.foreach { partition =>
+        on_partition(partition) {
+          partition.client.purge()
+        }
+      }
+
+      val source = partitions(0)
+      while (manager.getNext match {
+
+        case record: MessagePB.Buffer =>
+          on_partition(source) {
+            source.client.import_message(record)
+          }
+          true
+
+        case record: QueueEntryPB.Buffer =>
+          val partition = partitions(partition_of(record.getQueueKey))
+          val key = record.getMessageKey
+          if( !(partition eq source) && !on_partition(partition)(partition.client.has_imported_message(key)) ) {
+            on_partition(source)(source.client.imported_message(key)).foreach { message =>
+              on_partition(partition) {
+                partition.client.import_message(message)
+              }
+            }
+          }
+          if( !on_partition(partition)(partition.client.import_queue_entry(record)) ) {
+            warn("Invalid queue entry, references message that was not in the export: " + key)
+          }
+          true
+
+        case record: QueuePB.Buffer =>
+          val partition = partitions(partition_of(record.getKey))
+          on_partition(partition) {
+            partition.client.import_queue(record)
+          }
+          true
+
+        case record: MapEntryPB.Buffer =>
+          on_partition(source) {
+            source.client.import_map_entry(record)
+          }
+          true
+
+        case null =>
+          false
+      }) {
+        // keep looping
+      }
+
+      partitions.foreach { partition =>
+        on_partition(partition) {
+          partition.client.import_completed
+        }
+      }
+      None
+
+    } catch {
+      case x: ExecutionException =>
+        debug(x.getCause, "Import failed")
+        Some(x.getCause.getMessage)
+      case x: Exception =>
+        debug(x, "Import failed")
+        Some(x.getMessage)
+    }
+  }
+}
@@ -29,6 +29,9 @@ import org.apache.activemq.apollo.util.{Log, LRUCache}
 import org.fusesource.hawtdispatch.BaseRetained
 import org.fusesource.hawtbuf.{DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
 import java.util.TreeMap
+import java.nio.channels.FileChannel
+import java.lang.ref.{PhantomReference, ReferenceQueue}
+import org.apache.activemq.apollo.broker.store.{ByteBufferReleaser, DirectBuffer}
 
 object RecordLog extends Log {
 
@@ -88,6 +91,9 @@ case class RecordLog(directory: File, logSuffix: String) {
       if (current_appender.position != id) {
         Option(log_infos.get(id)).foreach {
           info =>
+            reader_cache.synchronized {
+              Option(reader_cache.remove(info.file)).foreach(_.release())
+            }
             onDelete(info.file)
             log_infos.remove(id)
         }
@@ -196,6 +202,50 @@ case class RecordLog(directory: File, logSuffix: String) {
       (record_position, info)
     }
 
+    /**
+     * Appends a record whose data ends with the contents of a direct buffer.
+     * The direct buffer is transferred straight to the log file so
+     * that it never has to be loaded onto the heap.
+     *
+     * returns the offset position of the data record.
+     */
+    def append(id: Byte, data: Seq[Buffer], direct: DirectBuffer) = this.synchronized {
+      val record_position = append_position
+      var data_length = 0
+      data.foreach(data_length += _.length)
+      val total_length = LOG_HEADER_SIZE + data_length
+
+      val checksum = new CRC32
+      data.foreach { data =>
+        checksum.update(data.data, data.offset, data.length)
+      }
+      direct.read(new OutputStream {
+        def write(b: Int) = checksum.update(b)
+        override def write(b: Array[Byte], off: Int, len: Int) = checksum.update(b, off, len)
+      })
+      val cs = (checksum.getValue & 0xFFFFFFFF).toInt
+
+      write_buffer.writeByte(LOG_HEADER_PREFIX)
+      write_buffer.writeByte(id)
+      write_buffer.writeInt(cs)
+      write_buffer.writeInt(data_length + direct.size)
+      data.foreach { data=>
+        write_buffer.write(data.data, data.offset, data.length)
+      }
+      append_offset += total_length
+      flush
+
+      // Now transfer the direct buffer after the buffered part of the record.
+      channel.position(append_offset)
+      var transferred = 0
+      while( transferred < direct.size ) {
+        transferred += direct.read(transferred, channel)
+      }
+      flushed_offset.addAndGet(direct.size)
+      append_offset += direct.size
+      (record_position, info)
+    }
+
     def flush = this.synchronized {
       if (write_buffer.position() > 0) {
         val buffer = write_buffer.toBuffer.toByteBuffer
@@ -233,6 +283,13 @@ case class RecordLog(directory: File, logSuffix: String) {
 
     def check_read_flush(end_offset: Long) = {}
 
+    /**
+     * Fills the buffer with the file data found at the offset.
+     */
+    protected def read_into(buffer: Buffer, offset: Long): Int = {
+      channel.read(buffer.toByteBuffer, offset)
+    }
+
     def read(record_position: Long, length: Int) = {
       val offset = record_position - position
       assert(offset >= 0)
@@ -242,7 +299,7 @@ case class RecordLog(directory: File, logSuffix: String) {
       if (verify_checksums) {
 
         val record = new Buffer(LOG_HEADER_SIZE + length)
-        if (channel.read(record.toByteBuffer, offset) != record.length) {
+        if (read_into(record, offset) != record.length) {
           throw new IOException("short record at position: " + record_position + " in file: " + file + ", offset: " + offset)
         }
 
@@ -282,17 +339,24 @@ case class RecordLog(directory: File, logSuffix: String) {
         data
       } else {
         val record = new Buffer(length)
-        if (channel.read(record.toByteBuffer, offset+LOG_HEADER_SIZE) != record.length) {
+        if (read_into(record, offset+LOG_HEADER_SIZE) != record.length) {
           throw new IOException("short record at position: " + record_position + " in file: " + file + ", offset: " + offset)
         }
         record
       }
     }
 
-    def read(record_position: Long) = {
+    def read(record_position: Long):(Byte, Buffer, Long) = read(record_position, (kind:Byte) => true)
+
+    /**
+     * Reads the record at the given position.  The data of records which
+     * are not accepted is skipped and returned as null unless checksums
+     * are being verified.
+     */
+    def read(record_position: Long, accept:(Byte)=>Boolean):(Byte, Buffer, Long) = {
       val offset = record_position - position
       val header = new Buffer(LOG_HEADER_SIZE)
-      channel.read(header.toByteBuffer, offset)
+      read_into(header, offset)
       val is = header.bigEndianEditor();
       val prefix = is.readByte()
       if (prefix != LOG_HEADER_PREFIX) {
@@ -302,9 +366,12 @@ case class RecordLog(directory: File, logSuffix: String) {
       val id = is.readByte()
       val expectedChecksum = is.readInt()
       val length = is.readInt()
+      if (!verify_checksums && !accept(id)) {
+        return (id, null, record_position + LOG_HEADER_SIZE + length)
+      }
       val data = new Buffer(length)
 
-      if (channel.read(data.toByteBuffer, offset + LOG_HEADER_SIZE) != length) {
+      if (read_into(data, offset + LOG_HEADER_SIZE) != length) {
         throw new IOException("short record")
       }
 
@@ -383,6 +450,79 @@ case class RecordLog(directory: File, logSuffix: String) {
     }
   }
 
+  /**
+   * Reads a sealed log file out of a read only memory mapping of it
+   * so that record reads don't need to issue a system call.
+   */
+  class MappedLogReader(file: File, position: Long) extends LogReader(file, position) {
+
+    val mapped_length = channel.size()
+    val mapped = try {
+      channel.map(FileChannel.MapMode.READ_ONLY, 0, mapped_length)
+    } catch {
+      case e: IOException =>
+        fd.close()
+        throw e
+    }
+    mapped_bytes.addAndGet(mapped_length)
+
+    override protected def read_into(buffer: Buffer, offset: Long): Int = {
+      if (offset >= mapped_length) {
+        -1
+      } else {
+        val length = buffer.length.toLong.min(mapped_length - offset).toInt
+        val source = mapped.duplicate()
+        source.position(offset.toInt)
+        source.get(buffer.data, buffer.offset, length)
+        length
+      }
+    }
+
+    override def dispose() {
+      // No one reads from it anymore, since the reader is retained while in use.
+      if (ByteBufferReleaser.supported) {
+        ByteBufferReleaser.release(mapped)
+        mapped_bytes.addAndGet(-mapped_length)
+      } else {
+        // It stays counted until it's garbage collected, that unmaps it.
+        unmapped_mappings.add(new MappingReference(mapped, mapped_length))
+      }
+      super.dispose()
+    }
+  }
+
+  // The max number of bytes of sealed log files to memory map, 0 disables mapping.
+  var mmap_limit = 0L
+  val mapped_bytes = new AtomicLong(0)
+
+  class MappingReference(mapping: AnyRef, val length: Long) extends PhantomReference[AnyRef](mapping, collected_mappings)
+  private val collected_mappings = new ReferenceQueue[AnyRef]()
+  private val unmapped_mappings = ju.Collections.newSetFromMap(new ju.concurrent.ConcurrentHashMap[MappingReference, jl.Boolean]())
+
+  private def poll_collected_mappings = {
+    var ref = collected_mappings.poll()
+    while (ref != null) {
+      val mapping = ref.asInstanceOf[MappingReference]
+      unmapped_mappings.remove(mapping)
+      mapped_bytes.addAndGet(-mapping.length)
+      ref = collected_mappings.poll()
+    }
+  }
+
+  private def create_reader(info: LogInfo): LogReader = {
+    poll_collected_mappings
+    val length = info.file.length()
+    if (mmap_limit > 0 && length <= Int.MaxValue && mapped_bytes.get() + length <= mmap_limit) {
+      try {
+        return new MappedLogReader(info.file, info.position)
+      } catch {
+        case e: IOException =>
+          warn(e, "Could not memory map log file: " + info.file)
+      }
+    }
+    LogReader(info.file, info.position)
+  }
+
   def create_log_appender(position: Long) = {
     new LogAppender(next_log(position), position)
   }
@@ -498,7 +638,7 @@ case class RecordLog(directory: File, logSuffix: String) {
           reader_cache.synchronized {
             var reader = reader_cache.get(info.file)
             if (reader == null) {
-              reader = LogReader(info.file, info.position)
+              reader = create_reader(info)
               reader_cache.put(info.file, reader)
             }
             reader.retain()
@@ -518,6 +658,10 @@ case class RecordLog(directory: File, logSuffix: String) {
     get_reader(pos)(_.read(pos))
   }
 
+  def read(pos: Long, accept: (Byte) => Boolean) = {
+    get_reader(pos)(_.read(pos, accept))
+  }
+
   def read(pos: Long, length: Int) = {
     get_reader(pos)(_.read(pos, length))
   }
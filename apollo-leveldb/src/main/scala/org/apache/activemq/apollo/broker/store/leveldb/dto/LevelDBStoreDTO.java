@@ -78,6 +78,48 @@ public class LevelDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="index_factory")
     public String index_factory;
 
+    /**
+     * Sealed log files which have less than this fraction of
+     * their data still in use get compacted.  Set to 0 to disable
+     * log compaction.  Defaults to 0, log compaction
+     * is disabled unless configured.
+     */
+    @XmlAttribute(name="log_compaction_threshold")
+    public Double log_compaction_threshold;
+
+    /**
+     * The maximum amount of sealed log file data which can be
+     * memory mapped to serve message reads.  Defaults to 0, which
+     * disables memory mapping.
+     */
+    @XmlAttribute(name="log_mmap_limit")
+    public String log_mmap_limit;
+
+    /**
+     * The number of threads used to read and decode the log files
+     * when the index gets recovered on start up.  Defaults to the
+     * number of CPUs, up to 8.  Set to 1 to replay the logs sequentially.
+     */
+    @XmlAttribute(name="recovery_threads")
+    public Integer recovery_threads;
+
+    /**
+     * How much data can get written to the logs before the index
+     * gets snapshotted.  Bounds how much of the log needs to be
+     * replayed on recovery.  Defaults to 100m.
+     */
+    @XmlAttribute(name="index_snapshot_interval")
+    public String index_snapshot_interval;
+
+    /**
+     * The number of independent log and index partitions the queues
+     * get spread across.  Each partition has its own write thread and
+     * syncs on its own, so putting them on different disks lets writes
+     * proceed in parallel.  Defaults to 1.
+     */
+    @XmlAttribute(name="partitions")
+    public Integer partitions;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -101,6 +143,16 @@ public class LevelDBStoreDTO extends StoreDTO {
             return false;
         if (index_factory != null ? !index_factory.equals(that.index_factory) : that.index_factory != null) return false;
         if (log_size != null ? !log_size.equals(that.log_size) : that.log_size != null) return false;
+        if (log_compaction_threshold != null ? !log_compaction_threshold.equals(that.log_compaction_threshold) : that.log_compaction_threshold != null)
+            return false;
+        if (log_mmap_limit != null ? !log_mmap_limit.equals(that.log_mmap_limit) : that.log_mmap_limit != null)
+            return false;
+        if (recovery_threads != null ? !recovery_threads.equals(that.recovery_threads) : that.recovery_threads != null)
+            return false;
+        if (index_snapshot_interval != null ? !index_snapshot_interval.equals(that.index_snapshot_interval) : that.index_snapshot_interval != null)
+            return false;
+        if (partitions != null ? !partitions.equals(that.partitions) : that.partitions != null)
+            return false;
         if (paranoid_checks != null ? !paranoid_checks.equals(that.paranoid_checks) : that.paranoid_checks != null)
             return false;
         if (read_threads != null ? !read_threads.equals(that.read_threads) : that.read_threads != null) return false;
@@ -121,6 +173,11 @@ public class LevelDBStoreDTO extends StoreDTO {
         result = 31 * result + (paranoid_checks != null ? paranoid_checks.hashCode() : 0);
         result = 31 * result + (verify_checksums != null ? verify_checksums.hashCode() : 0);
         result = 31 * result + (log_size != null ? log_size.hashCode() : 0);
+        result = 31 * result + (log_compaction_threshold != null ? log_compaction_threshold.hashCode() : 0);
+        result = 31 * result + (log_mmap_limit != null ? log_mmap_limit.hashCode() : 0);
+        result = 31 * result + (recovery_threads != null ? recovery_threads.hashCode() : 0);
+        result = 31 * result + (index_snapshot_interval != null ? index_snapshot_interval.hashCode() : 0);
+        result = 31 * result + (partitions != null ? partitions.hashCode() : 0);
         result = 31 * result + (index_max_open_files != null ? index_max_open_files.hashCode() : 0);
         result = 31 * result + (index_block_restart_interval != null ? index_block_restart_interval.hashCode() : 0);
         result = 31 * result + (index_write_buffer_size != null ? index_write_buffer_size.hashCode() : 0);
@@ -56,4 +56,30 @@ public class LevelDBStoreStatusDTO extends StoreStatusDTO {
     @XmlElement(name="log_stats")
     public String log_stats;
 
+    /**
+     * The number of log files deleted after their live
+     * records were moved by the log compactor.
+     */
+    @XmlElement(name="compacted_log_files")
+    public long compacted_log_files;
+
+    /**
+     * The number of log files waiting to be compacted.
+     */
+    @XmlElement(name="compaction_pending_log_files")
+    public int compaction_pending_log_files;
+
+    /**
+     * The number of bytes the log compactor has copied.
+     */
+    @XmlElement(name="compaction_moved_size")
+    public long compaction_moved_size;
+
+    /**
+     * The number of bytes of disk space the log compactor
+     * has reclaimed.
+     */
+    @XmlElement(name="compaction_reclaimed_size")
+    public long compaction_reclaimed_size;
+
 }
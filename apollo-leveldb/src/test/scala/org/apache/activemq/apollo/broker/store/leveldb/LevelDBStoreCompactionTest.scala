@@ -0,0 +1,83 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.broker.store.{MessageRecord, Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.util.{LoggingTracker, sync_cb}
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+/**
+ * Tests a store which compacts the log files whose utilization drops
+ * below the log_compaction_threshold.
+ */
+class LevelDBStoreCompactionTest extends StoreFunSuiteSupport {
+
+  def create_store(flushDelay: Long): Store = {
+    new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      rc.log_compaction_threshold = 0.2
+      rc
+    })
+  }
+
+  test("compacting sparse log files") {
+    val client = store.asInstanceOf[LevelDBStore].client
+    val original_log_size = client.log.logSize
+    // Small log files so that every batch ends up in it's own log file.
+    client.log.logSize = 1024
+    try {
+      val A = add_queue("A")
+      val batches = (0 until 5).map { i =>
+        populate(A, (1 to 20).map(x=> "message %d-%d".format(i, x)).toList, 1 + (i * 20))
+      }
+      val first = batches.head.head
+
+      // Leave a single message in the first log file.
+      val uow = store.create_uow("test")
+      batches.flatten.drop(1).foreach { x =>
+        uow.dequeue(entry(A, x._3, (x._1, x._2)))
+      }
+      val tracker = new LoggingTracker("compaction")
+      val dequeued = tracker.task("dequeue")
+      uow.on_complete(dequeued.run)
+      uow.complete_asap()
+      uow.release("test")
+      tracker.await
+
+      val compacted = new LoggingTracker("compaction")
+      val compact = compacted.task("compact")
+      store.compact(compact.run)
+      compacted.await
+
+      expect(1L)(client.compacted_log_files)
+      expect(0)(client.compaction_pending_log_files)
+
+      // The remaining message must still be loadable
+      val rc:Option[MessageRecord] = sync_cb( cb=> store.load_message(first._1, first._2)(cb) )
+      expect(ascii("message 0-1").buffer) {
+        rc.get.buffer
+      }
+    } finally {
+      client.log.logSize = original_log_size
+    }
+  }
+
+}
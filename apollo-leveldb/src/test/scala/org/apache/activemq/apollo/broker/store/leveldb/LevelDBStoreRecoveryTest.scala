@@ -0,0 +1,123 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.broker.store.{QueueEntryRecord, MessageRecord, Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.util.{LoggingTracker, sync_cb}
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+/**
+ * Tests rebuilding the index of a store by replaying all of it's log
+ * files, with one and with several recovery threads.
+ */
+class LevelDBStoreRecoveryTest extends StoreFunSuiteSupport {
+
+  var recovery_threads = 4
+
+  def create_store(flushDelay: Long): Store = {
+    new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      rc.recovery_threads = recovery_threads
+      rc
+    })
+  }
+
+  /**
+   * Restarts the store after deleting it's index snapshots so that
+   * the index gets recovered from all the log files.
+   */
+  def restart_from_logs(threads:Int) = {
+    val stopping = new LoggingTracker("store stop")
+    stopping.stop(store)
+    stopping.await
+
+    data_directory.list_files.filter(_.getName.endsWith(".index")).foreach(_.recursive_delete)
+
+    recovery_threads = threads
+    store = create_store(get_flush_delay())
+    val starting = new LoggingTracker("store startup")
+    starting.start(store)
+    starting.await
+  }
+
+  def queue_entries(queue_key:Long):Seq[QueueEntryRecord] = sync_cb( cb=> store.list_queue_entries(queue_key, 0, Long.MaxValue)(cb) )
+
+  def body(entry:QueueEntryRecord) = {
+    val rc:Option[MessageRecord] = sync_cb( cb=> store.load_message(entry.message_key, entry.message_locator)(cb) )
+    rc.get.buffer.ascii.toString
+  }
+
+  def recover_from_many_log_files(threads:Int) = {
+    val client = store.asInstanceOf[LevelDBStore].client
+    // Small log files so that every batch ends up in it's own log file.
+    client.log.logSize = 1024
+    val A = add_queue("A")
+    val B = add_queue("B")
+    val batches = (0 until 6).map { i =>
+      populate(if( i % 2 == 0 ) A else B, (1 to 10).map(x=> "message %d-%d".format(i, x)).toList, 1 + (i * 10))
+    }
+
+    // Dequeue half of the first batch along with adding a last batch, so
+    // the dequeues land in a later log file than the enqueues they cancel.
+    val uow = store.create_uow("test")
+    batches.head.take(5).foreach { x =>
+      uow.dequeue(entry(A, x._3, (x._1, x._2)))
+    }
+    (1 to 10).foreach { x =>
+      uow.enqueue(entry(A, 60 + x, add_message(uow, "message 6-"+x)))
+    }
+    val tracker = new LoggingTracker("dequeue")
+    val dequeued = tracker.task("dequeue")
+    uow.on_complete(dequeued.run)
+    uow.complete_asap()
+    uow.release("test")
+    tracker.await
+
+    expect(true)(client.log.log_infos.size > 2)
+
+    restart_from_logs(threads)
+
+    val queues:Seq[Long] = sync_cb(store.list_queues(_))
+    expect(List(A, B))(queues.toList)
+
+    val a = queue_entries(A)
+    expect((6L to 10L) ++ (21L to 30L) ++ (41L to 50L) ++ (61L to 70L))(a.map(_.entry_seq))
+    expect(Seq((0, 6 to 10), (2, 1 to 10), (4, 1 to 10), (6, 1 to 10)).flatMap { case (i, r) => r.map("message %d-%d".format(i, _)) }) {
+      a.map(body(_))
+    }
+
+    val b = queue_entries(B)
+    expect((11L to 20L) ++ (31L to 40L) ++ (51L to 60L))(b.map(_.entry_seq))
+    expect(Seq(1, 3, 5).flatMap(i => (1 to 10).map("message %d-%d".format(i, _)))) {
+      b.map(body(_))
+    }
+  }
+
+  test("recovering the index from many log files with several threads") {
+    recover_from_many_log_files(4)
+  }
+
+  test("recovering the index from many log files with one thread") {
+    recover_from_many_log_files(1)
+  }
+
+}
@@ -0,0 +1,91 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.broker.store.{MessageRecord, QueueEntryRecord, StoreTests, Store}
+import org.apache.activemq.apollo.util.sync_cb
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+class PartitionedLevelDBStoreTest extends StoreTests {
+
+  def create_store(flushDelay: Long): Store = {
+    new PartitionedLevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      rc.partitions = 3
+      rc
+    })
+  }
+
+  test("queues in different partitions share a message") {
+    val queues = (1 to 3).map(x => add_queue("queue " + x))
+    val A = queues.head
+    val msg_keys = populate(A, "message 1" :: Nil)
+
+    // enqueue the stored message on the queues held by the other partitions.
+    val uow = store.create_uow("test")
+    queues.tail.foreach { queue =>
+      uow.enqueue(entry(queue, 1, (msg_keys.head._1, msg_keys.head._2)))
+    }
+    val done = sync_cb[Boolean] { cb =>
+      uow.on_complete(cb)
+      uow.complete_asap()
+      uow.release("test")
+    }
+    expect(false)(done)
+
+    queues.foreach { queue =>
+      val entries:Seq[QueueEntryRecord] = sync_cb(cb => store.list_queue_entries(queue, 0, Long.MaxValue)(cb))
+      expect(1)(entries.size)
+      val rc:Option[MessageRecord] = sync_cb(cb => store.load_message(entries.head.message_key, entries.head.message_locator)(cb))
+      expect(ascii("message 1").buffer) {
+        rc.get.buffer
+      }
+    }
+  }
+
+  test("dequeue right after enqueueing on another partition") {
+    val queues = (1 to 3).map(x => add_queue("queue " + x))
+    val A = queues.head
+    val msg_keys = populate(A, "message 1" :: Nil)
+
+    // the enqueues copy the message into the other partitions in the
+    // background, dequeue it from one of them before that is done.
+    val entries = queues.tail.map(queue => entry(queue, 1, (msg_keys.head._1, msg_keys.head._2)))
+    val enqueue_uow = store.create_uow("test")
+    entries.foreach(enqueue_uow.enqueue(_))
+    val dequeue_uow = store.create_uow("test")
+    dequeue_uow.dequeue(entries.head)
+
+    val done = sync_cb[Boolean] { cb =>
+      enqueue_uow.release("test")
+      dequeue_uow.on_complete(cb)
+      dequeue_uow.complete_asap()
+      dequeue_uow.release("test")
+    }
+    expect(false)(done)
+
+    val dequeued:Seq[QueueEntryRecord] = sync_cb(cb => store.list_queue_entries(queues(1), 0, Long.MaxValue)(cb))
+    expect(0)(dequeued.size)
+    val enqueued:Seq[QueueEntryRecord] = sync_cb(cb => store.list_queue_entries(queues(2), 0, Long.MaxValue)(cb))
+    expect(1)(enqueued.size)
+  }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.leveldb
+
+import org.apache.activemq.apollo.broker.store.QueueEntryPB
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.AsciiBuffer._
+import collection.JavaConversions._
+import HelperTrait._
+
+class QueueEntryEncodingTest extends FunSuiteSupport {
+
+  val senders = List[Buffer](ascii("queue:A"), ascii("topic:B"))
+  val sender_id = (x:Buffer) => senders.indexOf(x)
+  val sender = (x:Int) => senders(x)
+
+  def entry = {
+    val rc = new QueueEntryPB.Bean
+    rc.setMessageLocator(new Buffer(encode_locator(1024L*1024*1024*3, 512)))
+    rc.setSize(512)
+    rc
+  }
+
+  test("minimal entries are smaller than the protobuf encoding") {
+    val record = entry
+    val value = encode_queue_entry(record, sender_id)
+    expect(true) { value.length < record.freeze().toUnframedBuffer.length }
+
+    val decoded = decode_queue_entry(value, sender)
+    expect(record.getMessageLocator) { decoded.getMessageLocator }
+    expect(512) { decoded.getSize }
+    expect(0L) { decoded.getExpiration }
+    expect(0) { decoded.getRedeliveries }
+    expect(true) { decoded.getSenderList == null || decoded.getSenderList.isEmpty }
+    expect((1024L*1024*1024*3, 512)) { decode_queue_entry_locator(value) }
+  }
+
+  test("optional fields round trip") {
+    val record = entry
+    record.setExpiration(System.currentTimeMillis())
+    record.setRedeliveries(3)
+    record.setAttachment(ascii("attachment"))
+    record.setMessageKey(42)
+    senders.reverse.foreach(record.addSender(_))
+
+    val value = encode_queue_entry(record, sender_id)
+    val decoded = decode_queue_entry(value, sender)
+    expect(record.getExpiration) { decoded.getExpiration }
+    expect(3) { decoded.getRedeliveries }
+    expect(ascii("attachment"):Buffer) { decoded.getAttachment }
+    expect(42L) { decoded.getMessageKey }
+    expect(senders.reverse) { decoded.getSenderList.toList }
+  }
+
+  test("entries with senders which were not interned are protobuf encoded") {
+    val record = entry
+    record.addSender(senders.head)
+    record.addSender(ascii("queue:C"))
+    val value = encode_queue_entry(record, sender_id)
+
+    expect(false) { is_compact_queue_entry(value) }
+    val decoded = decode_queue_entry(value, sender)
+    expect(List[Buffer](senders.head, ascii("queue:C"))) { decoded.getSenderList.toList }
+    expect((1024L*1024*1024*3, 512)) { decode_queue_entry_locator(value) }
+  }
+
+  test("protobuf encoded entries are still readable") {
+    val record = entry
+    record.setExpiration(1000)
+    record.addSender(senders.head)
+    val value = record.freeze().toUnframedBuffer.toByteArray
+
+    expect(false) { is_compact_queue_entry(value) }
+    val decoded = decode_queue_entry(value, sender)
+    expect(512) { decoded.getSize }
+    expect(1000L) { decoded.getExpiration }
+    expect(List(senders.head)) { decoded.getSenderList.toList }
+    expect((1024L*1024*1024*3, 512)) { decode_queue_entry_locator(value) }
+  }
+
+}
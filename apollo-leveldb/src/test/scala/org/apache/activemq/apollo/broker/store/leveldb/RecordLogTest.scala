@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.leveldb
+
+import org.apache.activemq.apollo.broker.store.{ByteBufferReleaser, FileDirectBufferAllocator}
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+class RecordLogTest extends FunSuiteSupport {
+
+  def pattern(size:Int, seed:Int) = {
+    val rc = new Buffer(size)
+    for( i <- 0 until size ) {
+      rc.data(i) = (i * 31 + seed).toByte
+    }
+    rc
+  }
+
+  test("records appended from a direct buffer read back intact") {
+    val allocator = new FileDirectBufferAllocator(test_data_dir / "direct" / "buffers.dat")
+    val log = RecordLog(test_data_dir / "log", ".log")
+    log.directory.mkdirs()
+    log.verify_checksums = true
+    log.open
+    try {
+      // Not a multiple of the 4k chunks the buffer is read in, and followed
+      // by another allocation so that reading past its end would be noticed.
+      val body = pattern(4096 * 2 + 123, 1)
+      val direct = allocator.alloc(body.length)
+      val next = allocator.alloc(4096)
+      direct.write(body.toByteBuffer, 0)
+      next.write(pattern(4096, 7).toByteBuffer, 0)
+
+      val header = ascii("header")
+      val (pos, _) = log.appender(_.append(LevelDBClient.LOG_ADD_MESSAGE, List[Buffer](header), direct))
+
+      val (kind, data, _) = log.read(pos).get
+      expect(LevelDBClient.LOG_ADD_MESSAGE) { kind }
+      expect(header.length + body.length) { data.length }
+      expect(body) { data.slice(header.length, data.length) }
+      // reading the whole record verifies its checksum.
+      expect(data) { log.read(pos, data.length).get }
+
+      direct.release
+      next.release
+    } finally {
+      log.close
+      allocator.close
+    }
+  }
+
+  test("memory mapped log files get unmapped once deleted") {
+    val log = RecordLog(test_data_dir / "mmap", ".log")
+    log.directory.mkdirs()
+    log.logSize = 1024
+    log.mmap_limit = 1024 * 1024
+    log.open
+    try {
+      // does not fit in the log file, so the log rotates after it.
+      val record = pattern(2000, 3)
+      val (pos, _) = log.appender(_.append(LevelDBClient.LOG_ADD_MESSAGE, record))
+      expect(true) { log.appender_start > pos }
+
+      // the sealed log file is read through a mapping.
+      val (_, data, _) = log.read(pos).get
+      expect(record) { data }
+      expect(true) { log.mapped_bytes.get > 0 }
+
+      log.delete(log.log_info(pos).get.position)
+      if( ByteBufferReleaser.supported ) {
+        expect(0L) { log.mapped_bytes.get }
+      }
+    } finally {
+      log.close
+    }
+  }
+
+}
@@ -47,6 +47,25 @@ import org.apache.activemq.apollo.mqtt.MqttSessionManager.HostState
 import org.apache.activemq.apollo.broker.SubscriptionAddress
 
 object MqttProtocolHandler extends Log {
+
+  /**
+   * Returns the topic name and payload a message gets published with.  They are
+   * cached on the message and shared by all the mqtt consumers which use the
+   * same publish_body setting and topic.
+   */
+  def converted_publish(message:Message, publish_body:Boolean, topic:String):(UTF8Buffer, Buffer) = {
+    message.encoding((MqttProtocol, publish_body, topic)) {
+      val topic_name = new UTF8Buffer(topic)
+      val payload = if( message.codec eq RawMessageCodec ) {
+        message.asInstanceOf[RawMessage].payload
+      } else if( publish_body ) {
+        message.getBodyAs(classOf[Buffer])
+      } else {
+        message.encoded
+      }
+      (topic_name, payload)
+    }
+  }
   
   case class Request(id:Short, message:MessageSupport.Message, ack:(DeliveryResult)=>Unit) {
     val frame = if(message==null) null else message.encode()
@@ -1170,21 +1189,18 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
         case Some(qos) =>
 
           // Convert the Delivery into a Request
+          // The topic name and payload are shared by all the mqtt consumers
+          // the message is fanned out to.
+          val message = delivery.message
+          val topic = destination_parser.encode_destination(Array(delivery.sender.head))
+          val (topic_name, payload) = converted_publish(message, publish_body, topic)
+
           var publish = new PUBLISH
-          publish.topicName(new UTF8Buffer(destination_parser.encode_destination(Array(delivery.sender.head))))
+          publish.topicName(topic_name)
           if( delivery.redeliveries > 0) {
             publish.dup(true)
           }
-
-          if( delivery.message.codec eq RawMessageCodec ) {
-            publish.payload(delivery.message.asInstanceOf[RawMessage].payload)
-          } else {
-            if( publish_body ) {
-              publish.payload(delivery.message.getBodyAs(classOf[Buffer]))
-            } else {
-              publish.payload(delivery.message.encoded)
-            }
-          }
+          publish.payload(payload)
 
           handler.get.messages_sent += 1
 
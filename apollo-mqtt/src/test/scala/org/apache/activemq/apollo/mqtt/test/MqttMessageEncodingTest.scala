@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.activemq.apollo.mqtt.test
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.broker.Message
+import org.apache.activemq.apollo.broker.protocol.RawMessage
+import org.apache.activemq.apollo.mqtt.MqttProtocolHandler._
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.Buffer._
+
+/**
+ * Checks the topic names and payloads of messages published to mqtt
+ * consumers are shared by the consumers which can use the same ones.
+ */
+class MqttMessageEncodingTest extends FunSuiteSupport with ShouldMatchers {
+
+  def message = RawMessage(ascii("hello").buffer)
+
+  test("repeat deliveries use the cached encoding") {
+    val m = message
+    val encoded = converted_publish(m, false, "a/b")
+    converted_publish(m, false, "a/b") should be theSameInstanceAs (encoded)
+    encoded._1.toString should be ("a/b")
+    encoded._2 should be (ascii("hello").buffer)
+  }
+
+  test("each topic and publish_body setting gets it's own encoding") {
+    val m = message
+    val a = converted_publish(m, false, "a")
+    val b = converted_publish(m, false, "b")
+    val body = converted_publish(m, true, "a")
+    a should not be theSameInstanceAs (b)
+    a should not be theSameInstanceAs (body)
+    b._1.toString should be ("b")
+  }
+
+  test("the number of cached encodings is bounded") {
+    val m = message
+    val encodings = (0 until Message.MAX_ENCODINGS).map(i => converted_publish(m, false, "topic/"+i))
+    val extra = converted_publish(m, false, "topic/extra")
+    converted_publish(m, false, "topic/extra") should not be theSameInstanceAs (extra)
+    converted_publish(m, false, "topic/0") should be theSameInstanceAs (encodings(0))
+  }
+
+}
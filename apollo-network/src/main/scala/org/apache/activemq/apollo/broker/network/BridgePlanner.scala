@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.network
+
+import collection.mutable.{HashMap, ListBuffer}
+
+/**
+ * <p>
+ * Picks the bridges a queue needs by comparing how far behind the brokers
+ * that need consumers are with how much more the consumers of the other
+ * brokers can take on.  Each broker that needs consumers gets bridged to
+ * just enough of the brokers with the most spare capacity to cover its
+ * deficit instead of to all of them.
+ * </p>
+ */
+object BridgePlanner {
+
+  /**
+   * How many seconds a broker should take to drain its backlog.
+   */
+  val DRAIN_ETA = 60.0d
+
+  def needs_more_consumers(dest:DestinationMetrics):Boolean = {
+
+    // nothing to drain.. so no need for consumers.
+    if( dest.message_size == 0 && dest.enqueue_size_rate.mean == 0) {
+      return false
+    }
+
+    val drain_rate = dest.dequeue_size_rate - dest.enqueue_size_rate.mean
+    if( drain_rate < 0 ) {
+      // Not draining...
+      return true
+    }
+
+    // Might need a consumer due to being drained too slowly..
+    val drain_eta_in_seconds = dest.message_size / drain_rate
+    return drain_eta_in_seconds > DRAIN_ETA
+  }
+
+  /**
+   * The rate in bytes/sec which the broker's consumers are missing to keep
+   * up with the enqueues and drain the backlog within DRAIN_ETA seconds.
+   */
+  def deficit(dest:DestinationMetrics):Double = {
+    ((dest.enqueue_size_rate.mean - dest.dequeue_size_rate) max 0) + dest.message_size / DRAIN_ETA
+  }
+
+  /**
+   * The rate in bytes/sec which the broker's consumers could take on
+   * from other brokers.  Idle consumers have not had a rate measured, so
+   * they are assumed to be able to take on any load.
+   */
+  def spare_capacity(dest:DestinationMetrics):Double = {
+    if( dest.consumer_count == 0 || needs_more_consumers(dest) ) {
+      0
+    } else if( dest.message_size == 0 && dest.dequeue_size_rate == 0 ) {
+      Double.PositiveInfinity
+    } else {
+      (dest.dequeue_size_rate - dest.enqueue_size_rate.mean - dest.message_size / DRAIN_ETA) max 0
+    }
+  }
+
+  /**
+   * @param needs_consumers the brokers which need consumers for the queue.
+   * @param has_consumers the brokers whose consumers could drain the queue.
+   * @param bridged returns true if the broker is already bridged to the other one.
+   * @return the (from, to) broker pairs to bridge.
+   */
+  def plan(needs_consumers:Seq[(String, DestinationMetrics)],
+           has_consumers:Seq[(String, DestinationMetrics)],
+           bridged:(String, String)=>Boolean):Seq[(String, String)] = {
+
+    val metrics = has_consumers.toMap
+    val capacity = HashMap(has_consumers.map{ case (id, dest) => (id, spare_capacity(dest)) } : _*)
+    val rc = ListBuffer[(String, String)]()
+
+    // Serve the brokers which are furthest behind first.
+    for( (from, from_metrics) <- needs_consumers.sortBy(x => -deficit(x._2)) ) {
+      var remaining = deficit(from_metrics)
+      val candidates = has_consumers.map(_._1).filter(_ != from)
+
+      // Keep the existing bridges to brokers which are still keeping up so
+      // that the plan does not flap as the rates move around.
+      val (kept, others) = candidates.partition { to =>
+        bridged(from, to) && !needs_more_consumers(metrics(to))
+      }
+
+      def use(to:String) = {
+        val used = remaining min capacity(to)
+        remaining -= used
+        capacity(to) = capacity(to) - used
+        rc += ((from, to))
+      }
+
+      kept.foreach(use(_))
+      for( to <- others.sortBy(x => (-capacity(x), -metrics(x).consumer_count)) ) {
+        if( remaining > 0 && capacity(to) > 0 ) {
+          use(to)
+        }
+      }
+    }
+    rc
+  }
+
+}
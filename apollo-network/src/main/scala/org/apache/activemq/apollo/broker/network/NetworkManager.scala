@@ -105,6 +105,7 @@ class NetworkManager(broker: Broker) extends BaseService with MembershipListener
   def network_user = Option(config.user).getOrElse("network")
   def network_password = config.password
   def monitoring_interval = OptionSupport(config.monitoring_interval).getOrElse(5)
+  def bridge_ack_window = OptionSupport(config.bridge_ack_window).getOrElse(100)
 
   protected def _start(on_completed: Task) = {
     import collection.JavaConversions._
@@ -198,9 +199,8 @@ class NetworkManager(broker: Broker) extends BaseService with MembershipListener
 
     val desired_bridges = HashSet[BridgeInfo]()
     for( (id, demand) <- queue_demand_map ) {
-      for( (from, from_metrics)<- demand.needs_consumers; (to, to_metrics) <-demand.has_consumers ) {
-        // we could get fancy and compare the to_metrics and from_metrics to avoid
-        // setting up bridges that won't make a big difference..
+      val bridged = (from:String, to:String) => bridges.contains(BridgeInfo(from, to, "queue", id))
+      for( (from, to) <- BridgePlanner.plan(demand.needs_consumers, demand.has_consumers, bridged) ) {
         desired_bridges += BridgeInfo(from, to, "queue", id)
       }
     }
@@ -242,24 +242,7 @@ class NetworkManager(broker: Broker) extends BaseService with MembershipListener
     }
   }
 
-  def needs_more_consumers(dest:DestinationMetrics):Boolean = {
-
-    // nothing to drain.. so no need for consumers.
-    if( dest.message_size == 0 && dest.enqueue_size_rate.mean == 0) {
-      return false
-    }
-
-    val drain_rate = dest.dequeue_size_rate - dest.enqueue_size_rate.mean
-    if( drain_rate < 0 ) {
-      // Not draining...
-      return true
-    }
-
-    // Might need a consumer due to being drained too slowly..
-    val drain_eta_in_seconds = dest.message_size / drain_rate
-    return drain_eta_in_seconds > 60
-  }
-
+  def needs_more_consumers(dest:DestinationMetrics):Boolean = BridgePlanner.needs_more_consumers(dest)
 
   val bridging_strategies = LinkedHashMap[String, BridgingStrategy]()
   bridging_strategies.put("stomp", new StompBridgingStrategy(this))
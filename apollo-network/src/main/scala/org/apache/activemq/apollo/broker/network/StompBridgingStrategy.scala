@@ -25,11 +25,30 @@ import org.apache.activemq.apollo.broker.Broker
 import java.util.Properties
 import org.fusesource.stomp.client.{CallbackConnection, Stomp}
 import java.util.concurrent.TimeUnit
-import collection.mutable.HashMap
+import collection.mutable.{LinkedHashMap, HashMap}
 import org.fusesource.stomp.codec.StompFrame
 
 
 object StompBridgingStrategy extends Log {
+  import org.fusesource.hawtbuf.Buffer._
+
+  val INCLUDE_SEQ_HEADER = ascii("include-seq")
+  // The queue sequence of the message on the source broker.
+  val BRIDGE_SEQ = ascii("bridge-seq")
+  // The id the remote broker detects the re-sent messages by.
+  val BRIDGE_MESSAGE_ID = ascii("bridge-message-id")
+
+  private def field(value:String) = value.length + ":" + value
+
+  /**
+   * Builds an id which is unique across all the bridges of the network from
+   * the source broker uri, the destination, the source queue sequence and the
+   * message id.  The fields are length prefixed so they can't run into each other.
+   */
+  def bridge_message_id(from:String, destination:AsciiBuffer, seq:AsciiBuffer, message_id:AsciiBuffer) = {
+    def str(value:AsciiBuffer) = if( value==null ) "" else value.toString
+    ascii(field(from) + field(str(destination)) + field(str(seq)) + str(message_id))
+  }
 }
 
 class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy {
@@ -65,24 +84,54 @@ class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy
     val from_connection = ConnectionStateMachine(new URI(from))
     val to_connection = ConnectionStateMachine(new URI(to))
 
+    // A message forwarded to the remote broker, the remote broker can confirm
+    // the messages in any order.
+    class Forwarded(val message_id:AsciiBuffer) {
+      var confirmed = false
+    }
+
+    // The forwarded messages of a subscription in the order the source broker
+    // delivered them, and the last one of the confirmed prefix which has not
+    // been acked to the source broker yet.
+    case class SubscriptionAcks(state:AnyRef) {
+      val forwarded = new java.util.ArrayDeque[Forwarded]()
+      var last_confirmed:AsciiBuffer = null
+      var count = 0
+    }
+    val pending_acks = HashMap[AsciiBuffer, SubscriptionAcks]()
+
+    def subscription_acks(state:AnyRef, subscription:AsciiBuffer) = {
+      pending_acks.get(subscription) match {
+        case Some(acks) if acks.state eq state => acks
+        case _ =>
+          val acks = SubscriptionAcks(state)
+          pending_acks.put(subscription, acks)
+          acks
+      }
+    }
+
     from_connection.receive_handler = frame => {
       val original_state = from_connection.state
       frame.action() match {
         case MESSAGE =>
           // forward it..
           frame.action(SEND)
+          val subscription = frame.getHeader(SUBSCRIPTION)
           var msgid = frame.getHeader(MESSAGE_ID)
+          // Keep the id the first bridge assigned when a message crosses several brokers.
+          if( frame.getHeader(BRIDGE_MESSAGE_ID)==null ) {
+            frame.addHeader(BRIDGE_MESSAGE_ID, bridge_message_id(from, frame.getHeader(DESTINATION), frame.getHeader(BRIDGE_SEQ), msgid))
+          }
+          val forwarded = new Forwarded(msgid)
+          subscription_acks(original_state, subscription).forwarded.add(forwarded)
           debug("forwarding message: %s", msgid)
           to_connection.send(frame, ()=>{
             // Ack it if the original connection is still up...
-            // TODO: if it's not a we will probably get a dup/redelivery.
-            // Might want to introduce some dup detection at this point.
+            // If it's not, the message gets redelivered to us and forwarded again, but the
+            // remote broker drops it since it detects duplicates sent by bridge connections.
             if( from_connection.state eq original_state ) {
-              val ack = new StompFrame(ACK);
-              ack.addHeader(SUBSCRIPTION, frame.getHeader(SUBSCRIPTION))
-              ack.addHeader(MESSAGE_ID, msgid)
-              from_connection.send(ack, null)
-              debug("forwarded message, now acking: %s", msgid)
+              forwarded.confirmed = true
+              confirmed(subscription)
             }
           })
         case _ =>
@@ -90,6 +139,38 @@ class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy
       }
     }
 
+    // The subscriptions use the client ack mode, so acking a message also acks all the
+    // messages received before it.  So we only ack the last message up to which all the
+    // forwarded messages have been confirmed, once a window of them has been confirmed
+    // or once the remote broker has caught up with all the forwarded messages.
+    def confirmed(subscription:AsciiBuffer) = {
+      for( acks <- pending_acks.get(subscription) ) {
+        while( !acks.forwarded.isEmpty && acks.forwarded.peek.confirmed ) {
+          acks.last_confirmed = acks.forwarded.poll.message_id
+          acks.count += 1
+        }
+        if( to_connection.pending_sends.isEmpty ) {
+          pending_acks.keys.toList.foreach(ack(_))
+        } else if( acks.count >= manager.bridge_ack_window ) {
+          ack(subscription)
+        }
+      }
+    }
+
+    def ack(subscription:AsciiBuffer) = {
+      for( acks <- pending_acks.get(subscription) if acks.last_confirmed!=null ) {
+        if( from_connection.state eq acks.state ) {
+          val ack = new StompFrame(ACK);
+          ack.addHeader(SUBSCRIPTION, subscription)
+          ack.addHeader(MESSAGE_ID, acks.last_confirmed)
+          from_connection.send(ack, null)
+          debug("forwarded %d messages, now acking: %s", acks.count, acks.last_confirmed)
+        }
+        acks.last_confirmed = null
+        acks.count = 0
+      }
+    }
+
     dispatch_queue {
       from_connection.connect
       to_connection.connect
@@ -99,7 +180,8 @@ class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy
 
       var id_counter = 0L
       var subscriptions = HashMap[AsciiBuffer, AsciiBuffer]()
-      var pending_sends = HashMap[Long, (StompFrame, ()=>Unit)]()
+      // The sent frames which are waiting on a receipt, in the order they were sent.
+      var pending_sends = LinkedHashMap[Long, (StompFrame, ()=>Unit)]()
 
       var receive_handler: (StompFrame)=>Unit = frame => {
         info("dropping frame: %s", frame)
@@ -178,13 +260,13 @@ class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy
           // Reconnect any subscriptions.
           subscriptions.keySet.foreach(subscribe(_))
           // Re-send messages..
-          pending_sends.values.foreach(x => request(x._1, x._2))
+          pending_sends.foreach { case (id, (frame, _)) => request(id, frame) }
 
         }
 
-        def request(frame:StompFrame, on_complete: ()=>Unit) = {
+        def request(id:Long, frame:StompFrame) = {
           connection.request(frame, new org.fusesource.stomp.client.Callback[StompFrame] {
-            override def onSuccess(response: StompFrame) = on_complete()
+            override def onSuccess(response: StompFrame) = receipted(id)
             override def onFailure(value: Throwable) = failed(value)
           })
         }
@@ -224,6 +306,7 @@ class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy
           frame.addHeader(ID, id)
           frame.addHeader(DESTINATION, destination)
           frame.addHeader(ACK_MODE, CLIENT)
+          frame.addHeader(INCLUDE_SEQ_HEADER, BRIDGE_SEQ)
           connection.send(frame, null)
         }
       }
@@ -240,19 +323,26 @@ class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy
         }
       }
 
+      /**
+       * Sends the frame, if on_complete is set the frame is re-sent on reconnects
+       * until the remote broker sends a receipt for it.  The sends are pipelined,
+       * they don't wait on the receipts of the previous sends.
+       */
       def send(frame:StompFrame, on_complete: ()=>Unit) = {
         if( on_complete!=null ) {
           val id = next_id
-          val cb = ()=>{
-            pending_sends.remove(id)
-            on_complete()
-          }
-          pending_sends.put(id, (frame, cb))
-          react[ConnectedState] { state => state.request(frame, cb) }
+          pending_sends.put(id, (frame, on_complete))
+          react[ConnectedState] { state => state.request(id, frame) }
         } else {
           react[ConnectedState] { state => state.send(frame) }
         }
       }
+
+      def receipted(id:Long) = {
+        for( (_, on_complete) <- pending_sends.remove(id) ) {
+          on_complete()
+        }
+      }
     }
 
     def deploy(kind:String, destination:String) = dispatch_queue {
@@ -42,6 +42,13 @@ public class NetworkManagerDTO extends CustomServiceDTO {
     @XmlAttribute(name="monitoring_interval")
     public Integer monitoring_interval;
 
+    /**
+     * How many forwarded messages a bridge lets the remote broker confirm
+     * before it acks them back to the source broker.  Defaults to 100.
+     */
+    @XmlAttribute(name="bridge_ack_window")
+    public Integer bridge_ack_window;
+
     @XmlElement(name="self")
     public ClusterMemberDTO self = null;
 
@@ -65,6 +72,8 @@ public class NetworkManagerDTO extends CustomServiceDTO {
             return false;
         if (monitoring_interval != null ? !monitoring_interval.equals(that.monitoring_interval) : that.monitoring_interval != null)
             return false;
+        if (bridge_ack_window != null ? !bridge_ack_window.equals(that.bridge_ack_window) : that.bridge_ack_window != null)
+            return false;
         if (password != null ? !password.equals(that.password) : that.password != null)
             return false;
         if (self != null ? !self.equals(that.self) : that.self != null)
@@ -83,6 +92,7 @@ public class NetworkManagerDTO extends CustomServiceDTO {
         result = 31 * result + (self != null ? self.hashCode() : 0);
         result = 31 * result + (duplex != null ? duplex.hashCode() : 0);
         result = 31 * result + (monitoring_interval != null ? monitoring_interval.hashCode() : 0);
+        result = 31 * result + (bridge_ack_window != null ? bridge_ack_window.hashCode() : 0);
         result = 31 * result + (members != null ? members.hashCode() : 0);
         return result;
     }
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.activemq.apollo.broker.network
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+
+class BridgePlannerTest extends FunSuiteSupport with ShouldMatchers {
+
+  def metrics(message_size:Long, consumer_count:Long, dequeue_size_rate:Double) = {
+    val rc = new DestinationMetrics
+    rc.message_size = message_size
+    rc.consumer_count = consumer_count
+    rc.dequeue_size_rate = dequeue_size_rate
+    rc
+  }
+
+  val not_bridged = (from:String, to:String) => false
+
+  test("bridges to a single idle broker") {
+    val needs = List("a" -> metrics(1024*1024, 0, 0))
+    val has = List("b" -> metrics(0, 1, 0), "c" -> metrics(0, 5, 0))
+    BridgePlanner.plan(needs, has, not_bridged) should be (List("a" -> "c"))
+  }
+
+  test("bridges to as many brokers as it takes to cover the deficit") {
+    // needs to drain 6000 bytes/sec to empty the backlog within a minute.
+    val needs = List("a" -> metrics(6000*60, 0, 0))
+    val has = List(
+      "b" -> metrics(100, 1, 4000),
+      "c" -> metrics(100, 1, 3000),
+      "d" -> metrics(100, 1, 1000)
+    )
+    BridgePlanner.plan(needs, has, not_bridged) should be (List("a" -> "b", "a" -> "c"))
+  }
+
+  test("does not bridge to brokers which are falling behind") {
+    val needs = List("a" -> metrics(1024*1024, 0, 0))
+    val has = List("b" -> metrics(1024*1024, 1, 0))
+    BridgePlanner.plan(needs, has, not_bridged) should be (Nil)
+  }
+
+  test("keeps existing bridges to brokers which keep up") {
+    val needs = List("a" -> metrics(6000*60, 0, 0))
+    val has = List("b" -> metrics(0, 1, 100), "c" -> metrics(0, 1, 0))
+    BridgePlanner.plan(needs, has, (from, to) => to == "b") should be (List("a" -> "b", "a" -> "c"))
+  }
+
+}
@@ -885,6 +885,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
     
     override def exclusive = info.isExclusive
     override def browser = info.isBrowser
+    override def jms_selector = if( info.getSelector!=null ) info.getSelector.toString else null
 
     def attach = {
 
@@ -908,7 +909,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
         case null=> null
         case x=>
           try {
-            SelectorParser.parse(x.toString)
+            SelectorParser.compile(x.toString)
           } catch {
             case e:FilterException =>
               fail("Invalid selector expression: "+e.getMessage, info)
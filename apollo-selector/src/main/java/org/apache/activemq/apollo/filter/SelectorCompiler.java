@@ -0,0 +1,568 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compiles a parsed selector into a tree of specialized nodes which are
+ * cheaper to evaluate than the parsed expression tree:
+ * <ul>
+ * <li>sub expressions which do not depend on the message are folded into constants</li>
+ * <li>comparisons of a value against a numeric constant are done on primitives</li>
+ * <li>LIKE patterns which only use the '%' wildcard are matched without a regex</li>
+ * <li>the operands of AND and OR expressions whose result is only tested for
+ * being true are ordered so that the cheap and decisive ones get evaluated first</li>
+ * </ul>
+ * The compiled nodes produce the same results as the parsed expression tree.
+ * XPath and XQuery expressions, and anything else which cannot be specialized,
+ * are still evaluated by the parsed expression.
+ */
+public final class SelectorCompiler {
+
+    static final int FALSE = 0;
+    static final int TRUE = 1;
+    static final int UNKNOWN = 2;
+
+    private SelectorCompiler() {
+    }
+
+    /**
+     * @return an expression which evaluates like the given expression, or the given
+     * expression itself if nothing in it could be compiled.
+     */
+    public static BooleanExpression compile(BooleanExpression expression) {
+        Node node = compile(expression, true);
+        if (node instanceof Interpreted) {
+            return expression;
+        }
+        return node;
+    }
+
+    /**
+     * @return the expression the compiled expression was created from, or the
+     * expression itself if it was not compiled.
+     */
+    public static BooleanExpression source(BooleanExpression expression) {
+        if (expression instanceof Node) {
+            return ((Node) expression).source;
+        }
+        return expression;
+    }
+
+    /**
+     * @param positive true if only whether the expression evaluates to TRUE matters,
+     *                 in which case the NULL and FALSE results can be used interchangeably.
+     */
+    private static Node compile(BooleanExpression expression, boolean positive) {
+        if (isConstant(expression)) {
+            try {
+                return new Constant(expression, tri(expression.evaluate(null)));
+            } catch (Exception e) {
+                // Will fail when evaluated against a message too.
+            }
+        }
+
+        if (expression instanceof LogicExpression) {
+            String symbol = ((LogicExpression) expression).getExpressionSymbol();
+            if ("AND".equals(symbol) || "OR".equals(symbol)) {
+                return compileLogic(expression, symbol, positive);
+            }
+        }
+
+        if (expression instanceof ComparisonExpression.LikeExpression) {
+            ComparisonExpression.LikeExpression like = (ComparisonExpression.LikeExpression) expression;
+            if (like.escape == -1 && like.like.indexOf('_') < 0) {
+                return new Like(like, like.getRight(), like.like.split("%", -1));
+            }
+            return new Interpreted(expression, 8, 0.3);
+        }
+
+        if (expression instanceof UnaryExpression) {
+            UnaryExpression unary = (UnaryExpression) expression;
+            String symbol = unary.getExpressionSymbol();
+            if ("NOT".equals(symbol) && unary.getRight() instanceof BooleanExpression) {
+                return new Not(expression, compile((BooleanExpression) unary.getRight(), false));
+            }
+            if ("IN".equals(symbol)) {
+                return new Interpreted(expression, 2, 0.2);
+            }
+            if ("NOT IN".equals(symbol)) {
+                return new Interpreted(expression, 2, 0.8);
+            }
+        }
+
+        if (expression instanceof ComparisonExpression) {
+            Node rc = compileComparison((ComparisonExpression) expression);
+            if (rc != null) {
+                return rc;
+            }
+        }
+
+        if (expression instanceof XPathExpression || expression instanceof XQueryExpression) {
+            return new Interpreted(expression, 100, 0.5);
+        }
+        return new Interpreted(expression, 5, 0.5);
+    }
+
+    private static Node compileLogic(BooleanExpression expression, String symbol, boolean positive) {
+        final boolean and = "AND".equals(symbol);
+        ArrayList<Node> operands = new ArrayList<Node>();
+        flatten(expression, symbol, positive, operands);
+
+        if (positive) {
+            // Constants can be dropped or decide the result.
+            ArrayList<Node> remaining = new ArrayList<Node>(operands.size());
+            for (Node operand : operands) {
+                if (operand instanceof Constant) {
+                    boolean isTrue = ((Constant) operand).value == TRUE;
+                    if (isTrue != and) {
+                        // A false AND operand or a true OR operand decides the result.
+                        return new Constant(expression, and ? FALSE : TRUE);
+                    }
+                } else {
+                    remaining.add(operand);
+                }
+            }
+            if (remaining.isEmpty()) {
+                return new Constant(expression, and ? TRUE : FALSE);
+            }
+            if (remaining.size() == 1) {
+                return remaining.get(0);
+            }
+            operands = remaining;
+
+            // Evaluate the operands with the best cost to chance of deciding
+            // the result ratio first.
+            Collections.sort(operands, new Comparator<Node>() {
+                public int compare(Node a, Node b) {
+                    return Double.compare(rank(a), rank(b));
+                }
+
+                private double rank(Node node) {
+                    double decides = and ? 1 - node.selectivity : node.selectivity;
+                    return node.cost / Math.max(decides, 0.01);
+                }
+            });
+        }
+
+        Node[] nodes = operands.toArray(new Node[operands.size()]);
+        return and ? new And(expression, nodes) : new Or(expression, nodes);
+    }
+
+    private static void flatten(Expression expression, String symbol, boolean positive, List<Node> operands) {
+        if (expression instanceof LogicExpression && symbol.equals(((LogicExpression) expression).getExpressionSymbol())) {
+            LogicExpression logic = (LogicExpression) expression;
+            flatten(logic.getLeft(), symbol, positive, operands);
+            flatten(logic.getRight(), symbol, positive, operands);
+        } else {
+            operands.add(compile((BooleanExpression) expression, positive));
+        }
+    }
+
+    private static Node compileComparison(ComparisonExpression expression) {
+        String symbol = expression.getExpressionSymbol();
+        int op;
+        if ("=".equals(symbol)) {
+            op = NumericComparison.EQ;
+        } else if (">".equals(symbol)) {
+            op = NumericComparison.GT;
+        } else if (">=".equals(symbol)) {
+            op = NumericComparison.GE;
+        } else if ("<".equals(symbol)) {
+            op = NumericComparison.LT;
+        } else if ("<=".equals(symbol)) {
+            op = NumericComparison.LE;
+        } else {
+            return null;
+        }
+
+        Expression left = expression.getLeft();
+        Expression right = expression.getRight();
+        boolean constantOnLeft = isConstant(left);
+        if (constantOnLeft == isConstant(right)) {
+            return null;
+        }
+        Expression operand = constantOnLeft ? right : left;
+        Object constant;
+        try {
+            constant = (constantOnLeft ? left : right).evaluate(null);
+        } catch (Exception e) {
+            return null;
+        }
+
+        if (constant == null) {
+            if (op == NumericComparison.EQ) {
+                return new IsNull(expression, operand);
+            }
+            return null;
+        }
+        if (constant instanceof String && op == NumericComparison.EQ) {
+            return new StringEquality(expression, operand, (String) constant);
+        }
+        if (rank(constant.getClass()) != 0) {
+            return new NumericComparison(expression, operand, (Number) constant, constantOnLeft, op);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the expression does not depend on the message being evaluated.
+     */
+    static boolean isConstant(Expression expression) {
+        if (expression instanceof ConstantExpression) {
+            return true;
+        }
+        if (expression instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression) expression;
+            return isConstant(binary.getLeft()) && isConstant(binary.getRight());
+        }
+        if (expression instanceof UnaryExpression) {
+            return isConstant(((UnaryExpression) expression).getRight());
+        }
+        return false;
+    }
+
+    static int tri(Object value) {
+        if (value == null) {
+            return UNKNOWN;
+        }
+        return Boolean.TRUE.equals(value) ? TRUE : FALSE;
+    }
+
+    /**
+     * @return 1 for integral, 2 for float and 3 for double values, 0 for anything else.
+     */
+    static int rank(Class<?> clazz) {
+        if (clazz == Integer.class || clazz == Long.class || clazz == Short.class || clazz == Byte.class) {
+            return 1;
+        }
+        if (clazz == Float.class) {
+            return 2;
+        }
+        if (clazz == Double.class) {
+            return 3;
+        }
+        return 0;
+    }
+
+    /**
+     * Mirrors the type promotions ComparisonExpression.compare allows.
+     */
+    static boolean promotable(Class<?> lc, Class<?> rc) {
+        if (lc == rc) {
+            return true;
+        }
+        if (lc == Byte.class) {
+            return true;
+        }
+        if (lc == Short.class) {
+            return rc != Byte.class;
+        }
+        return rc != Byte.class && rc != Short.class;
+    }
+
+    static int compare(Number lv, int lr, Number rv, int rr) {
+        int rank = Math.max(lr, rr);
+        if (rank == 1) {
+            long l = lv.longValue();
+            long r = rv.longValue();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        } else if (rank == 2) {
+            return Float.compare(lv.floatValue(), rv.floatValue());
+        } else {
+            return Double.compare(lv.doubleValue(), rv.doubleValue());
+        }
+    }
+
+    static abstract class Node implements BooleanExpression {
+        final BooleanExpression source;
+        // Relative cost of evaluating the node.
+        final double cost;
+        // Estimated chance that the node evaluates to TRUE.
+        final double selectivity;
+
+        Node(BooleanExpression source, double cost, double selectivity) {
+            this.source = source;
+            this.cost = cost;
+            this.selectivity = selectivity;
+        }
+
+        abstract int test(Filterable message) throws FilterException;
+
+        public Object evaluate(Filterable message) throws FilterException {
+            switch (test(message)) {
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                default:
+                    return null;
+            }
+        }
+
+        public boolean matches(Filterable message) throws FilterException {
+            return test(message) == TRUE;
+        }
+
+        public String toString() {
+            return source.toString();
+        }
+    }
+
+    static final class Constant extends Node {
+        final int value;
+
+        Constant(BooleanExpression source, int value) {
+            super(source, 0, value == TRUE ? 1 : 0);
+            this.value = value;
+        }
+
+        int test(Filterable message) {
+            return value;
+        }
+    }
+
+    static final class Interpreted extends Node {
+        Interpreted(BooleanExpression source, double cost, double selectivity) {
+            super(source, cost, selectivity);
+        }
+
+        int test(Filterable message) throws FilterException {
+            return tri(source.evaluate(message));
+        }
+    }
+
+    static final class And extends Node {
+        final Node[] operands;
+
+        And(BooleanExpression source, Node[] operands) {
+            super(source, sumCost(operands), 0.5);
+            this.operands = operands;
+        }
+
+        int test(Filterable message) throws FilterException {
+            for (Node operand : operands) {
+                int rc = operand.test(message);
+                if (rc != TRUE) {
+                    return rc;
+                }
+            }
+            return TRUE;
+        }
+    }
+
+    static final class Or extends Node {
+        final Node[] operands;
+
+        Or(BooleanExpression source, Node[] operands) {
+            super(source, sumCost(operands), 0.5);
+            this.operands = operands;
+        }
+
+        int test(Filterable message) throws FilterException {
+            int rc = FALSE;
+            for (Node operand : operands) {
+                rc = operand.test(message);
+                if (rc == TRUE) {
+                    return TRUE;
+                }
+            }
+            return rc;
+        }
+    }
+
+    static double sumCost(Node[] operands) {
+        double rc = 0;
+        for (Node operand : operands) {
+            rc += operand.cost;
+        }
+        return rc;
+    }
+
+    static final class Not extends Node {
+        final Node operand;
+
+        Not(BooleanExpression source, Node operand) {
+            super(source, operand.cost, 1 - operand.selectivity);
+            this.operand = operand;
+        }
+
+        int test(Filterable message) throws FilterException {
+            switch (operand.test(message)) {
+                case TRUE:
+                    return FALSE;
+                case FALSE:
+                    return TRUE;
+                default:
+                    return UNKNOWN;
+            }
+        }
+    }
+
+    static final class IsNull extends Node {
+        final Expression operand;
+
+        IsNull(BooleanExpression source, Expression operand) {
+            super(source, 1, 0.5);
+            this.operand = operand;
+        }
+
+        int test(Filterable message) throws FilterException {
+            return operand.evaluate(message) == null ? TRUE : FALSE;
+        }
+    }
+
+    static final class StringEquality extends Node {
+        final Expression operand;
+        final String constant;
+
+        StringEquality(BooleanExpression source, Expression operand, String constant) {
+            super(source, 1, 0.1);
+            this.operand = operand;
+            this.constant = constant;
+        }
+
+        int test(Filterable message) throws FilterException {
+            Object value = operand.evaluate(message);
+            if (value == null) {
+                return FALSE;
+            }
+            if (value.getClass() == String.class) {
+                return constant.equals(value) ? TRUE : FALSE;
+            }
+            return tri(source.evaluate(message));
+        }
+    }
+
+    static final class NumericComparison extends Node {
+        static final int EQ = 0;
+        static final int GT = 1;
+        static final int GE = 2;
+        static final int LT = 3;
+        static final int LE = 4;
+
+        final Expression operand;
+        final Number constant;
+        final int constantRank;
+        final boolean constantOnLeft;
+        final int op;
+
+        NumericComparison(BooleanExpression source, Expression operand, Number constant, boolean constantOnLeft, int op) {
+            super(source, 1, op == EQ ? 0.1 : 0.5);
+            this.operand = operand;
+            this.constant = constant;
+            this.constantRank = rank(constant.getClass());
+            this.constantOnLeft = constantOnLeft;
+            this.op = op;
+        }
+
+        int test(Filterable message) throws FilterException {
+            Object value = operand.evaluate(message);
+            if (value == null) {
+                return op == EQ ? FALSE : UNKNOWN;
+            }
+            int valueRank = rank(value.getClass());
+            if (valueRank == 0) {
+                // Strings may get converted, let the interpreter sort it out.
+                return tri(source.evaluate(message));
+            }
+            int rc;
+            if (constantOnLeft) {
+                if (!promotable(constant.getClass(), value.getClass())) {
+                    return FALSE;
+                }
+                rc = compare(constant, constantRank, (Number) value, valueRank);
+            } else {
+                if (!promotable(value.getClass(), constant.getClass())) {
+                    return FALSE;
+                }
+                rc = compare((Number) value, valueRank, constant, constantRank);
+            }
+            boolean answer;
+            switch (op) {
+                case EQ:
+                    answer = rc == 0;
+                    break;
+                case GT:
+                    answer = rc > 0;
+                    break;
+                case GE:
+                    answer = rc >= 0;
+                    break;
+                case LT:
+                    answer = rc < 0;
+                    break;
+                default:
+                    answer = rc <= 0;
+            }
+            return answer ? TRUE : FALSE;
+        }
+    }
+
+    static final class Like extends Node {
+        final Expression operand;
+        // The literal parts of the pattern which are separated by '%' wildcards.
+        final String[] parts;
+
+        Like(BooleanExpression source, Expression operand, String[] parts) {
+            super(source, 3, 0.3);
+            this.operand = operand;
+            this.parts = parts;
+        }
+
+        int test(Filterable message) throws FilterException {
+            Object value = operand.evaluate(message);
+            if (value == null) {
+                return UNKNOWN;
+            }
+            if (!(value instanceof String)) {
+                return FALSE;
+            }
+            return matches((String) value) ? TRUE : FALSE;
+        }
+
+        boolean matches(String value) {
+            if (parts.length == 1) {
+                return value.equals(parts[0]);
+            }
+            String first = parts[0];
+            String last = parts[parts.length - 1];
+            if (value.length() < first.length() + last.length() || !value.startsWith(first) || !value.endsWith(last)) {
+                return false;
+            }
+            int pos = first.length();
+            int end = value.length() - last.length();
+            for (int i = 1; i < parts.length - 1; i++) {
+                String part = parts[i];
+                if (part.length() == 0) {
+                    continue;
+                }
+                int at = value.indexOf(part, pos);
+                if (at < 0 || at + part.length() > end) {
+                    return false;
+                }
+                pos = at + part.length();
+            }
+            return true;
+        }
+    }
+
+}
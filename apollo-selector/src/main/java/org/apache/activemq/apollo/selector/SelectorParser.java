@@ -19,6 +19,7 @@ package org.apache.activemq.apollo.selector;
 import org.apache.activemq.apollo.filter.BooleanExpression;
 import org.apache.activemq.apollo.filter.ComparisonExpression;
 import org.apache.activemq.apollo.filter.FilterException;
+import org.apache.activemq.apollo.filter.SelectorCompiler;
 import org.apache.activemq.apollo.selector.hyphenated.HyphenatedParser;
 import org.apache.activemq.apollo.selector.strict.StrictParser;
 
@@ -29,6 +30,7 @@ import java.io.StringReader;
 public class SelectorParser {
 
     private static final LRUCache cache = new LRUCache(100);
+    private static final LRUCache compiledCache = new LRUCache(100);
     private static final String CONVERT_STRING_EXPRESSIONS_PREFIX = "convert_string_expressions:";
     private static final String HYPHENATED_PROPS_PREFIX = "hyphenated_props:";
     private static final String NO_CONVERT_STRING_EXPRESSIONS_PREFIX = "no_convert_string_expressions:";
@@ -94,7 +96,25 @@ public class SelectorParser {
         }
     }
 
+    /**
+     * Parses the selector and compiles it into an expression which is
+     * cheaper to evaluate.
+     *
+     * @see SelectorCompiler
+     */
+    public static BooleanExpression compile(String sql) throws FilterException {
+        Object result = compiledCache.get(sql);
+        if (result instanceof BooleanExpression) {
+            return (BooleanExpression) result;
+        } else {
+            BooleanExpression e = SelectorCompiler.compile(parse(sql));
+            compiledCache.put(sql, e);
+            return e;
+        }
+    }
+
     public static void clearCache() {
         cache.clear();
+        compiledCache.clear();
     }
 }
@@ -473,6 +473,9 @@ public class SelectorTest extends TestCase {
         assertTrue("Created a valid selector", selector != null);
         boolean value = selector.matches(message);
         assertEquals("Selector for: " + text, expected, value);
+
+        BooleanExpression compiled = SelectorParser.compile(text);
+        assertEquals("Compiled selector for: " + text, expected, compiled.matches(message));
     }
 
     protected MockMessage createMessage(String subject) {
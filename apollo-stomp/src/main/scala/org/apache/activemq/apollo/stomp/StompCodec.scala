@@ -46,7 +46,7 @@ object StompCodec extends Log {
       rc.direct_buffer = frame.content.asInstanceOf[ZeroCopyContent].zero_copy_buffer
     }
 
-    def buffer_size = if (rc.direct_buffer!=null) { frame.size - (rc.direct_buffer.size - 1) } else { frame.size }
+    def buffer_size = if (rc.direct_buffer!=null) { frame.size - rc.direct_buffer.size } else { frame.size }
     val os = new ByteArrayOutputStream(buffer_size)
 
     frame.action.writeTo(os)
@@ -207,9 +207,15 @@ class StompCodec extends AbstractProtocolCodec {
       os.write(NEWLINE)
 
       frame.content match {
-//        case x:ZeroCopyContent=>
-//          assert(next_write_direct==null)
-//          next_write_direct = x.zero_copy_buffer
+        case x:ZeroCopyContent=>
+          // stream the body out of the temp file.  It still gets copied through
+          // the write buffer, a chunk at a time, since the codec only hands heap
+          // buffers to the transport.
+          os match {
+            case out:java.io.OutputStream => x.writeTo(out)
+            case _ => x.buffer.writeTo(os)
+          }
+          END_OF_FRAME_BUFFER.writeTo(os)
         case x:BufferContent=>
           x.content.writeTo(os)
           END_OF_FRAME_BUFFER.writeTo(os)
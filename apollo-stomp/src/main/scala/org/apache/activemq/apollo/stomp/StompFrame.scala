@@ -63,39 +63,44 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
   var message_group_buffer:AsciiBuffer = null
   override def message_group = if( message_group_buffer==null ) null else message_group_buffer.toString
 
-  for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-    header match {
-      case (MESSAGE_ID, value) =>
-        id = value
-      case (PRIORITY, value) =>
-        priority = java.lang.Integer.parseInt(value).toByte
-      case (EXPIRES, value) =>
-        expiration = java.lang.Long.parseLong(value)
-      case (PERSISTENT, value) =>
-        persistent = java.lang.Boolean.parseBoolean(value)
-      case (MESSAGE_GROUP, value) =>
-        message_group_buffer = value
-      case _ =>
+  {
+    val index = frame.header_index
+    id = index.get(MESSAGE_ID)
+    var value = index.get(PRIORITY)
+    if( value!=null ) {
+      priority = java.lang.Integer.parseInt(value).toByte
     }
+    value = index.get(EXPIRES)
+    if( value!=null ) {
+      expiration = java.lang.Long.parseLong(value)
+    }
+    value = index.get(PERSISTENT)
+    if( value!=null ) {
+      persistent = java.lang.Boolean.parseBoolean(value)
+    }
+    message_group_buffer = index.get(MESSAGE_GROUP)
   }
 
 
   def getBodyAs[T](toType : Class[T]) = {
+    def convert(content:Buffer) = {
+      if( toType == classOf[String] ) {
+        content.utf8
+      } else if (toType == classOf[Buffer]) {
+        content
+      } else if (toType == classOf[AsciiBuffer]) {
+        content.ascii
+      } else if (toType == classOf[UTF8Buffer]) {
+        content.utf8
+      } else {
+        null
+      }
+    }
     (frame.content match {
       case x:BufferContent =>
-        if( toType == classOf[String] ) {
-          x.content.utf8
-        } else if (toType == classOf[Buffer]) {
-          x.content
-        } else if (toType == classOf[AsciiBuffer]) {
-          x.content.ascii
-        } else if (toType == classOf[UTF8Buffer]) {
-          x.content.utf8
-        } else {
-          null
-        }
+        convert(x.content)
       case x:ZeroCopyContent =>
-        null
+        convert(x.buffer)
       case NilContent =>
         if( toType == classOf[String] ) {
           ""
@@ -111,47 +116,45 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
     }).asInstanceOf[T]
   }
 
+  override def encoded = frame.content match {
+    case x:ZeroCopyContent =>
+      // The message record does not hold the body in this case.
+      val record = codec.encode(this)
+      val rc = new ByteArrayOutputStream(record.buffer.length + x.length)
+      record.buffer.writeTo(rc)
+      x.writeTo(rc)
+      rc.toBuffer
+    case _ =>
+      super.encoded
+  }
+
   def getLocalConnectionId = {
     val pos = id.indexOf(':')
     assert(pos >0 )
     id.slice(id.offset, pos).toString
   }
 
-  /* avoid paying the price of creating the header index. lots of times we don't need it */
-  lazy val headerIndex: Map[AsciiBuffer, AsciiBuffer] =  {
-    var rc = Map[AsciiBuffer, AsciiBuffer]()
-    for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-      rc += (header._1 -> header._2)
-    }
-    rc
-  }
-
   def getProperty(name: String):AnyRef = {
-    (name match {
+    name match {
       // TODO: handle more of the JMS Types that ActiveMQ 5 supports.
       case "JMSMessageID" =>
-        Some(id)
+        if( id==null ) null else id.utf8.toString
       case "JMSType" =>
-        headerIndex.get(ascii("type"))
+        frame.header_index.get_string("type")
       case "JMSDeliveryMode" =>
-        Some(ascii(
-          if( persistent )
-            "PERSISTENT"
-          else
-            "NON_PERSISTENT"
-        ))
+        if( persistent )
+          "PERSISTENT"
+        else
+          "NON_PERSISTENT"
       case _=>
-        headerIndex.get(ascii(name))
-    }) match {
-      case Some(rc) => rc.utf8.toString
-      case None => null
+        frame.header_index.get_string(name)
     }
   }
 
 
   override def headers_as_json: java.util.HashMap[String, Object] = {
     val rc = new java.util.HashMap[String, Object]
-    for( (k,v)<-headerIndex ) {
+    frame.header_index.foreach { (k,v)=>
       rc.put(k.toString, v.toString)
     }
     rc
@@ -211,21 +214,12 @@ case class BufferContent(content:Buffer) extends StompContent {
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 case class ZeroCopyContent(zero_copy_buffer:DirectBuffer) extends StompContent {
-  def length = zero_copy_buffer.size-1
-
-  def writeTo(os:OutputStream) = {
-    val buff = new Array[Byte](1024*4)
-    var remaining = zero_copy_buffer.size-1
-    while( remaining> 0 ) {
-      val c = remaining.min(buff.length)
-      zero_copy_buffer.read(os)
-      os.write(buff, 0, c)
-      remaining -= c
-    }
-  }
+  def length = zero_copy_buffer.size
+
+  def writeTo(os:OutputStream) = zero_copy_buffer.read(os)
 
   def buffer:Buffer = {
-    val rc = new DataByteArrayOutputStream(zero_copy_buffer.size-1)
+    val rc = new DataByteArrayOutputStream(zero_copy_buffer.size)
     writeTo(rc)
     rc.toBuffer
   }
@@ -295,11 +289,10 @@ case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompCo
     size_of_original_headers + 1 + content.length
   }
 
-  def header(name:AsciiBuffer) = {
-    updated_headers.filter( _._1 == name ).headOption.orElse(
-      headers.filter( _._1 == name ).headOption
-    ).map(_._2).getOrElse(null)
-  }
+  /* avoid paying the price of creating the header index. lots of times we don't need it */
+  lazy val header_index = new HeaderIndex(updated_headers, headers)
+
+  def header(name:AsciiBuffer) = header_index.get(name)
 
   def append_headers(value:HeaderMap) = StompFrame(action, headers, content, contiguous, value ::: updated_headers)
 
@@ -307,6 +300,141 @@ case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompCo
   def release = content.release
 }
 
+object HeaderIndex {
+
+  def hash(name:Buffer) = {
+    var rc = 0
+    var i = name.offset
+    val end = name.offset + name.length
+    while( i < end ) {
+      rc = 31*rc + name.data(i)
+      i += 1
+    }
+    rc
+  }
+
+  // Hashes the string the same way as it's ascii encoding.
+  def hash(name:String) = {
+    var rc = 0
+    var i = 0
+    while( i < name.length ) {
+      rc = 31*rc + name.charAt(i).toByte
+      i += 1
+    }
+    rc
+  }
+
+  def matches(name:Buffer, value:String):Boolean = {
+    if( name.length != value.length ) {
+      return false
+    }
+    var i = 0
+    while( i < value.length ) {
+      if( name.data(name.offset+i) != value.charAt(i).toByte ) {
+        return false
+      }
+      i += 1
+    }
+    true
+  }
+}
+
+/**
+ * An open addressed hash index of the headers of a frame so that headers
+ * can be looked up in constant time.  The names and values are left as slices
+ * of the frame's buffer and values are only decoded to strings when they
+ * are looked up by name.  Like a scan of the headers, the first occurrence of
+ * a header wins.
+ */
+class HeaderIndex(header_lists:HeaderMap*) {
+  import HeaderIndex._
+
+  private val mask = {
+    var count = 0
+    header_lists.foreach(count += _.size)
+    var capacity = 8
+    while( capacity < count*2 ) {
+      capacity <<= 1
+    }
+    capacity-1
+  }
+  private val names = new Array[AsciiBuffer](mask+1)
+  private val values = new Array[AsciiBuffer](mask+1)
+  private var strings:Array[String] = null
+
+  for( headers <- header_lists ) {
+    val i = headers.iterator
+    while( i.hasNext ) {
+      val (name, value) = i.next
+      var pos = hash(name) & mask
+      while( names(pos)!=null && names(pos)!=name ) {
+        pos = (pos+1) & mask
+      }
+      if( names(pos)==null ) {
+        names(pos) = name
+        values(pos) = value
+      }
+    }
+  }
+
+  private def slot(name:AsciiBuffer):Int = {
+    var pos = hash(name) & mask
+    while( names(pos)!=null ) {
+      if( names(pos) == name ) {
+        return pos
+      }
+      pos = (pos+1) & mask
+    }
+    -1
+  }
+
+  private def slot(name:String):Int = {
+    var pos = hash(name) & mask
+    while( names(pos)!=null ) {
+      if( matches(names(pos), name) ) {
+        return pos
+      }
+      pos = (pos+1) & mask
+    }
+    -1
+  }
+
+  def get(name:AsciiBuffer):AsciiBuffer = {
+    val pos = slot(name)
+    if( pos < 0 ) null else values(pos)
+  }
+
+  /**
+   * @return the utf8 decoded value of the header, or null if it is not set.
+   */
+  def get_string(name:String):String = {
+    val pos = slot(name)
+    if( pos < 0 ) {
+      null
+    } else {
+      if( strings==null ) {
+        strings = new Array[String](mask+1)
+      }
+      var rc = strings(pos)
+      if( rc==null ) {
+        rc = values(pos).utf8.toString
+        strings(pos) = rc
+      }
+      rc
+    }
+  }
+
+  def foreach(func:(AsciiBuffer, AsciiBuffer)=>Unit) = {
+    var pos = 0
+    while( pos <= mask ) {
+      if( names(pos)!=null ) {
+        func(names(pos), values(pos))
+      }
+      pos += 1
+    }
+  }
+}
+
 object Stomp {
 
   val PROTOCOL = "stomp"
@@ -420,6 +548,9 @@ object Stomp {
   val ACCEPT_VERSION = ascii("accept-version")
   val HOST = ascii("host")
   val HEART_BEAT = ascii("heart-beat")
+  val CLIENT_TYPE = ascii("client-type")
+  val APOLLO_BRIDGE = ascii("apollo-bridge")
+  val BRIDGE_MESSAGE_ID = ascii("bridge-message-id")
 
   val MESSAGE_HEADER = ascii("message")
   val VERSION = ascii("version")
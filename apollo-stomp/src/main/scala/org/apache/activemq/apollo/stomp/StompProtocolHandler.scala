@@ -88,6 +88,10 @@ object StompProtocolHandler extends Log {
     None
   }
 
+  def get(frame:StompFrame, name:AsciiBuffer):Option[AsciiBuffer] = {
+    Option(frame.header(name))
+  }
+
   def get(headers:HeaderMap, names:List[AsciiBuffer]):List[Option[AsciiBuffer]] = {
     names.map(x=>get(headers, x))
   }
@@ -117,6 +121,25 @@ object StompProtocolHandler extends Log {
     new String(rc.toByteArray, "UTF-8")
   }
 
+  /**
+   * Converts a message of another protocol into a MESSAGE frame.  The frame is
+   * cached on the message and shared by all the stomp consumers which use
+   * the same conversion, protocol version and destination.
+   */
+  def converted_frame(message:Message, protocol_convert:String, destination:String, protocol_version:AsciiBuffer):StompFrame = {
+    message.encoding((StompMessageCodec, protocol_convert, protocol_version, destination)) {
+      val (body, content_type) =  protocol_convert match{
+        case "body" => (message.getBodyAs(classOf[Buffer]), "protocol/"+message.codec.id+";conv=body")
+        case _ => (message.encoded, "protocol/"+message.codec.id())
+      }
+      var headers:HeaderMap = Nil
+      headers ::= (CONTENT_TYPE -> ascii(content_type))
+      headers ::= (CONTENT_LENGTH -> ascii(body.length().toString))
+      headers ::= (DESTINATION -> encode_header(destination, protocol_version))
+      StompFrame(MESSAGE, headers, BufferContent(body))
+    }
+  }
+
   def encode_header(value:String, protocol_version:AsciiBuffer=V1_1):AsciiBuffer = {
     protocol_version match {
       case null => utf8(value).ascii
@@ -484,7 +507,7 @@ class StompProtocolHandler extends ProtocolHandler {
     }
 
     val consumer_sink = sink_manager.open()
-    val credit_window_filter = new CreditWindowFilter[(Session[Delivery], Delivery)](consumer_sink.flatMap { event =>
+    val to_frame = (event:(Session[Delivery], Delivery)) => {
       val (session, delivery) = event
 
       // perhaps it has expired.. no need to deliver.
@@ -499,16 +522,12 @@ class StompProtocolHandler extends ProtocolHandler {
         var frame = if( message.codec eq StompMessageCodec ) {
           message.asInstanceOf[StompFrameMessage].frame
         } else {
-          val (body, content_type) =  protocol_convert match{
-            case "body" => (message.getBodyAs(classOf[Buffer]), "protocol/"+message.codec.id+";conv=body")
-            case _ => (message.encoded, "protocol/"+message.codec.id())
-          }
+          // The converted frame is shared by all the stomp consumers the message
+          // is fanned out to, only the message id is added per consumer.
+          val destination = destination_parser.encode_destination(delivery.sender.tail)
+          val converted = converted_frame(message, protocol_convert, destination, protocol_version)
           message_id_counter += 1
-          var headers =  (MESSAGE_ID -> ascii(session_id.get+message_id_counter)) :: Nil
-          headers ::= (CONTENT_TYPE -> ascii(content_type))
-          headers ::= (CONTENT_LENGTH -> ascii(body.length().toString))
-          headers ::= (DESTINATION -> encode_header(destination_parser.encode_destination(delivery.sender.tail)))
-          StompFrame(MESSAGE, headers, BufferContent(body))
+          converted.append_headers((MESSAGE_ID -> ascii(session_id.get+"-"+message_id_counter))::Nil)
         }
 
         val ack_id = if( (protocol_version eq V1_0) || (protocol_version eq V1_1) ) {
@@ -537,7 +556,28 @@ class StompProtocolHandler extends ProtocolHandler {
         Some(frame)
       }
 
-    }, SessionDeliverySizer)
+    }
+
+    val frame_sink = new Sink[(Session[Delivery], Delivery)] with SinkFilter[StompFrame] {
+      def downstream = consumer_sink
+      def offer(event:(Session[Delivery], Delivery)) = {
+        if( full ) {
+          false
+        } else {
+          for( frame <- to_frame(event) ) {
+            downstream.offer(frame)
+            // the transport stage ends once the transport has taken the frame.
+            val trace = event._2.trace
+            if( trace!=null ) {
+              trace.written
+            }
+          }
+          true
+        }
+      }
+    }
+
+    val credit_window_filter = new CreditWindowFilter[(Session[Delivery], Delivery)](frame_sink, SessionDeliverySizer)
 
     def supply_initial_credit = {
       credit_window_filter.credit(initial_credit_window.count, initial_credit_window.size)
@@ -1002,6 +1042,10 @@ class StompProtocolHandler extends ProtocolHandler {
     security_context.password = get(headers, PASSCODE).map(decode_header _).getOrElse(null)
     security_context.connector_id = connection.connector.id
 
+    // The network bridges re-send the messages they were not able to ack
+    // on the source broker, so drop the ones we have already received.
+    detect_duplicates = get(headers, CLIENT_TYPE) == Some(APOLLO_BRIDGE)
+
     val accept_versions = get(headers, ACCEPT_VERSION).getOrElse(V1_0).split(COMMA).map(_.ascii)
     protocol_version = SUPPORTED_PROTOCOL_VERSIONS.find( v=> accept_versions.contains(v) ) match {
       case Some(x) => x
@@ -1122,19 +1166,20 @@ class StompProtocolHandler extends ProtocolHandler {
   def on_stomp_send(frame:StompFrame) = {
     messages_received += 1
 
-    get(frame.headers, DESTINATION) match {
+    get(frame, DESTINATION) match {
       case None=>
         frame.release
         die("destination not set.")
 
       case Some(dest)=>
 
-        get(frame.headers, TRANSACTION) match {
+        get(frame, TRANSACTION) match {
           case None=>
-            perform_send(frame)
+            // only read the clock if the message gets sampled.
+            perform_send(frame, trace=host.sample_latency(System.nanoTime))
           case Some(txid)=>
             get_or_create_tx_queue(txid).add { uow=>
-              perform_send(frame, uow)
+              perform_send(frame, uow, host.sample_latency())
             }
         }
 
@@ -1162,6 +1207,27 @@ class StompProtocolHandler extends ProtocolHandler {
     override def dispatch_queue = queue
     var suspended = false
 
+    // send_via_route creates a new delivery for every message it offers.
+    override protected def owns_offered_deliveries = true
+
+    // on_stomp_send already picked the latency samples.
+    override protected def samples_latency = false
+
+    override protected def duplicate_detection_id(delivery: Delivery) = {
+      if( detect_duplicates ) {
+        delivery.message match {
+          // The bridges stamp an id which is unique across brokers, the
+          // message ids are only unique if the producers made them so.
+          case message:StompFrameMessage => message.frame.header(BRIDGE_MESSAGE_ID)
+          case _ => null
+        }
+      } else {
+        null
+      }
+    }
+
+    override protected def duplicate_detection_scope = dest
+
     refiller = ^ {
       if( suspended ) {
         resume_read
@@ -1236,8 +1302,8 @@ class StompProtocolHandler extends ProtocolHandler {
     }
   }
 
-  def perform_send(frame:StompFrame, uow:StoreUOW=null): Unit = {
-    val dest = get(frame.headers, DESTINATION).get
+  def perform_send(frame:StompFrame, uow:StoreUOW=null, trace:LatencyTrace=null): Unit = {
+    val dest = get(frame, DESTINATION).get
     producer_routes.get(dest) match {
       case null =>
         // Deep copy to avoid holding onto a 64k buffer
@@ -1259,7 +1325,7 @@ class StompProtocolHandler extends ProtocolHandler {
                   resume_read
                   producer_routes.put(trimmed_dest, route)
                   schedule_maintenance
-                  send_via_route(route.addresses, route, frame, uow)
+                  send_via_route(route.addresses, route, frame, uow, trace)
                 }
             }
             if( uow !=null ) {
@@ -1270,12 +1336,13 @@ class StompProtocolHandler extends ProtocolHandler {
 
       case route =>
         // we can re-use the existing producer route
-        send_via_route(route.addresses, route, frame, uow)
+        send_via_route(route.addresses, route, frame, uow, trace)
 
     }
   }
 
   var message_id_counter = 0L
+  var detect_duplicates = false
 
   def encode_address(value: Array[_ <: DestinationAddress]): String = {
     destination_parser.encode_destination(value)
@@ -1307,14 +1374,14 @@ class StompProtocolHandler extends ProtocolHandler {
 //    }
   }
 
-  def updated_headers(addresses: Array[SimpleAddress], headers:HeaderMap) = {
+  def updated_headers(addresses: Array[SimpleAddress], frame:StompFrame) = {
     var rc:HeaderMap=Nil
 
     // Do we need to re-write the destination names?
     if( addresses.find(_.id.startsWith("temp.")).isDefined ) {
       rc ::= (DESTINATION -> encode_header(encode_address(addresses)))
     }
-    get(headers, REPLY_TO).foreach { value=>
+    get(frame, REPLY_TO).foreach { value=>
       // we may need to translate local temp destination names to broker destination names
       if( value.indexOf(TEMP_QUEUE)>=0 || value.indexOf(TEMP_TOPIC)>=0 ) {
         try {
@@ -1329,9 +1396,9 @@ class StompProtocolHandler extends ProtocolHandler {
     }
 
     // Do we need to add the message id?
-    if( get( headers, MESSAGE_ID) == None ) {
+    if( frame.header(MESSAGE_ID) == null ) {
       message_id_counter += 1
-      rc ::= (MESSAGE_ID -> ascii(session_id.get+message_id_counter))
+      rc ::= (MESSAGE_ID -> ascii(session_id.get+"-"+message_id_counter))
     }
 
     if( config.add_timestamp_header!=null ) {
@@ -1368,7 +1435,23 @@ class StompProtocolHandler extends ProtocolHandler {
     rc
   }
 
-  def send_via_route(addresses: Array[SimpleAddress], route:StompProducerRoute, frame:StompFrame, uow:StoreUOW) = {
+  /**
+   * Moves large message bodies into the virtual host's temp files so
+   * that they don't take up space on the heap while they are queued.
+   */
+  def bypass_heap(content:StompContent):StompContent = content match {
+    case x:BufferContent if host.direct_buffer_allocator!=null && x.length >= host.heap_bypass =>
+      val rc = host.direct_buffer_allocator.alloc(x.length)
+      val source = x.content.toByteBuffer
+      var pos = 0
+      while( source.hasRemaining ) {
+        pos += rc.write(source, pos)
+      }
+      ZeroCopyContent(rc)
+    case x => x
+  }
+
+  def send_via_route(addresses: Array[SimpleAddress], route:StompProducerRoute, frame:StompFrame, uow:StoreUOW, trace:LatencyTrace=null) = {
     var storeBatch:StoreUOW=null
 
     // User might be asking for ack that we have processed the message..
@@ -1376,12 +1459,14 @@ class StompProtocolHandler extends ProtocolHandler {
 
     if( !route.targets.isEmpty ) {
 
+      val content = bypass_heap(frame.content)
+
       // We may need to add some headers..
-      var message = updated_headers(addresses, frame.headers) match {
+      var message = updated_headers(addresses, frame) match {
         case Nil=>
-          StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous))
+          StompFrameMessage(StompFrame(MESSAGE, frame.headers, content, frame.contiguous))
         case updated_headers =>
-          StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous, updated_headers))
+          StompFrameMessage(StompFrame(MESSAGE, frame.headers, content, frame.contiguous, updated_headers))
       }
 
       val delivery = new Delivery
@@ -1390,7 +1475,8 @@ class StompProtocolHandler extends ProtocolHandler {
       delivery.persistent = message.persistent
       delivery.size = message.frame.size
       delivery.uow = uow
-      get(frame.headers, RETAIN).foreach { retain =>
+      delivery.trace = trace
+      get(frame, RETAIN).foreach { retain =>
         delivery.retain = retain match {
           case SET => RetainSet
           case REMOVE => RetainRemove
@@ -1410,6 +1496,10 @@ class StompProtocolHandler extends ProtocolHandler {
       // routes can always accept at least 1 delivery...
       assert( !route.full )
       route.offer(delivery)
+      if( content ne frame.content ) {
+        // the routed deliveries hold their own references to it.
+        content.release
+      }
       if( route.full ) {
         // but once it gets full.. suspend, so that we get more stomp messages
         // until it's not full anymore.
@@ -1489,7 +1579,7 @@ class StompProtocolHandler extends ProtocolHandler {
       case Some(x)=>
         try {
           val s = "convert_string_expressions:hyphenated_props:"+decode_header(x)
-          (s, SelectorParser.parse(s))
+          (s, SelectorParser.compile(s))
         } catch {
           case e:FilterException =>
             die("Invalid selector expression: "+e.getMessage)
@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+/**
+ * Checks that the messages re-sent by network bridges get dropped.
+ */
+class StompDuplicateDetectionTest extends StompTestSupport {
+
+  def bridge_headers(id:String) = "message-id:ID:1\nbridge-message-id:"+id+"\n"
+
+  test("Messages re-sent by a bridge are dropped") {
+    connect("1.1", headers="client-type:apollo-bridge\n")
+    sync_send("/queue/dup.resent", "1", bridge_headers("3:a:b5:/q/a0:1"))
+    sync_send("/queue/dup.resent", "1 again", bridge_headers("3:a:b5:/q/a0:1"))
+    // same message id but it came from another source.
+    sync_send("/queue/dup.resent", "2", bridge_headers("3:a:c5:/q/a0:1"))
+    // same bridge id sent to another destination.
+    sync_send("/queue/dup.other", "3", bridge_headers("3:a:b5:/q/a0:1"))
+    sync_send("/queue/dup.resent", "END")
+
+    subscribe("0", "/queue/dup.resent")
+    assert_received("1")
+    assert_received("2")
+    assert_received("END")
+    subscribe("1", "/queue/dup.other")
+    assert_received("3")
+  }
+
+  test("Messages sent by other clients are not checked for duplicates") {
+    connect("1.1")
+    sync_send("/queue/dup.client", "1", bridge_headers("3:a:b5:/q/a0:1"))
+    sync_send("/queue/dup.client", "2", bridge_headers("3:a:b5:/q/a0:1"))
+    subscribe("0", "/queue/dup.client")
+    assert_received("1")
+    assert_received("2")
+  }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import java.util.concurrent.TimeUnit._
+
+/**
+ * Checks that queued messages expire once they are swapped out to the
+ * store and when the broker gets restarted before they expire.
+ */
+class StompExpirationTest extends StompTestSupport {
+
+  override def broker_config_uri: String = "xml:classpath:apollo-stomp-leveldb.xml"
+
+  def send(dest:String, expiring:Int, lasting:Int, ttl:Long) = {
+    val exp = System.currentTimeMillis() + ttl
+    for( i <- 1 to expiring ) {
+      async_send(dest, "expiring-"+i, "persistent:true\nexpires:"+exp+"\n")
+    }
+    for( i <- 1 to lasting ) {
+      async_send(dest, "lasting-"+i, "persistent:true\n")
+    }
+    sync_send(dest, "END", "persistent:true\n")
+  }
+
+  def receive_lasting(dest:String, lasting:Int) = {
+    subscribe("0", dest)
+    for( i <- 1 to lasting ) {
+      assert_received("lasting-"+i)
+    }
+    assert_received("END")
+  }
+
+  test("swapped out messages expire") {
+    connect("1.1")
+    send("/queue/expiration.swapped", 200, 10, 3000)
+
+    // Without consumers the messages get swapped out.
+    within(5, SECONDS) {
+      val stat = queue_status("expiration.swapped").metrics
+      stat.queue_items should be (211L)
+      stat.swapped_in_items should be (0L)
+    }
+
+    within(10, SECONDS) {
+      val stat = queue_status("expiration.swapped").metrics
+      stat.expired_item_counter should be (200L)
+      stat.queue_items should be (11L)
+    }
+    receive_lasting("/queue/expiration.swapped", 10)
+  }
+
+  test("messages expire after a restart") {
+    connect("1.1")
+    send("/queue/expiration.restart", 200, 10, 3000)
+
+    restart_broker
+
+    connect("1.1")
+    within(10, SECONDS) {
+      val stat = queue_status("expiration.restart").metrics
+      stat.expired_item_counter should be (200L)
+      stat.queue_items should be (11L)
+    }
+    receive_lasting("/queue/expiration.restart", 10)
+  }
+
+  test("messages which expire while the broker is down are not delivered") {
+    connect("1.1")
+    send("/queue/expiration.down", 20, 5, 500)
+
+    Thread.sleep(1000)
+    restart_broker
+
+    connect("1.1")
+    receive_lasting("/queue/expiration.down", 5)
+  }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+package org.apache.activemq.apollo.stomp.test
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.stomp.{HeaderIndex, StompFrame}
+import org.apache.activemq.apollo.stomp.Stomp._
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.AsciiBuffer
+import org.fusesource.hawtbuf.Buffer._
+import collection.mutable.ListBuffer
+
+class StompHeaderIndexTest extends FunSuiteSupport with ShouldMatchers {
+
+  def headers(entries:(String, String)*):HeaderMap = entries.toList.map { case (k, v) => (ascii(k), ascii(v)) }
+
+  def visited(index:HeaderIndex) = {
+    val rc = ListBuffer[(String, String)]()
+    index.foreach { (k, v) => rc += ((k.toString, v.toString)) }
+    rc.toList
+  }
+
+  test("present and absent headers") {
+    val index = new HeaderIndex(headers("destination"->"/queue/a", "content-type"->"text/plain"))
+    index.get(ascii("destination")) should be (ascii("/queue/a"))
+    index.get_string("content-type") should be ("text/plain")
+    index.get(ascii("receipt")) should be (null)
+    index.get_string("receipt") should be (null)
+    // a prefix of a header name is not a match.
+    index.get_string("content") should be (null)
+  }
+
+  test("get_string decodes utf-8 values") {
+    val index = new HeaderIndex(List((ascii("name"), new AsciiBuffer(utf8("café")))))
+    index.get_string("name") should be ("café")
+    index.get_string("name") should be theSameInstanceAs (index.get_string("name"))
+  }
+
+  test("the first occurrence of a duplicate header wins") {
+    val index = new HeaderIndex(headers("id"->"1", "id"->"2"))
+    index.get(ascii("id")) should be (ascii("1"))
+    index.get_string("id") should be ("1")
+    visited(index) should be (List("id"->"1"))
+  }
+
+  test("updated headers take precedence over the original headers") {
+    val frame = StompFrame(MESSAGE, headers("subscription"->"0", "id"->"1"), updated_headers=headers("subscription"->"1"))
+    frame.header(ascii("subscription")) should be (ascii("1"))
+    frame.header_index.get_string("subscription") should be ("1")
+    frame.header(ascii("id")) should be (ascii("1"))
+  }
+
+  test("colliding hashes are told apart") {
+    HeaderIndex.hash("Aa") should be (HeaderIndex.hash("BB"))
+    HeaderIndex.hash(ascii("Aa")) should be (HeaderIndex.hash("Aa"))
+    val index = new HeaderIndex(headers("Aa"->"1", "BB"->"2"))
+    index.get(ascii("Aa")) should be (ascii("1"))
+    index.get(ascii("BB")) should be (ascii("2"))
+    index.get_string("BB") should be ("2")
+    index.get_string("CC") should be (null)
+  }
+
+  test("probing wraps around the end of the table") {
+    // 'g', 'o' and 'w' all hash to the last slot of the 8 slot table
+    // so 'o' and 'w' wrap around to the first slots, where "Aa" and "BB"
+    // also start probing from.
+    val index = new HeaderIndex(headers("g"->"1", "o"->"2", "w"->"3"), headers("Aa"->"4"))
+    index.get_string("g") should be ("1")
+    index.get_string("o") should be ("2")
+    index.get_string("w") should be ("3")
+    index.get_string("Aa") should be ("4")
+    index.get(ascii("w")) should be (ascii("3"))
+    index.get(ascii("BB")) should be (null)
+    index.get_string("_") should be (null)
+  }
+
+  test("foreach visits each header once in table order") {
+    val index = new HeaderIndex(headers("g"->"5"), headers("g"->"1", "o"->"2", "w"->"3"))
+    // 'g' is in the last slot, 'o' and 'w' wrapped around to slots 0 and 1.
+    visited(index) should be (List("o"->"2", "w"->"3", "g"->"5"))
+  }
+
+  test("an empty frame has no headers") {
+    val frame = StompFrame(SEND)
+    frame.header(ascii("destination")) should be (null)
+    frame.header_index.get_string("destination") should be (null)
+    visited(frame.header_index) should be (Nil)
+  }
+
+}
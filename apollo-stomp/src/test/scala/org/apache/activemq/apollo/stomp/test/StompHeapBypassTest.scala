@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+/**
+ * Checks that message bodies kept in the virtual host's temp files when
+ * heap_bypass is enabled make it to the consumers and the store intact.
+ */
+class StompHeapBypassTest extends StompTestSupport {
+
+  override def broker_config_uri = "xml:classpath:apollo-stomp-heap-bypass.xml"
+
+  // Larger than the 4k chunks the bodies are copied in and not a multiple of them.
+  def body(i:Int) = (i+":") + ("x" * (4096 * 2 + 123))
+
+  test("Large bodies sent on a new destination are delivered intact") {
+    connect("1.1")
+    // The route is not connected yet when the first message is offered.
+    async_send("/queue/bypass.new", body(0))
+    sync_send("/queue/bypass.new", body(1))
+    subscribe("0", "/queue/bypass.new")
+    assert_received(body(0))
+    assert_received(body(1))
+  }
+
+  test("Large bodies fanned out to topic subscribers are delivered intact") {
+    val consumer = new StompClient
+    connect("1.1", consumer)
+    subscribe("0", "/topic/bypass.fanout", c=consumer)
+    connect("1.1")
+    subscribe("0", "/topic/bypass.fanout")
+    for( i <- 0 until 3 ) {
+      async_send("/topic/bypass.fanout", body(i))
+    }
+    for( i <- 0 until 3 ) {
+      assert_received(body(i))
+      assert_received(body(i), c=consumer)
+    }
+    close(consumer)
+  }
+
+  test("Large persistent bodies load back from the store intact") {
+    connect("1.1")
+    // the small tail buffer gets most of these swapped out to the store.
+    for( i <- 0 until 20 ) {
+      async_send("/queue/swapped.bypass", body(i), "persistent:true\n")
+    }
+    sync_send("/queue/swapped.bypass", "END", "persistent:true\n")
+    subscribe("0", "/queue/swapped.bypass")
+    for( i <- 0 until 20 ) {
+      assert_received(body(i))
+    }
+    assert_received("END")
+  }
+
+}
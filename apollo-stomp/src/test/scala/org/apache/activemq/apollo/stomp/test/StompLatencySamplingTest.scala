@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+package org.apache.activemq.apollo.stomp.test
+
+import java.util.concurrent.TimeUnit._
+
+/**
+ * Checks the stage latencies queues report for the messages the
+ * virtual host picks as latency samples.
+ */
+class StompLatencySamplingTest extends StompTestSupport {
+
+  def sampling(value:Int)(func: =>Unit) = {
+    val host = broker.default_virtual_host
+    host.latency_sampling = value
+    try {
+      func
+    } finally {
+      host.latency_sampling = 0
+    }
+  }
+
+  test("Nothing is recorded when sampling is disabled") {
+    connect("1.1")
+    sync_send("/queue/latency.off", "1")
+    subscribe("0", "/queue/latency.off")
+    assert_received("1")
+
+    val metrics = queue_status("latency.off").metrics
+    metrics.dequeue_item_counter should be (1)
+    metrics.route_latency should be (null)
+    metrics.enqueue_latency should be (null)
+    metrics.subscription_latency should be (null)
+    metrics.transport_latency should be (null)
+  }
+
+  test("Each stage of the sampled messages is recorded") {
+    sampling(1) {
+      connect("1.1")
+      sync_send("/queue/latency.on", "1")
+      sync_send("/queue/latency.on", "2")
+      subscribe("0", "/queue/latency.on")
+      assert_received("1")
+      assert_received("2")
+
+      within(5, SECONDS) {
+        val metrics = queue_status("latency.on").metrics
+        metrics.route_latency.count should be (2)
+        metrics.enqueue_latency.count should be (2)
+        metrics.subscription_latency.count should be (2)
+        metrics.transport_latency.count should be (2)
+      }
+    }
+  }
+
+  test("Only 1 out of latency_sampling messages is recorded") {
+    sampling(3) {
+      connect("1.1")
+      for( i <- 1 to 6 ) {
+        sync_send("/queue/latency.some", i)
+      }
+      subscribe("0", "/queue/latency.some")
+      for( i <- 1 to 6 ) {
+        assert_received(i)
+      }
+
+      within(5, SECONDS) {
+        val metrics = queue_status("latency.some").metrics
+        metrics.enqueue_latency.count should be (2)
+        metrics.transport_latency.count should be (2)
+      }
+    }
+  }
+
+}
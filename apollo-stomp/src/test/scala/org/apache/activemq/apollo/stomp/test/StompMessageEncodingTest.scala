@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.broker.Message
+import org.apache.activemq.apollo.broker.protocol.RawMessage
+import org.apache.activemq.apollo.stomp.StompProtocolHandler._
+import org.apache.activemq.apollo.stomp.Stomp._
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.Buffer._
+
+/**
+ * Checks the MESSAGE frames converted from other protocols are shared
+ * by the consumers which can use the same frame.
+ */
+class StompMessageEncodingTest extends FunSuiteSupport with ShouldMatchers {
+
+  def message = RawMessage(ascii("hello").buffer)
+
+  test("repeat deliveries use the cached frame") {
+    val m = message
+    val frame = converted_frame(m, "full", "/topic/a", V1_1)
+    converted_frame(m, "full", "/topic/a", V1_1) should be theSameInstanceAs (frame)
+    frame.header(DESTINATION) should be (ascii("/topic/a"))
+    frame.header(CONTENT_TYPE) should be (ascii("protocol/raw"))
+  }
+
+  test("each protocol version gets it's own frame") {
+    val m = message
+    val v10 = converted_frame(m, "full", "/topic/a:b", V1_0)
+    val v11 = converted_frame(m, "full", "/topic/a:b", V1_1)
+    val v12 = converted_frame(m, "full", "/topic/a:b", V1_2)
+    v10 should not be theSameInstanceAs (v11)
+    v11 should not be theSameInstanceAs (v12)
+    v10.header(DESTINATION) should be (ascii("/topic/a:b"))
+    v11.header(DESTINATION) should be (ascii("/topic/a\\cb"))
+    v12.header(DESTINATION) should be (ascii("/topic/a\\cb"))
+    converted_frame(m, "full", "/topic/a:b", V1_0) should be theSameInstanceAs (v10)
+  }
+
+  test("each destination and conversion gets it's own frame") {
+    val m = message
+    val a = converted_frame(m, "full", "/topic/a", V1_1)
+    val b = converted_frame(m, "full", "/topic/b", V1_1)
+    val body = converted_frame(m, "body", "/topic/a", V1_1)
+    a should not be theSameInstanceAs (b)
+    a should not be theSameInstanceAs (body)
+    b.header(DESTINATION) should be (ascii("/topic/b"))
+    body.header(CONTENT_TYPE) should be (ascii("protocol/raw;conv=body"))
+  }
+
+  test("the number of cached frames is bounded") {
+    val m = message
+    val frames = (0 until Message.MAX_ENCODINGS).map(i => converted_frame(m, "full", "/topic/"+i, V1_1))
+    val extra = converted_frame(m, "full", "/topic/extra", V1_1)
+    converted_frame(m, "full", "/topic/extra", V1_1) should not be theSameInstanceAs (extra)
+    converted_frame(m, "full", "/topic/extra", V1_1).header(DESTINATION) should be (ascii("/topic/extra"))
+    converted_frame(m, "full", "/topic/0", V1_1) should be theSameInstanceAs (frames(0))
+  }
+
+}
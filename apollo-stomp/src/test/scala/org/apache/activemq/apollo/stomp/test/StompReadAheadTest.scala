@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+package org.apache.activemq.apollo.stomp.test
+
+import java.util.concurrent.TimeUnit._
+import collection.JavaConversions._
+
+/**
+ * Checks how far ahead of a consumer's position the messages of a
+ * swapped out queue get loaded.
+ */
+class StompReadAheadTest extends StompTestSupport {
+
+  override def broker_config_uri = "xml:classpath:apollo-stomp-read-ahead.xml"
+
+  // The consumer buffer_size of the stomp connector.
+  val consumer_buffer = 8 * 1024
+
+  def body(i:Int) = (i+":") + ("x" * 1000)
+
+  test("A slow consumer prefetches up to its receive buffer and no further") {
+    connect("1.1")
+    for( i <- 0 until 40 ) {
+      async_send("/queue/swapped.read-ahead", body(i), "persistent:true\n")
+    }
+    sync_send("/queue/swapped.read-ahead", "END", "persistent:true\n")
+
+    // only take 1 message at a time and never ack it.
+    subscribe("0", "/queue/swapped.read-ahead", "client", headers="credit:1,0\n")
+    assert_received(body(0))
+
+    def prefetched = queue_status("swapped.read-ahead", true).entries.filter(_.is_prefetched)
+
+    within(5, SECONDS) {
+      prefetched should not be ('empty)
+    }
+    // let a few more queue maintenance passes go by.
+    Thread.sleep(2000)
+
+    val entries = queue_status("swapped.read-ahead", true).entries
+    val max_entry_size = entries.map(_.size).max
+    val prefetched_size = prefetched.map(_.size.toLong).sum
+    prefetched_size should be > (0L)
+    prefetched_size should be <= (consumer_buffer + max_entry_size.toLong)
+    // the messages past the receive buffer stay swapped out.
+    entries.filter(_.state.startsWith("swapped")).map(_.count).sum should be > (0)
+  }
+
+}
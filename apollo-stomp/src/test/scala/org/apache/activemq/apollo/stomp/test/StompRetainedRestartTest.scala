@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import org.apache.activemq.apollo.broker._
+
+/**
+ * Checks that the retained messages of topics survive broker restarts.
+ */
+class StompRetainedRestartTest extends StompTestSupport {
+
+  override def broker_config_uri: String = "xml:classpath:apollo-stomp-leveldb.xml"
+
+  def retained(id:String) = {
+    val router = broker.default_virtual_host.router.asInstanceOf[LocalRouter]
+    val done = new CountDownLatch(1)
+    var rc:Option[Delivery] = None
+    router.retained_messages.load(id) { value =>
+      rc = value
+      done.countDown()
+    }
+    done.await(5, TimeUnit.SECONDS) should be (true)
+    rc
+  }
+
+  test("retained messages survive a restart") {
+    connect("1.1")
+    async_send("/topic/retained-restart", 1)
+    sync_send("/topic/retained-restart", 2, "retain:set\npersistent:true\n")
+
+    restart_broker
+
+    connect("1.1")
+    subscribe("0", "/topic/retained-restart")
+    assert_received(2)
+    async_send("/topic/retained-restart", 3)
+    assert_received(3)
+    retained("retained-restart").map(_.persistent) should be (Some(true))
+  }
+
+  test("retained messages keep being non persistent across a restart") {
+    connect("1.1")
+    sync_send("/topic/retained-restart-non", 1, "retain:set\n")
+
+    restart_broker
+
+    connect("1.1")
+    subscribe("0", "/topic/retained-restart-non")
+    assert_received(1)
+    retained("retained-restart-non").map(_.persistent) should be (Some(false))
+  }
+
+  test("removed retained messages stay removed after a restart") {
+    connect("1.1")
+    async_send("/topic/retained-restart-removed", 1, "retain:set\n")
+    sync_send("/topic/retained-restart-removed", 2, "retain:remove\n")
+
+    restart_broker
+
+    connect("1.1")
+    subscribe("0", "/topic/retained-restart-removed")
+    async_send("/topic/retained-restart-removed", 3)
+    assert_received(3)
+    retained("retained-restart-removed") should be (None)
+  }
+
+}
@@ -20,7 +20,10 @@ import org.scalatest.matchers.ShouldMatchers
 import org.scalatest._
 import java.lang.String
 import java.util.concurrent.atomic.AtomicLong
+import java.net.InetSocketAddress
 import org.apache.activemq.apollo.broker._
+import org.apache.activemq.apollo.util.ServiceControl
+import org.apache.activemq.apollo.util.FileSupport._
 
 class StompTestSupport extends BrokerFunSuiteSupport with ShouldMatchers with BeforeAndAfterEach {
 
@@ -81,6 +84,22 @@ class StompTestSupport extends BrokerFunSuiteSupport with ShouldMatchers with Be
     clients = clients.filterNot(_ == c)
   }
 
+  /**
+   * Closes the clients, stops the broker and starts a new one on the
+   * same data directory.  Don't use it in tests which share the broker.
+   */
+  def restart_broker = {
+    clients.foreach(_.close)
+    clients = Nil
+    ServiceControl.stop(broker)
+    broker = createBroker
+    broker.setTmp(test_data_dir / "tmp")
+    broker.getTmp().mkdirs()
+    ServiceControl.start(broker)
+    port = broker.get_socket_address.asInstanceOf[InetSocketAddress].getPort
+    client = new StompClient
+  }
+
   val receipt_counter = new AtomicLong()
 
   def sync_send(dest: String, body: Any, headers: String = "", c: StompClient = client) = {
@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.fusesource.hawtbuf.Buffer
+
+object DuplicateFilter {
+
+  /**
+   * 64 bit FNV-1a hash of the scope, its length and the id followed by a
+   * final avalanche so that the low bits can be used to index the hash table.
+   * Mixing in the length keeps ("ab", "c") and ("a", "bc") apart.
+   */
+  def hash(scope:Buffer, id:Buffer):Long = {
+    var rc = 0xcbf29ce484222325L
+    if( scope!=null ) {
+      rc = update(rc, scope)
+      var length = scope.length
+      var i = 0
+      while( i < 4 ) {
+        rc ^= (length & 0xFF)
+        rc *= 0x100000001b3L
+        length >>>= 8
+        i += 1
+      }
+    }
+    rc = update(rc, id)
+    rc ^= (rc >>> 33)
+    rc *= 0xff51afd7ed558ccdL
+    rc ^= (rc >>> 33)
+    rc
+  }
+
+  private def update(hash:Long, buffer:Buffer):Long = {
+    var rc = hash
+    val data = buffer.data
+    var i = buffer.offset
+    val end = buffer.offset + buffer.length
+    while( i < end ) {
+      rc ^= (data(i) & 0xFF)
+      rc *= 0x100000001b3L
+      i += 1
+    }
+    rc
+  }
+}
+
+/**
+ * <p>
+ * Remembers the ids seen within a time window so that redelivered
+ * messages can be detected.  Only a 64 bit hash of each id is kept, in a
+ * ring of primitive arrays indexed by an open addressing hash table, so every
+ * remembered id costs about 24 bytes no matter how large it is and two ids
+ * only get mistaken for each other with a 2^-64 chance.
+ * </p>
+ * <p>
+ * At most capacity ids are remembered, when it fills up the oldest ids are
+ * forgotten before the window has passed.  It is thread safe.
+ * </p>
+ */
+class DuplicateFilter(val window:Long, val capacity:Int) {
+  import DuplicateFilter._
+
+  // The ring of remembered ids, oldest first starting at tail.
+  private val hashes = new Array[Long](capacity)
+  private val times = new Array[Long](capacity)
+  private var tail = 0
+  private var size = 0
+
+  // Open addressing table holding ring slot + 1 for each id, 0 if the entry is empty.
+  private val table = new Array[Int](Integer.highestOneBit(capacity.max(1) * 2 - 1) << 1)
+  private val mask = table.length - 1
+
+  /**
+   * @return true if the id was already seen in the scope within the time window,
+   *         otherwise the id gets remembered and false is returned.  Ids of different
+   *         scopes are never mistaken for each other, the scope can be null.
+   */
+  def duplicate(scope:Buffer, id:Buffer, now:Long = System.currentTimeMillis()):Boolean = this.synchronized {
+    expire(now)
+    val h = hash(scope, id)
+    var i = h.toInt & mask
+    while( table(i) != 0 ) {
+      if( hashes(table(i) - 1) == h ) {
+        return true
+      }
+      i = (i + 1) & mask
+    }
+    if( capacity == 0 ) {
+      return false
+    }
+    if( size == capacity ) {
+      remove_tail
+    }
+    val slot = (tail + size) % capacity
+    hashes(slot) = h
+    times(slot) = now
+    size += 1
+    // the removal could have moved entries around, so look for a free entry again.
+    i = h.toInt & mask
+    while( table(i) != 0 ) {
+      i = (i + 1) & mask
+    }
+    table(i) = slot + 1
+    false
+  }
+
+  def remembered = this.synchronized(size)
+
+  private def expire(now:Long) = {
+    while( size > 0 && now - times(tail) > window ) {
+      remove_tail
+    }
+  }
+
+  private def remove_tail = {
+    var i = hashes(tail).toInt & mask
+    while( table(i) != tail + 1 ) {
+      i = (i + 1) & mask
+    }
+    // Shift back the following entries of the probe sequence so that lookups
+    // don't stop at the freed entry.
+    var j = i
+    var done = false
+    while( !done ) {
+      table(i) = 0
+      var found = false
+      while( !found && !done ) {
+        j = (j + 1) & mask
+        if( table(j) == 0 ) {
+          done = true
+        } else {
+          val home = hashes(table(j) - 1).toInt & mask
+          // can the entry at j move to i without getting out of its probe sequence?
+          found = if( i <= j ) { home <= i || home > j } else { home <= i && home > j }
+        }
+      }
+      if( found ) {
+        table(i) = table(j)
+        i = j
+      }
+    }
+    tail = (tail + 1) % capacity
+    size -= 1
+  }
+
+}
@@ -90,6 +90,21 @@ class FileCache[T](mapper: (File)=>Option[T], evict_after:Long=1000*60*5) {
   private val cache = new ConcurrentHashMap[File, Entry]()
   private var eviction_ver = 0
 
+  // The last modified time of the files when they were last loaded, 0 if missing.
+  private val loaded_versions = new ConcurrentHashMap[File, Long]()
+
+  /**
+   * Incremented every time a cached file gets created, modified or deleted,
+   * so that values derived from the cached files can tell they need
+   * to be reloaded.
+   */
+  @volatile
+  var change_counter = 0L
+
+  private def changed = this.synchronized {
+    change_counter += 1
+  }
+
   def get(file:File):Option[T] = {
     var rc = cache.get(file)
     val now: Long = System.currentTimeMillis()
@@ -99,6 +114,10 @@ class FileCache[T](mapper: (File)=>Option[T], evict_after:Long=1000*60*5) {
       } else {
         new Entry(file, file.lastModified(), now, mapper(file))
       }
+      val previous = loaded_versions.put(file, rc.modified)
+      if( previous!=null && previous.longValue != rc.modified ) {
+        changed
+      }
       this.synchronized {
         cache.put(file, rc)
         if( cache.size() == 1) {
@@ -117,10 +136,14 @@ class FileCache[T](mapper: (File)=>Option[T], evict_after:Long=1000*60*5) {
       import collection.JavaConversions._
       val evict_point = System.currentTimeMillis() - evict_after
       val evictions = cache.values().flatMap { entry =>
+        val modified = if( entry.file.exists() ) entry.file.lastModified() else 0
+        if( modified != entry.modified ) {
+          changed
+        }
         if(
           entry.value == None ||
-          !entry.file.exists() ||
-          entry.file.lastModified() != entry.modified ||
+          modified == 0 ||
+          modified != entry.modified ||
           entry.last_accessed < evict_point
         ) {
           Some(entry.file)
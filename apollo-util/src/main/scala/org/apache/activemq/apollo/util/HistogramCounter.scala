@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.{AtomicLongArray, AtomicLong}
+
+object HistogramCounter {
+
+  final val SUB_BUCKET_BITS = 4
+  final val SUB_BUCKETS = 1 << SUB_BUCKET_BITS
+
+  /**
+   * Values up to 2^MAX_EXPONENT (about 18 minutes worth of nanoseconds)
+   * get tracked, larger values are counted in the last bucket.
+   */
+  final val MAX_EXPONENT = 40
+  final val BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS
+
+  /**
+   * Maps a value to its bucket.  Values smaller than SUB_BUCKETS get an exact
+   * bucket, every following power of 2 range is split into SUB_BUCKETS linear
+   * buckets so the recorded values are accurate to within 1/SUB_BUCKETS.
+   */
+  def bucket(value:Long):Int = {
+    if( value < SUB_BUCKETS ) {
+      value.toInt
+    } else {
+      val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      if( exponent > MAX_EXPONENT ) {
+        BUCKETS - 1
+      } else {
+        val shift = exponent - SUB_BUCKET_BITS
+        ((shift + 1) << SUB_BUCKET_BITS) + ((value >>> shift) & (SUB_BUCKETS - 1)).toInt
+      }
+    }
+  }
+
+  /**
+   * The highest value which maps to the bucket.
+   */
+  def highest_value(bucket:Int):Long = {
+    if( bucket < SUB_BUCKETS ) {
+      bucket
+    } else {
+      val shift = (bucket >> SUB_BUCKET_BITS) - 1
+      val sub_bucket = bucket & (SUB_BUCKETS - 1)
+      ((SUB_BUCKETS + sub_bucket).toLong << shift) + (1L << shift) - 1
+    }
+  }
+}
+
+/**
+ * <p>A HistogramCounter collects time durations into a fixed size set of
+ * log-linear buckets and produces a HistogramMetric from which latency
+ * percentiles can be read.  Durations can be added concurrently from
+ * multiple threads without locking.</p>
+ */
+class HistogramCounter extends MetricProducer[HistogramMetric] {
+  import HistogramCounter._
+
+  private val counts = new AtomicLongArray(BUCKETS)
+  private val total = new AtomicLong(0)
+  private val max = new AtomicLong(Long.MinValue)
+  private val min = new AtomicLong(Long.MaxValue)
+
+  def apply(reset: Boolean):HistogramMetric = {
+    val snapshot = new Array[Long](BUCKETS)
+    var count = 0L
+    var i = 0
+    while( i < BUCKETS ) {
+      snapshot(i) = if( reset ) counts.getAndSet(i, 0) else counts.get(i)
+      count += snapshot(i)
+      i += 1
+    }
+    val rc = if( reset ) {
+      HistogramMetric(count, total.getAndSet(0), min.getAndSet(Long.MaxValue), max.getAndSet(Long.MinValue), snapshot)
+    } else {
+      HistogramMetric(count, total.get, min.get, max.get, snapshot)
+    }
+    if( count==0 ) {
+      HistogramMetric(0, 0, 0, 0, snapshot)
+    } else {
+      rc
+    }
+  }
+
+  def clear():Unit = apply(true)
+
+  /**
+   * Adds a duration to the histogram.
+   */
+  def +=(value: Long): Unit = {
+    if (value > -1) {
+      counts.incrementAndGet(bucket(value))
+      total.addAndGet(value)
+      var done = false
+      while( !done ) {
+        val current = max.get
+        done = value <= current || max.compareAndSet(current, value)
+      }
+      done = false
+      while( !done ) {
+        val current = min.get
+        done = value >= current || min.compareAndSet(current, value)
+      }
+    }
+  }
+
+  /**
+   * Adds all the durations of a snapshot taken from another histogram.
+   */
+  def +=(metric: HistogramMetric): Unit = {
+    if( metric.count > 0 ) {
+      var i = 0
+      while( i < BUCKETS ) {
+        if( metric.counts(i) != 0 ) {
+          counts.addAndGet(i, metric.counts(i))
+        }
+        i += 1
+      }
+      total.addAndGet(metric.total)
+      var done = false
+      while( !done ) {
+        val current = max.get
+        done = metric.max <= current || max.compareAndSet(current, metric.max)
+      }
+      done = false
+      while( !done ) {
+        val current = min.get
+        done = metric.min >= current || min.compareAndSet(current, metric.min)
+      }
+    }
+  }
+
+  def time[T](func: => T): T = {
+    val startTime = System.nanoTime
+    try {
+      func
+    } finally {
+      this += System.nanoTime - startTime
+    }
+  }
+
+  def start[T](func: ( ()=>Unit )=> T): T = {
+    val startTime = System.nanoTime
+    def endFunc():Unit = {
+      this += System.nanoTime - startTime
+    }
+    func(endFunc)
+  }
+}
+
+case class HistogramMetric(count:Long, total:Long, min:Long, max:Long, counts:Array[Long]) {
+  import HistogramCounter._
+
+  /**
+   * Returns the value below which the given percentage of the
+   * recorded values fall.
+   */
+  def percentile(percent:Double):Long = {
+    if( count == 0 ) {
+      return 0
+    }
+    val target = math.ceil(count * percent / 100).toLong max 1
+    var seen = 0L
+    var i = 0
+    while( i < counts.length ) {
+      seen += counts(i)
+      if( seen >= target ) {
+        return (highest_value(i) min max) max min
+      }
+      i += 1
+    }
+    max
+  }
+
+  /**
+   * Merges the histograms, the result's percentiles are as accurate as the
+   * ones of a histogram which recorded all the values of both.
+   */
+  def +(other:HistogramMetric):HistogramMetric = {
+    if( other.count == 0 ) {
+      this
+    } else if( count == 0 ) {
+      other
+    } else {
+      val merged = new Array[Long](counts.length)
+      var i = 0
+      while( i < merged.length ) {
+        merged(i) = counts(i) + other.counts(i)
+        i += 1
+      }
+      HistogramMetric(count + other.count, total + other.total, min min other.min, max max other.max, merged)
+    }
+  }
+
+  def p50 = percentile(50)
+  def p90 = percentile(90)
+  def p99 = percentile(99)
+  def p999 = percentile(99.9)
+
+  def time_metric = TimeMetric(count.toInt, total, min, max)
+
+  def percentileTime(percent:Double, unit:TimeUnit) = percentile(percent).toFloat / unit.toNanos(1)
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+/**
+ * <p>
+ * A token bucket which gets refilled with rate tokens per second and holds
+ * at most burst tokens.  It is not thread safe.
+ * </p>
+ */
+class TokenBucket(val rate:Double, val burst:Double, start:Long = System.nanoTime()) {
+
+  private var tokens = burst
+  private var last_refill = start
+
+  private def refill(now:Long) = {
+    val elapsed = now - last_refill
+    if( elapsed > 0 ) {
+      tokens = (tokens + elapsed * rate / 1000000000d) min burst
+      last_refill = now
+    }
+  }
+
+  /**
+   * @return true if a token was available and taken.
+   */
+  def try_acquire(now:Long = System.nanoTime()):Boolean = {
+    refill(now)
+    if( tokens >= 1 ) {
+      tokens -= 1
+      true
+    } else {
+      false
+    }
+  }
+
+  /**
+   * @return how many nanoseconds it takes until a token is available.
+   */
+  def delay(now:Long = System.nanoTime()):Long = {
+    refill(now)
+    if( tokens >= 1 ) {
+      0
+    } else {
+      math.ceil((1 - tokens) * 1000000000d / rate).toLong
+    }
+  }
+
+  /**
+   * @return true if no tokens have been taken that have not been refilled since.
+   */
+  def is_full(now:Long = System.nanoTime()):Boolean = {
+    refill(now)
+    tokens >= burst
+  }
+
+}
@@ -30,11 +30,17 @@ import java.util.TreeSet
   * path steps. So looking up the values for "TEST.*" or "*.TEST" will be
   * pretty fast. <br>
   * Looking up of a value could return a single value or a List of matching
-  * values if a wildcard or composite path is used.
+  * values if a wildcard or composite path is used. <br>
+  * Lookups of paths without wildcards are answered from a {@link PathTrie}
+  * which caches up to cache_size results, so the returned sets must not be
+  * modified.
   *
   * @version $Revision: 1.3 $
   */
-class PathMap[Value] {
+class PathMap[Value](cache_size: Int = 0) {
+
+  def this() = this(0)
+
   /**
     * Looks up the value(s) matching the given String key. For simple
     * paths this is typically a List of one single value, for wild cards
@@ -46,20 +52,37 @@ class PathMap[Value] {
     *         matching values.
     */
   def get(key: Path): Set[Value] = {
+    if( isConcrete(key) ) {
+      // the common case of looking up a message's destination.
+      return trie.get(key)
+    }
     return findWildcardMatches(key)
   }
 
   def put(key: Path, value: Value): Unit = {
     root.add(key, 0, value)
+    trie.put(key, value)
   }
 
   /**
     * Removes the value from the associated path
     */
   def remove(path: Path, value: Value): Boolean = {
+    trie.remove(path, value)
     return root.remove(path, 0, value)
   }
 
+  private def isConcrete(path: Path): Boolean = {
+    var parts = path.parts
+    while (!parts.isEmpty) {
+      if (!parts.head.isInstanceOf[LiteralPart]) {
+        return false
+      }
+      parts = parts.tail
+    }
+    return true
+  }
+
   def getRootNode = root
 
   protected def findWildcardMatches(path: Path): Set[Value] = {
@@ -75,9 +98,27 @@ class PathMap[Value] {
   def removeAll(key: Path): Set[Value] = {
     var rc: HashSet[Value] = new HashSet[Value]
     root.removeAll(rc, key, 0)
+    rebuildTrie
     return rc
   }
 
+  private def rebuildTrie: Unit = {
+    trie = new PathTrie[Value](cache_size)
+    def add(node: PathNode[Value], parts: List[Part]): Unit = {
+      val path = Path(parts.reverse)
+      val values = node.getValues.iterator
+      while (values.hasNext) {
+        trie.put(path, values.next)
+      }
+      val children = node.getChildren.iterator
+      while (children.hasNext) {
+        val child = children.next.asInstanceOf[PathMapNode[Value]]
+        add(child, child.getPart :: parts)
+      }
+    }
+    add(root, Nil)
+  }
+
   /**
     * Returns the value which matches the given path or null if there is
     * no matching value. If there are multiple values, the results are sorted
@@ -100,4 +141,5 @@ class PathMap[Value] {
   }
 
   private final val root = new PathMapNode[Value](null)
+  private var trie = new PathTrie[Value](cache_size)
 }
\ No newline at end of file
@@ -0,0 +1,291 @@
+/**
+  * Licensed to the Apache Software Foundation (ASF) under one or more
+  * contributor license agreements.  See the NOTICE file distributed with
+  * this work for additional information regarding copyright ownership.
+  * The ASF licenses this file to You under the Apache License, Version 2.0
+  * (the "License"); you may not use this file except in compliance with
+  * the License.  You may obtain a copy of the License at
+  *
+  *      http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an "AS IS" BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+  */
+package org.apache.activemq.apollo.util.path
+
+import java.util.ArrayList
+import java.util.Arrays
+import java.util.Collections
+import java.util.HashMap
+import java.util.HashSet
+import java.util.Set
+import org.apache.activemq.apollo.util.LRUCache
+
+object PathTrie {
+
+  /**
+    * Returns true if a value stored under the (possibly wildcard) pattern
+    * would be returned by a lookup of the concrete path.
+    */
+  def matches(pattern: List[Part], path: List[Part]): Boolean = pattern match {
+    case Nil => path.isEmpty
+    case AnyDescendantPart :: rest =>
+      // a trailing ** also matches the parent path.
+      !path.isEmpty || rest.isEmpty
+    case AnyChildPart :: rest =>
+      !path.isEmpty && matches(rest, path.tail)
+    case RegexChildPart(regex) :: rest =>
+      path match {
+        case LiteralPart(value) :: tail => regex.matcher(value).matches && matches(rest, tail)
+        case _ => false
+      }
+    case part :: rest =>
+      !path.isEmpty && path.head == part && matches(rest, path.tail)
+  }
+
+}
+
+/**
+  * A trie of the (possibly wildcard) paths held by a {@link PathMap} which is
+  * used to find the values matching a concrete path. The nodes are ints which
+  * index flat arrays holding each node's wildcard children, values and a hash
+  * of its literal children, so a lookup is a hash probe per path step plus a
+  * visit to the wildcard children found along the way.
+  *
+  * The results of looking up concrete paths of a trie with a cache_size are
+  * cached until a put or remove of a path which matches them.  Results are
+  * shared so they cannot be modified.
+  */
+class PathTrie[Value](cache_size: Int = 0) {
+  import PathTrie._
+
+  // node 0 is the root, since it is never a child a 0 child id means 'none'.
+  private var parts = new Array[Part](16)
+  private var parents = new Array[Int](16)
+  private var literal_children = new Array[HashMap[Part, Integer]](16)
+  private var any_child = new Array[Int](16)
+  private var any_descendant = new Array[Int](16)
+  private var regex_children = Array.fill[List[Int]](16)(Nil)
+  private var values = new Array[ArrayList[Value]](16)
+
+  private var node_count = 1
+  private var free_nodes = List[Int]()
+
+  private val cache = if (cache_size > 0) new LRUCache[Path, Set[Value]](cache_size) else null
+
+  def get(path: Path): Set[Value] = {
+    var rc = if (cache == null) null else cache.get(path)
+    if (rc == null) {
+      val answer = new HashSet[Value]
+      collect(0, path.parts, answer)
+      rc = Collections.unmodifiableSet(answer)
+      if (cache != null) {
+        cache.put(path, rc)
+      }
+    }
+    rc
+  }
+
+  def put(path: Path, value: Value): Unit = {
+    var node = 0
+    var remaining = path.parts
+    while (!remaining.isEmpty) {
+      node = child_or_create(node, remaining.head)
+      remaining = remaining.tail
+    }
+    if (values(node) == null) {
+      values(node) = new ArrayList[Value]
+    }
+    values(node).add(value)
+    invalidate(path)
+  }
+
+  def remove(path: Path, value: Value): Boolean = {
+    var node = 0
+    var remaining = path.parts
+    while (!remaining.isEmpty) {
+      node = child(node, remaining.head)
+      if (node == 0) {
+        return false
+      }
+      remaining = remaining.tail
+    }
+    val rc = values(node) != null && values(node).remove(value.asInstanceOf[AnyRef])
+    if (rc) {
+      invalidate(path)
+      prune(node)
+    }
+    rc
+  }
+
+  private def collect(node: Int, remaining: List[Part], answer: Set[Value]): Unit = {
+    val descendant = any_descendant(node)
+    if (remaining.isEmpty) {
+      add_values(node, answer)
+      if (descendant != 0) {
+        add_values(descendant, answer)
+      }
+    } else {
+      if (descendant != 0) {
+        add_descendant_values(descendant, answer)
+      }
+      val part = remaining.head
+      val next = remaining.tail
+      val literals = literal_children(node)
+      if (literals != null) {
+        val literal = literals.get(part)
+        if (literal != null) {
+          collect(literal.intValue, next, answer)
+        }
+      }
+      if (any_child(node) != 0) {
+        collect(any_child(node), next, answer)
+      }
+      var regexes = regex_children(node)
+      if (!regexes.isEmpty) {
+        part match {
+          case LiteralPart(value) =>
+            while (!regexes.isEmpty) {
+              val regex = regexes.head
+              if (parts(regex).asInstanceOf[RegexChildPart].regex.matcher(value).matches) {
+                collect(regex, next, answer)
+              }
+              regexes = regexes.tail
+            }
+          case _ =>
+        }
+      }
+    }
+  }
+
+  private def add_values(node: Int, answer: Set[Value]) = {
+    if (values(node) != null) {
+      answer.addAll(values(node))
+    }
+  }
+
+  private def add_descendant_values(node: Int, answer: Set[Value]): Unit = {
+    add_values(node, answer)
+    if (literal_children(node) != null) {
+      val i = literal_children(node).values.iterator
+      while (i.hasNext) {
+        add_descendant_values(i.next.intValue, answer)
+      }
+    }
+    if (any_child(node) != 0) {
+      add_descendant_values(any_child(node), answer)
+    }
+    if (any_descendant(node) != 0) {
+      add_descendant_values(any_descendant(node), answer)
+    }
+    regex_children(node).foreach(add_descendant_values(_, answer))
+  }
+
+  private def child(node: Int, part: Part): Int = part match {
+    case AnyChildPart => any_child(node)
+    case AnyDescendantPart => any_descendant(node)
+    case x: RegexChildPart => regex_children(node).find(parts(_) == x).getOrElse(0)
+    case _ =>
+      val literals = literal_children(node)
+      val rc = if (literals == null) null else literals.get(part)
+      if (rc == null) 0 else rc.intValue
+  }
+
+  private def child_or_create(node: Int, part: Part): Int = {
+    var rc = child(node, part)
+    if (rc == 0) {
+      rc = create_node(node, part)
+      part match {
+        case AnyChildPart => any_child(node) = rc
+        case AnyDescendantPart => any_descendant(node) = rc
+        case x: RegexChildPart => regex_children(node) = rc :: regex_children(node)
+        case _ =>
+          if (literal_children(node) == null) {
+            literal_children(node) = new HashMap[Part, Integer]
+          }
+          literal_children(node).put(part, rc)
+      }
+    }
+    rc
+  }
+
+  private def create_node(parent: Int, part: Part): Int = {
+    val rc = if (!free_nodes.isEmpty) {
+      val id = free_nodes.head
+      free_nodes = free_nodes.tail
+      id
+    } else {
+      if (node_count == parts.length) {
+        grow(node_count * 2)
+      }
+      node_count += 1
+      node_count - 1
+    }
+    parts(rc) = part
+    parents(rc) = parent
+    rc
+  }
+
+  private def grow(size: Int) = {
+    parts = Arrays.copyOf(parts, size)
+    parents = Arrays.copyOf(parents, size)
+    literal_children = Arrays.copyOf(literal_children, size)
+    any_child = Arrays.copyOf(any_child, size)
+    any_descendant = Arrays.copyOf(any_descendant, size)
+    val length = regex_children.length
+    regex_children = Arrays.copyOf(regex_children, size)
+    Arrays.fill(regex_children.asInstanceOf[Array[AnyRef]], length, size, Nil)
+    values = Arrays.copyOf(values, size)
+  }
+
+  private def is_empty(node: Int) = {
+    (values(node) == null || values(node).isEmpty) &&
+      (literal_children(node) == null || literal_children(node).isEmpty) &&
+      any_child(node) == 0 && any_descendant(node) == 0 && regex_children(node).isEmpty
+  }
+
+  /**
+    * Frees the node and any of its ancestors which no longer hold any values or children.
+    */
+  private def prune(start: Int): Unit = {
+    var node = start
+    while (node != 0 && is_empty(node)) {
+      val parent = parents(node)
+      parts(node) match {
+        case AnyChildPart => any_child(parent) = 0
+        case AnyDescendantPart => any_descendant(parent) = 0
+        case x: RegexChildPart => regex_children(parent) = regex_children(parent).filterNot(_ == node)
+        case part => literal_children(parent).remove(part)
+      }
+      parts(node) = null
+      parents(node) = 0
+      literal_children(node) = null
+      values(node) = null
+      free_nodes ::= node
+      node = parent
+    }
+  }
+
+  /**
+    * Drops the cached results of the paths the changed pattern matches.
+    */
+  private def invalidate(pattern: Path):Unit = {
+    if (cache == null) {
+      return
+    }
+    if (PathParser.containsWildCards(pattern)) {
+      val i = cache.keySet.iterator
+      while (i.hasNext) {
+        if (matches(pattern.parts, i.next.parts)) {
+          i.remove
+        }
+      }
+    } else {
+      cache.remove(pattern)
+    }
+  }
+
+}
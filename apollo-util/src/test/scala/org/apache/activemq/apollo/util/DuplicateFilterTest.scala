@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+class DuplicateFilterTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("detects ids seen within the window") {
+    val filter = new DuplicateFilter(1000, 100)
+    filter.duplicate(null, ascii("ID:1"), 0) should be (false)
+    filter.duplicate(null, ascii("ID:2"), 10) should be (false)
+    filter.duplicate(null, ascii("ID:1"), 500) should be (true)
+    filter.duplicate(null, ascii("ID:2"), 1010) should be (true)
+    // ID:1 was first seen more than a window ago.
+    filter.duplicate(null, ascii("ID:1"), 1001) should be (false)
+  }
+
+  test("forgets the oldest ids when full") {
+    val filter = new DuplicateFilter(Long.MaxValue, 100)
+    for( i <- 0 until 150 ) {
+      filter.duplicate(null, ascii("ID:"+i), 0) should be (false)
+    }
+    filter.remembered should be (100)
+    for( i <- 50 until 150 ) {
+      filter.duplicate(null, ascii("ID:"+i), 0) should be (true)
+    }
+    filter.duplicate(null, ascii("ID:0"), 0) should be (false)
+  }
+
+  test("ids are scoped") {
+    val filter = new DuplicateFilter(Long.MaxValue, 100)
+    filter.duplicate(ascii("/queue/a"), ascii("ID:1"), 0) should be (false)
+    filter.duplicate(ascii("/queue/b"), ascii("ID:1"), 0) should be (false)
+    filter.duplicate(null, ascii("ID:1"), 0) should be (false)
+    filter.duplicate(ascii("/queue/a"), ascii("ID:1"), 0) should be (true)
+    filter.duplicate(ascii("/queue/b"), ascii("ID:1"), 0) should be (true)
+    // the scope and id don't just get concatenated.
+    filter.duplicate(ascii("ab"), ascii("c"), 0) should be (false)
+    filter.duplicate(ascii("a"), ascii("bc"), 0) should be (false)
+  }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+import java.util.concurrent.TimeUnit._
+import FileSupport._
+
+class FileCacheTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("change counter only moves when files change") {
+    val file = test_data_dir / "cached.txt"
+    file.getParentFile.mkdirs
+    file.write_text("one")
+    file.setLastModified(1000000L)
+
+    // evict idle entries right away.
+    val cache = new FileCache[String](x => Some(x.read_text()), 0)
+    cache.get(file) should be (Some("one"))
+
+    // Idle evictions and reloads of an unchanged file are not changes.
+    Thread.sleep(1500)
+    cache.get(file) should be (Some("one"))
+    cache.change_counter should be (0)
+
+    file.write_text("two")
+    file.setLastModified(2000000L)
+    within(5, SECONDS) {
+      cache.change_counter should not be (0)
+      cache.get(file) should be (Some("two"))
+    }
+
+    val counter = cache.change_counter
+    file.delete()
+    within(5, SECONDS) {
+      cache.change_counter should not be (counter)
+      cache.get(file) should be (None)
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+import HistogramCounter._
+
+class HistogramCounterTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("buckets are contiguous and bounded") {
+    var previous = -1
+    for( value <- (0L until 100000L) ++ List(1L<<39, 1L<<40, Long.MaxValue) ) {
+      val b = bucket(value)
+      b should be >= (previous)
+      b should be < (BUCKETS)
+      if( value < (1L << MAX_EXPONENT) ) {
+        highest_value(b) should be >= (value)
+        (highest_value(b) - value) should be <= (value / SUB_BUCKETS)
+      }
+      previous = b
+    }
+  }
+
+  test("percentiles") {
+    val counter = new HistogramCounter
+    for( i <- 1 to 1000 ) {
+      counter += i * 1000L
+    }
+    val metric = counter(true)
+    metric.count should be(1000)
+    metric.min should be(1000)
+    metric.max should be(1000000)
+
+    def near(actual:Long, expected:Long) = {
+      actual should be >= (expected)
+      actual should be <= (expected + expected / SUB_BUCKETS)
+    }
+    near(metric.p50, 500000)
+    near(metric.p99, 990000)
+    metric.p999 should be(1000000)
+
+    // the counter was reset.
+    counter(false).count should be(0)
+    counter(false).p99 should be(0)
+  }
+
+  test("histograms merge") {
+    val a = new HistogramCounter
+    val b = new HistogramCounter
+    for( i <- 1 to 100 ) {
+      a += i * 1000
+      b += (i + 100) * 1000
+    }
+    val merged = a(false) + b(false) + new HistogramCounter().apply(false)
+    merged.count should be(200)
+    merged.min should be(1000)
+    merged.max should be(200000)
+    merged.p50 should be >= (100000L)
+    merged.p50 should be <= (100000L + 100000L / SUB_BUCKETS)
+
+    // adding a snapshot gives the same histogram.
+    val c = new HistogramCounter
+    c += 50000
+    c += merged
+    c(false).count should be(201)
+    c(false).max should be(200000)
+    c(false).p50 should be(merged.p50)
+  }
+
+}
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+
+class TokenBucketTest extends FunSuiteSupport with ShouldMatchers {
+
+  val SECOND = 1000000000L
+
+  test("allows a burst then limits to the rate") {
+    val bucket = new TokenBucket(10, 5, 0)
+    for( i <- 0 until 5 ) {
+      bucket.try_acquire(0) should be (true)
+    }
+    bucket.try_acquire(0) should be (false)
+    bucket.delay(0) should be (SECOND / 10)
+
+    bucket.try_acquire(SECOND / 10) should be (true)
+    bucket.try_acquire(SECOND / 10) should be (false)
+  }
+
+  test("does not refill past the burst") {
+    val bucket = new TokenBucket(10, 2, 0)
+    bucket.try_acquire(0) should be (true)
+    bucket.is_full(0) should be (false)
+    bucket.is_full(10 * SECOND) should be (true)
+    bucket.try_acquire(10 * SECOND) should be (true)
+    bucket.try_acquire(10 * SECOND) should be (true)
+    bucket.try_acquire(10 * SECOND) should be (false)
+  }
+
+}
@@ -275,6 +275,48 @@ class PathMapTest {
     assertMapValue(map, "TEST.BAR.*", v3, v4)
   }
 
+  @Test def testCachedLookupsSeeChanges: Unit = {
+    var map: PathMap[String] = new PathMap[String](100)
+    put(map, "TEST.BAR.D2", v1)
+    assertMapValue(map, "TEST.BAR.D2", v1)
+    assertMapValue(map, "TEST.BAR.D3")
+
+    put(map, "TEST.*.D2", v2)
+    put(map, "TEST.**", v3)
+    put(map, "OTHER.**", v4)
+    assertMapValue(map, "TEST.BAR.D2", v1, v2, v3)
+    assertMapValue(map, "TEST.BAR.D3", v3)
+    assertMapValue(map, "TEST", v3)
+
+    remove(map, "TEST.**", v3)
+    assertMapValue(map, "TEST.BAR.D2", v1, v2)
+    assertMapValue(map, "TEST.BAR.D3")
+
+    remove(map, "TEST.BAR.D2", v1)
+    remove(map, "TEST.*.D2", v2)
+    assertMapValue(map, "TEST.BAR.D2")
+    assertMapValue(map, "OTHER.D1", v4)
+  }
+
+  @Test def testConcreteLookupOfRegexWildcards: Unit = {
+    var map: PathMap[String] = new PathMap[String]
+    put(map, "TEST.a{[0-9]+}a", v1)
+    put(map, "TEST.a*a.**", v2)
+    assertMapValue(map, "TEST.a99a", v1, v2)
+    assertMapValue(map, "TEST.aba", v2)
+    assertMapValue(map, "TEST.aba.FOO", v2)
+    assertMapValue(map, "TEST.cat.FOO")
+  }
+
+  @Test def testRemoveAllKeepsConcreteLookupsInSync: Unit = {
+    var map: PathMap[String] = new PathMap[String](100)
+    put(map, "TEST.D1", v1)
+    put(map, "TEST.*", v2)
+    assertMapValue(map, "TEST.D1", v1, v2)
+    map.removeAll(createDestination("TEST.D1"))
+    assertMapValue(map, "TEST.D1", v2)
+  }
+
   protected def put(map: PathMap[String], name: String, value: String): Unit = {
     map.put(createDestination(name), value)
   }
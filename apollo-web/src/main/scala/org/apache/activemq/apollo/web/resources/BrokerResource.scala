@@ -125,6 +125,9 @@ class BrokerResource() extends Resource {
         result.version = Broker.version
         result.connection_counter = broker.connection_id_counter.get()
         result.connected = broker.connections.size
+        result.authentication_latency = DestinationMetricsSupport.to_time_metric_dto(broker.authentication_metrics.latency_counter(false))
+        result.authentication_cache_hits = broker.authentication_metrics.cache_hits.get()
+        result.authentication_cache_misses = broker.authentication_metrics.cache_misses.get()
         broker.virtual_hosts.values.foreach{ host=>
           result.virtual_hosts.add( host.id )
         }